@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.handlers;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gerrit.extensions.api.changes.NotifyHandling;
+import com.google.gerrit.extensions.client.ReviewerState;
+import com.google.gerrit.extensions.common.AccountInfo;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.events.ChangeEvent;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+
+/**
+ * Measures the allocations of resolving the recipients of an event and
+ * handing them to the uploader, with a large number of project watchers.
+ * Run it with {@code -prof gc} and compare the {@code gc.alloc.rate.norm}
+ * (bytes per event) of both benchmarks: {@code boxed} replays the former
+ * implementation (boxed sets, a list copy and a task per account) and
+ * {@code primitive} the current one (the per-thread buffers of the
+ * resolver and a task per batch of accounts).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class RecipientResolutionBenchmark {
+
+    private static final String PLUGIN_NAME = "cloud-notifications";
+    private static final int FIRST_ACCOUNT_ID = 1000000;
+    private static final int ACCOUNTS_PER_TASK = 64;
+
+    @Param({"1000", "10000"})
+    public int watchers;
+
+    @Param({"5"})
+    public int reviewers;
+
+    private ChangeEvent event;
+    private List<AccountProjectWatch> watches;
+    private BenchmarkResolver resolver;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Project.NameKey project = new Project.NameKey("benchmark");
+        watches = new ArrayList<>(watchers);
+        for (int i = 0; i < watchers; i++) {
+            AccountProjectWatch w = new AccountProjectWatch(
+                    new AccountProjectWatch.Key(
+                            new Account.Id(FIRST_ACCOUNT_ID + reviewers + i),
+                            project, null));
+            w.setNotify(NotifyType.ALL_COMMENTS, true);
+            watches.add(w);
+        }
+
+        final ChangeInfo change = new ChangeInfo();
+        change._number = 1;
+        change.project = project.get();
+        change.owner = new AccountInfo(FIRST_ACCOUNT_ID);
+        Collection<AccountInfo> accounts = new ArrayList<>();
+        for (int i = 1; i < reviewers; i++) {
+            accounts.add(new AccountInfo(FIRST_ACCOUNT_ID + i));
+        }
+        change.reviewers = new EnumMap<>(ReviewerState.class);
+        change.reviewers.put(ReviewerState.REVIEWER, accounts);
+        event = new ChangeEvent() {
+            @Override
+            public ChangeInfo getChange() {
+                return change;
+            }
+
+            @Override
+            public AccountInfo getWho() {
+                return change.owner;
+            }
+
+            @Override
+            public Timestamp getWhen() {
+                return new Timestamp(System.currentTimeMillis());
+            }
+
+            @Override
+            public NotifyHandling getNotify() {
+                return NotifyHandling.ALL;
+            }
+        };
+
+        // Resolve the recipients of every event from scratch
+        Config cfg = new Config();
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_RECIPIENT_CACHE_TTL, "0");
+        Configuration config = new Configuration(
+                PLUGIN_NAME, new PluginConfig(PLUGIN_NAME, cfg));
+        resolver = new BenchmarkResolver(watches, new RecipientCache(config));
+    }
+
+    @Benchmark
+    public void primitive(Blackhole bh) {
+        AccountIdSet watchedOnly = new AccountIdSet();
+        AccountIdSet recipients = resolver.resolve(
+                event, NotifyType.ALL_COMMENTS, false, watchedOnly);
+
+        // FcmUploaderWorker.notifyTo (a task per group of accounts)
+        final int[] accounts = recipients.toArray();
+        for (int from = 0; from < accounts.length; from += ACCOUNTS_PER_TASK) {
+            final int start = from;
+            final int end = Math.min(accounts.length, from + ACCOUNTS_PER_TASK);
+            bh.consume(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = start; i < end; i++) {
+                        deliver(accounts[i]);
+                    }
+                }
+            });
+        }
+        bh.consume(watchedOnly);
+    }
+
+    @Benchmark
+    public void boxed(Blackhole bh) {
+        ChangeInfo change = event.getChange();
+        Set<Integer> notifiedUsers = new HashSet<>();
+        notifiedUsers.add(change.owner._accountId);
+        for (Collection<AccountInfo> accounts : change.reviewers.values()) {
+            for (AccountInfo account : accounts) {
+                notifiedUsers.add(account._accountId);
+            }
+        }
+        Set<Integer> watchers = new HashSet<>();
+        for (AccountProjectWatch w : watches) {
+            if (w.isNotify(NotifyType.ALL_COMMENTS)) {
+                watchers.add(w.getAccountId().get());
+            }
+        }
+        Set<Integer> watchedOnly = new HashSet<>(watchers);
+        watchedOnly.removeAll(notifiedUsers);
+        notifiedUsers.addAll(watchers);
+        notifiedUsers.remove(event.getWho()._accountId);
+        List<Integer> recipients = new ArrayList<>(notifiedUsers);
+
+        // FcmUploaderWorker.notifyTo
+        for (final Integer accountId : recipients) {
+            bh.consume(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(accountId);
+                }
+            });
+        }
+        bh.consume(watchedOnly);
+    }
+
+    private static void deliver(int accountId) {
+        // Never run
+    }
+
+    private static class BenchmarkResolver extends RecipientResolver {
+        private final List<AccountProjectWatch> watches;
+
+        BenchmarkResolver(
+                List<AccountProjectWatch> watches, RecipientCache recipients) {
+            super(PLUGIN_NAME, null, null, null, null, null, null, null, null,
+                    null, recipients, null, null, null);
+            this.watches = watches;
+        }
+
+        @Override
+        protected ChangeData getWatchers(NotifyType type, ChangeInfo change,
+                boolean useTopics, AccountIdSet watchers,
+                List<AccountProjectWatch> filtered) {
+            try {
+                addWatchers(watchers, watches, type, null, new AccountIdSet());
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            return null;
+        }
+
+        @Override
+        protected boolean isRegistered(int accountId) {
+            return true;
+        }
+
+        @Override
+        protected boolean matches(AccountProjectWatch w, ChangeData change) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationResponseMode;
+
+/**
+ * Measures the evaluation of the project watchers of a change, where only
+ * a small part of the watchers registered a device. The visibility and
+ * filter checks are simulated with a fixed cpu cost per watch (the real
+ * ones query the change index, so they are much more expensive).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class WatcherPrefilterBenchmark {
+
+    private static final String PLUGIN_NAME = "cloud-notifications";
+    private static final int FIRST_ACCOUNT_ID = 1000000;
+
+    @Param({"5000"})
+    public int watchers;
+
+    @Param({"200"})
+    public int registered;
+
+    @Param({"250"})
+    public int matchCost;
+
+    private Path dataDir;
+    private DatabaseManager db;
+    private List<AccountProjectWatch> watches;
+    private BenchmarkResolver prefiltered;
+    private BenchmarkResolver unfiltered;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("fcm-benchmark");
+        Configuration config = new Configuration(
+                PLUGIN_NAME, new PluginConfig(PLUGIN_NAME, new Config()));
+        db = new DatabaseManager(PLUGIN_NAME, dataDir, config,
+                new DisabledMetricMaker());
+        db.initialize();
+
+        Project.NameKey project = new Project.NameKey("benchmark");
+        watches = new ArrayList<>(watchers);
+        for (int i = 0; i < watchers; i++) {
+            AccountProjectWatch w = new AccountProjectWatch(
+                    new AccountProjectWatch.Key(
+                            new Account.Id(FIRST_ACCOUNT_ID + i),
+                            project, null));
+            w.setNotify(NotifyType.ALL_COMMENTS, true);
+            watches.add(w);
+        }
+        Collections.shuffle(watches, new Random(0));
+
+        // Only a few of the watchers registered a device
+        for (int i = 0; i < registered; i++) {
+            int accountId = FIRST_ACCOUNT_ID + (i * (watchers / registered));
+            CloudNotificationInfo notification = new CloudNotificationInfo();
+            notification.device = "device-" + accountId;
+            notification.token = "token-" + accountId;
+            notification.registeredOn = "2016-11-25 14:45:03.123";
+            notification.events = 0xFFFFFFF;
+            notification.responseMode = CloudNotificationResponseMode.DATA;
+            db.registerCloudNotification(accountId, notification);
+        }
+
+        prefiltered = new BenchmarkResolver(db, matchCost, true);
+        unfiltered = new BenchmarkResolver(db, matchCost, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.shutdown();
+        for (File f : dataDir.toFile().listFiles()) {
+            f.delete();
+        }
+        dataDir.toFile().delete();
+    }
+
+    @Benchmark
+    public void prefiltered(Blackhole bh) throws Exception {
+        bh.consume(resolve(prefiltered));
+    }
+
+    @Benchmark
+    public void unfiltered(Blackhole bh) throws Exception {
+        bh.consume(resolve(unfiltered));
+    }
+
+    private AccountIdSet resolve(BenchmarkResolver resolver)
+            throws Exception {
+        AccountIdSet recipients = new AccountIdSet();
+        resolver.addWatchers(recipients, watches, NotifyType.ALL_COMMENTS,
+                null, new AccountIdSet());
+        return recipients;
+    }
+
+    private static class BenchmarkResolver extends RecipientResolver {
+        private final DatabaseManager db;
+        private final int matchCost;
+        private final boolean prefilter;
+
+        BenchmarkResolver(
+                DatabaseManager db, int matchCost, boolean prefilter) {
+            super(PLUGIN_NAME, null, null, null, null, null, null, null, db,
+                    null, null, null, null, null);
+            this.db = db;
+            this.matchCost = matchCost;
+            this.prefilter = prefilter;
+        }
+
+        @Override
+        protected boolean isRegistered(int accountId) {
+            return !prefilter || super.isRegistered(accountId);
+        }
+
+        @Override
+        protected boolean matches(AccountProjectWatch w, ChangeData change) {
+            Blackhole.consumeCPU(matchCost);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A compact set of account ids with lock-free reads. Gerrit assigns the
+ * account ids sequentially, so a bit per id is smaller (and much cheaper
+ * to look up) than a set of boxed integers. Writes must be serialized by
+ * the caller.
+ */
+class AccountBitSet {
+
+    private volatile AtomicLongArray words = new AtomicLongArray(0);
+
+    boolean contains(int accountId) {
+        if (accountId < 0) {
+            return false;
+        }
+        AtomicLongArray w = words;
+        int index = accountId >>> 6;
+        return index < w.length() && (w.get(index) & (1L << accountId)) != 0;
+    }
+
+    void add(int accountId) {
+        if (accountId < 0) {
+            return;
+        }
+        int index = accountId >>> 6;
+        AtomicLongArray w = words;
+        if (index >= w.length()) {
+            // Readers see either the old or the new words, both consistent
+            AtomicLongArray grown = new AtomicLongArray(
+                    Math.max(index + 1, w.length() * 2));
+            for (int i = 0; i < w.length(); i++) {
+                grown.set(i, w.get(i));
+            }
+            words = grown;
+            w = grown;
+        }
+        w.set(index, w.get(index) | (1L << accountId));
+    }
+
+    void remove(int accountId) {
+        if (accountId < 0) {
+            return;
+        }
+        int index = accountId >>> 6;
+        AtomicLongArray w = words;
+        if (index < w.length()) {
+            w.set(index, w.get(index) & ~(1L << accountId));
+        }
+    }
+
+    void clear() {
+        words = new AtomicLongArray(0);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import java.util.Arrays;
+
+/**
+ * A set of account ids backed by primitive arrays, so adding or looking up
+ * an account doesn't box it. The accounts are kept in insertion order and
+ * can be iterated by position with {@link #size()} and {@link #get(int)}.
+ * Removing an account moves the last one into its position, so a set can
+ * be filtered while iterating it backwards.
+ * <p>
+ * It is not thread-safe.
+ */
+public class AccountIdSet {
+
+    private static final int FREE = 0;
+
+    // The accounts, in insertion order
+    private int[] values;
+    // Open addressing table with the position of every account plus one
+    private int[] slots;
+    private int size;
+
+    public AccountIdSet() {
+        this(8);
+    }
+
+    public AccountIdSet(int expected) {
+        values = new int[Math.max(expected, 4)];
+        slots = new int[tableSize(expected)];
+    }
+
+    public AccountIdSet(AccountIdSet other) {
+        values = Arrays.copyOf(other.values, Math.max(other.size, 4));
+        slots = other.slots.clone();
+        size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the account at a position, between 0 and {@link #size()}.
+     */
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return values[index];
+    }
+
+    public boolean contains(int accountId) {
+        return indexOf(accountId) >= 0;
+    }
+
+    public boolean add(int accountId) {
+        int slot = indexOf(accountId);
+        if (slot >= 0) {
+            return false;
+        }
+        if ((size + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+            slot = indexOf(accountId);
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = accountId;
+        slots[-slot - 1] = ++size;
+        return true;
+    }
+
+    public void addAll(AccountIdSet other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.values[i]);
+        }
+    }
+
+    public boolean remove(int accountId) {
+        int slot = indexOf(accountId);
+        if (slot < 0) {
+            return false;
+        }
+        int index = slots[slot] - 1;
+        deleteSlot(slot);
+
+        int last = size - 1;
+        if (index != last) {
+            slots[indexOf(values[last])] = index + 1;
+            values[index] = values[last];
+        }
+        size--;
+        return true;
+    }
+
+    public void removeAll(AccountIdSet other) {
+        for (int i = 0; i < other.size && size > 0; i++) {
+            remove(other.values[i]);
+        }
+    }
+
+    /**
+     * Removes all the accounts, keeping the allocated capacity.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(slots, FREE);
+            size = 0;
+        }
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    /**
+     * Returns the slot of an account, or minus one minus the free slot
+     * where it would be added.
+     */
+    private int indexOf(int accountId) {
+        int mask = slots.length - 1;
+        int slot = hash(accountId) & mask;
+        while (true) {
+            int s = slots[slot];
+            if (s == FREE) {
+                return -slot - 1;
+            }
+            if (values[s - 1] == accountId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void deleteSlot(int slot) {
+        // Move back the following entries of the probe sequence that
+        // can't be found without this slot
+        int mask = slots.length - 1;
+        int gap = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            int s = slots[i];
+            if (s == FREE) {
+                break;
+            }
+            int home = hash(values[s - 1]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                slots[gap] = s;
+                gap = i;
+            }
+        }
+        slots[gap] = FREE;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hash(values[i]) & mask;
+            while (slots[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    private static int tableSize(int expected) {
+        return Integer.highestOneBit(Math.max(expected, 4) * 2 - 1) << 1;
+    }
+
+    private static int hash(int accountId) {
+        // Account ids are sequential, spread them over the table
+        int h = accountId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -16,9 +16,13 @@
 package com.ruesga.gerrit.plugins.fcm;
 
 import static com.google.gerrit.server.account.AccountResource.ACCOUNT_KIND;
+import static com.google.gerrit.server.config.ConfigResource.CONFIG_KIND;
 import static com.ruesga.gerrit.plugins.fcm.server.DeviceResource.DEVICE_KIND;
 import static com.ruesga.gerrit.plugins.fcm.server.TokenResource.TOKEN_KIND;
+import static com.ruesga.gerrit.plugins.fcm.server.TopicResource.TOPIC_KIND;
 
+import com.google.gerrit.audit.GroupMemberAuditListener;
+import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.AssigneeChangedListener;
 import com.google.gerrit.extensions.events.ChangeAbandonedListener;
 import com.google.gerrit.extensions.events.ChangeMergedListener;
@@ -26,6 +30,7 @@ import com.google.gerrit.extensions.events.ChangeRestoredListener;
 import com.google.gerrit.extensions.events.ChangeRevertedListener;
 import com.google.gerrit.extensions.events.CommentAddedListener;
 import com.google.gerrit.extensions.events.DraftPublishedListener;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.gerrit.extensions.events.HashtagsEditedListener;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.events.ReviewerAddedListener;
@@ -35,6 +40,8 @@ import com.google.gerrit.extensions.events.TopicEditedListener;
 import com.google.gerrit.extensions.registration.DynamicMap;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.restapi.RestApiModule;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
 import com.google.inject.Scopes;
 import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
 import com.ruesga.gerrit.plugins.fcm.handlers.AssigneeChangedEventHandler;
@@ -46,15 +53,27 @@ import com.ruesga.gerrit.plugins.fcm.handlers.CommentAddedEventHandler;
 import com.ruesga.gerrit.plugins.fcm.handlers.DraftPublishedEventHandler;
 import com.ruesga.gerrit.plugins.fcm.handlers.HashtagsEditedEventHandler;
 import com.ruesga.gerrit.plugins.fcm.handlers.LifeCycleHandler;
+import com.ruesga.gerrit.plugins.fcm.handlers.RecipientCache;
+import com.ruesga.gerrit.plugins.fcm.handlers.RecipientResolver;
 import com.ruesga.gerrit.plugins.fcm.handlers.ReviewerAddedEventHandler;
 import com.ruesga.gerrit.plugins.fcm.handlers.ReviewerDeletedEventHandler;
 import com.ruesga.gerrit.plugins.fcm.handlers.RevisionCreatedEventHandler;
 import com.ruesga.gerrit.plugins.fcm.handlers.TopicEditedEventHandler;
+import com.ruesga.gerrit.plugins.fcm.handlers.VisibilityCache;
 import com.ruesga.gerrit.plugins.fcm.server.DeleteToken;
+import com.ruesga.gerrit.plugins.fcm.server.DeleteTopic;
 import com.ruesga.gerrit.plugins.fcm.server.Devices;
+import com.ruesga.gerrit.plugins.fcm.server.GetPipeline;
 import com.ruesga.gerrit.plugins.fcm.server.GetToken;
+import com.ruesga.gerrit.plugins.fcm.server.GetTopic;
+import com.ruesga.gerrit.plugins.fcm.server.ListDeadLetters;
+import com.ruesga.gerrit.plugins.fcm.server.ListTraces;
 import com.ruesga.gerrit.plugins.fcm.server.PostToken;
+import com.ruesga.gerrit.plugins.fcm.server.PostTokens;
+import com.ruesga.gerrit.plugins.fcm.server.PostTopic;
+import com.ruesga.gerrit.plugins.fcm.server.ReplayDeadLetters;
 import com.ruesga.gerrit.plugins.fcm.server.Tokens;
+import com.ruesga.gerrit.plugins.fcm.server.Topics;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
 
 
@@ -62,16 +81,49 @@ public class ApiModule extends RestApiModule {
 
     public static final String DEVICES_ENTRY_POINT = "devices";
     public static final String TOKEN_ENTRY_POINT = "tokens";
+    public static final String BULK_TOKENS_ENTRY_POINT = "bulk-tokens";
+    public static final String TOPICS_ENTRY_POINT = "topics";
+    public static final String TRACES_ENTRY_POINT = "traces";
+    public static final String PIPELINE_ENTRY_POINT = "pipeline";
+    public static final String DEAD_LETTERS_ENTRY_POINT = "dead-letters";
+
+    private final Configuration config;
+
+    @Inject
+    public ApiModule(
+            @PluginName String pluginName,
+            PluginConfigFactory cfgFactory) {
+        super();
+        this.config = new Configuration(
+                pluginName, cfgFactory.getFromGerritConfig(pluginName));
+    }
 
     @Override
     protected void configure() {
         bind(DatabaseManager.class).in(Scopes.SINGLETON);
-        bind(Configuration.class).in(Scopes.SINGLETON);
+        bind(Configuration.class).toInstance(config);
+        bind(ClusterManager.class).in(Scopes.SINGLETON);
         bind(FcmUploaderWorker.class).in(Scopes.SINGLETON);
+        bind(NotificationTracer.class).in(Scopes.SINGLETON);
+        bind(TopicManager.class).in(Scopes.SINGLETON);
+        bind(DeviceGroupManager.class).in(Scopes.SINGLETON);
+        bind(VisibilityCache.class).in(Scopes.SINGLETON);
+        bind(RecipientCache.class).in(Scopes.SINGLETON);
 
-        // Configure listener handlers
         DynamicSet.bind(binder(), LifecycleListener.class)
                 .to(LifeCycleHandler.class);
+        configureRestApi();
+
+        // Only primaries dispatch notifications. Replicas ignore the events
+        if (!config.isReplica()) {
+            configureEventHandlers();
+        }
+    }
+
+    private void configureEventHandlers() {
+        bind(RecipientResolver.class).in(Scopes.SINGLETON);
+
+        // Configure listener handlers
         DynamicSet.bind(binder(), AssigneeChangedListener.class)
                 .to(AssigneeChangedEventHandler.class);
         DynamicSet.bind(binder(), ChangeAbandonedListener.class)
@@ -97,13 +149,32 @@ public class ApiModule extends RestApiModule {
         DynamicSet.bind(binder(), TopicEditedListener.class)
                 .to(TopicEditedEventHandler.class);
 
+        // Invalidate the visibility of the watchers
+        DynamicSet.bind(binder(), GroupMemberAuditListener.class)
+                .to(VisibilityCache.class);
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
+                .to(VisibilityCache.class);
+    }
+
+    private void configureRestApi() {
         // Configure the Rest API
         DynamicMap.mapOf(binder(), DEVICE_KIND);
         DynamicMap.mapOf(binder(), TOKEN_KIND);
+        DynamicMap.mapOf(binder(), TOPIC_KIND);
         child(ACCOUNT_KIND, DEVICES_ENTRY_POINT).to(Devices.class);
         child(DEVICE_KIND, TOKEN_ENTRY_POINT).to(Tokens.class);
         get(TOKEN_KIND).to(GetToken.class);
         post(DEVICE_KIND, TOKEN_ENTRY_POINT).to(PostToken.class);
+        post(DEVICE_KIND, BULK_TOKENS_ENTRY_POINT).to(PostTokens.class);
         delete(TOKEN_KIND).to(DeleteToken.class);
+        child(TOKEN_KIND, TOPICS_ENTRY_POINT).to(Topics.class);
+        get(TOPIC_KIND).to(GetTopic.class);
+        post(TOKEN_KIND, TOPICS_ENTRY_POINT).to(PostTopic.class);
+        delete(TOPIC_KIND).to(DeleteTopic.class);
+        get(CONFIG_KIND, TRACES_ENTRY_POINT).to(ListTraces.class);
+        get(CONFIG_KIND, PIPELINE_ENTRY_POINT).to(GetPipeline.class);
+        get(CONFIG_KIND, DEAD_LETTERS_ENTRY_POINT).to(ListDeadLetters.class);
+        post(CONFIG_KIND, DEAD_LETTERS_ENTRY_POINT)
+                .to(ReplayDeadLetters.class);
     }
 }
\ No newline at end of file
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+
+/**
+ * Coordinates the notification dispatch between all the Gerrit nodes
+ * sharing the same plugin database, so every notification is sent only
+ * once.
+ *
+ * Every node advertises itself by a heartbeat in the database. Accounts
+ * are distributed between the live nodes using rendezvous hashing, so
+ * the load is spread across the cluster and only the accounts of a
+ * dead node are moved to the others. The owner is only a preference:
+ * the node views can differ for a while when a node joins or leaves the
+ * cluster (ie. a dead node is still inside its lease), so the next node in
+ * the ranking of an account (its successor) takes it over after a delay.
+ * Every node claims the dispatch of an event to an account in the database
+ * before sending it, so only the first claim (normally the owner's) is
+ * sent.
+ */
+@Singleton
+public class ClusterManager {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(ClusterManager.class);
+
+    // Missed heartbeats before consider a node dead
+    private static final int LEASE_HEARTBEATS = 3;
+
+    // How much time to keep the dispatch claims (in milliseconds)
+    private static final long CLAIMS_RETENTION = TimeUnit.HOURS.toMillis(1);
+
+    private final String pluginName;
+    private final Configuration config;
+    private final DatabaseManager db;
+    private final AtomicLong takeovers = new AtomicLong();
+    private volatile String[] liveNodes;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    @Inject
+    public ClusterManager(
+            @PluginName String pluginName,
+            Configuration config,
+            DatabaseManager db) {
+        super();
+        this.pluginName = pluginName;
+        this.config = config;
+        this.db = db;
+        this.liveNodes = new String[]{config.clusterNodeId};
+    }
+
+    public void start() {
+        if (!config.clusterEnabled) {
+            return;
+        }
+
+        heartbeat();
+        this.heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.heartbeatExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, config.clusterHeartbeatInterval,
+                config.clusterHeartbeatInterval, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (this.heartbeatExecutor == null) {
+            return;
+        }
+
+        this.heartbeatExecutor.shutdownNow();
+        this.heartbeatExecutor = null;
+
+        // Leave the cluster, so other nodes can take over our accounts
+        // without waiting for our lease to expire
+        db.removeClusterNode(config.clusterNodeId);
+    }
+
+    /**
+     * Returns whether this node is the preferred one to dispatch the
+     * notifications of an account. The rest of nodes only dispatch them
+     * after the takeover delay, if the owner didn't claim them.
+     */
+    public boolean isOwner(int accountId) {
+        return !config.clusterEnabled || rank(accountId) == 0;
+    }
+
+    /**
+     * Returns whether this node is the next one after the owner in the
+     * ranking of an account, so it takes over the notifications of the
+     * account if the owner didn't claim them. The rest of nodes ignore
+     * them.
+     */
+    public boolean isSuccessor(int accountId) {
+        return config.clusterEnabled && rank(accountId) == 1;
+    }
+
+    /**
+     * Returns how many live nodes rank higher than this node for an
+     * account (0 for the owner).
+     */
+    private int rank(int accountId) {
+        String[] nodes = this.liveNodes;
+        long ownWeight = weight(config.clusterNodeId, accountId);
+        int rank = 0;
+        for (String node : nodes) {
+            if (node.equals(config.clusterNodeId)) {
+                continue;
+            }
+            long weight = weight(node, accountId);
+            if (weight > ownWeight || (weight == ownWeight
+                    && node.compareTo(config.clusterNodeId) < 0)) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Claims the dispatch of the notification to an account. Returns
+     * false if other node already did it.
+     */
+    public boolean claim(int accountId, Notification notification) {
+        if (!config.clusterEnabled) {
+            return true;
+        }
+
+        boolean claimed = db.claimDispatch(dispatchKey(notification),
+                accountId, config.clusterNodeId, System.currentTimeMillis());
+        if (!claimed && log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "[%s] Event %s to %d was already dispatched by other node",
+                    pluginName, dispatchKey(notification), accountId));
+        }
+        return claimed;
+    }
+
+    /**
+     * Claims the dispatch of the notification to an account owned by other
+     * node, once the takeover delay elapsed. Returns false if other node
+     * (normally the owner) already did it.
+     */
+    public boolean takeover(int accountId, Notification notification) {
+        boolean claimed = claim(accountId, notification);
+        if (claimed) {
+            // The owner is dead or didn't receive the event
+            takeovers.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "[%s] Event %s to %d taken over from other node",
+                        pluginName, dispatchKey(notification), accountId));
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Returns how long (in milliseconds) a node waits before taking over
+     * the notifications of the accounts owned by other node.
+     */
+    public long getTakeoverDelay() {
+        return TimeUnit.SECONDS.toMillis(config.clusterHeartbeatInterval);
+    }
+
+    /**
+     * Returns the notifications taken over from other nodes since the
+     * plugin was started.
+     */
+    public long getTakeovers() {
+        return takeovers.get();
+    }
+
+    private void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            long lease = TimeUnit.SECONDS.toMillis(
+                    config.clusterHeartbeatInterval * LEASE_HEARTBEATS);
+            db.heartbeatClusterNode(config.clusterNodeId, now);
+
+            List<String> nodes = db.getLiveClusterNodes(now - lease);
+            if (!nodes.contains(config.clusterNodeId)) {
+                nodes.add(config.clusterNodeId);
+            }
+            this.liveNodes = nodes.toArray(new String[nodes.size()]);
+
+            db.purgeDispatchClaims(now - CLAIMS_RETENTION);
+        } catch (Throwable ex) {
+            log.warn(String.format(
+                    "[%s] Cluster heartbeat failed", pluginName), ex);
+        }
+    }
+
+    // The key must be the same in all the nodes that received the event,
+    // so it's only built from the identity of the event, and not from its
+    // rendered content
+    private static String dispatchKey(Notification notification) {
+        return notification.event
+                + ":" + notification.legacyChangeId
+                + ":" + notification.eventTime
+                + ":" + (notification.who != null
+                        ? notification.who.accountId : null)
+                + ":" + notification.revision;
+    }
+
+    // Rendezvous hashing weight (murmur3 finalizer mix)
+    private static long weight(String node, int accountId) {
+        long h = node.hashCode() * 0x9E3779B97F4A7C15L + accountId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e2a3fea7fL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -15,14 +15,24 @@
  */
 package com.ruesga.gerrit.plugins.fcm;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
 
 @Singleton
 public class Configuration {
@@ -30,36 +40,283 @@ public class Configuration {
     private static final Logger log =
             LoggerFactory.getLogger(Configuration.class);
 
+    public enum NodeRole {
+        PRIMARY,
+        REPLICA
+    }
+
     public static final String DEFAULT_SERVER_URL =
             "https://fcm.googleapis.com/fcm/send";
+    public static final int DEFAULT_CLUSTER_HEARTBEAT_INTERVAL = 10;
+    public static final int DEFAULT_REGISTRY_FLUSH_INTERVAL = 250;
+    public static final int DEFAULT_TRACE_BUFFER_SIZE = 500;
+    public static final int DEFAULT_TIME_TO_LIVE = 28800; // 8 hours
+    public static final int MAX_TIME_TO_LIVE = 2419200; // 4 weeks (FCM max)
+    public static final String DEFAULT_TOPIC_PREFIX = "gerrit";
+    public static final String DEFAULT_INSTANCE_ID_URL =
+            "https://iid.googleapis.com/iid/v1";
+    public static final int DEFAULT_DIGEST_INTERVAL = 3600; // 1 hour
+    public static final int DEFAULT_DIGEST_MAX_CHANGES = 25;
+    public static final int DEFAULT_VISIBILITY_CACHE_TTL = 60; // 1 minute
+    public static final int DEFAULT_VISIBILITY_CACHE_SIZE = 10000;
+    public static final int DEFAULT_RECIPIENT_CACHE_TTL = 60; // 1 minute
+    public static final int DEFAULT_WATCHER_PARALLELISM =
+            Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_MAX_SEND_ATTEMPTS = 10;
+    public static final int DEFAULT_DEAD_LETTER_MAX_SIZE = 5000;
+    public static final int DEFAULT_DEAD_LETTER_MAX_AGE = 604800; // 1 week
+    public static final int DEFAULT_DEAD_LETTER_REPLAY_RATE = 10;
+    public static final String DEFAULT_DEVICE_GROUP_URL =
+            "https://fcm.googleapis.com/fcm/notification";
 
     public static final String PROP_DATABASE_PATH = "databasePath";
+    public static final String PROP_DATABASE_URL = "databaseUrl";
     public static final String PROP_SERVER_URL = "serverUrl";
     public static final String PROP_SERVER_TOKEN = "serverToken";
+    public static final String PROP_NODE_ROLE = "nodeRole";
+    public static final String PROP_REGISTRY_FLUSH_INTERVAL =
+            "registryFlushInterval";
+    public static final String PROP_CLUSTER_ENABLED = "clusterEnabled";
+    public static final String PROP_CLUSTER_NODE_ID = "clusterNodeId";
+    public static final String PROP_CLUSTER_HEARTBEAT_INTERVAL =
+            "clusterHeartbeatInterval";
+    public static final String PROP_TRACE_BUFFER_SIZE = "traceBufferSize";
+    public static final String PROP_TIME_TO_LIVE = "timeToLive";
+    public static final String PROP_COLLAPSE_KEYS = "collapseKeys";
+    public static final String PROP_PROJECT_TOPICS = "projectTopics";
+    public static final String PROP_TOPIC_PREFIX = "topicPrefix";
+    public static final String PROP_INSTANCE_ID_URL = "instanceIdUrl";
+    public static final String PROP_DEVICE_GROUPS = "deviceGroups";
+    public static final String PROP_SENDER_ID = "senderId";
+    public static final String PROP_DEVICE_GROUP_URL = "deviceGroupUrl";
+    public static final String PROP_DIGEST_INTERVAL = "digestInterval";
+    public static final String PROP_DIGEST_MAX_CHANGES = "digestMaxChanges";
+    public static final String PROP_VISIBILITY_CACHE_TTL =
+            "visibilityCacheTtl";
+    public static final String PROP_VISIBILITY_CACHE_SIZE =
+            "visibilityCacheSize";
+    public static final String PROP_RECIPIENT_CACHE_TTL = "recipientCacheTtl";
+    public static final String PROP_WATCHER_PARALLELISM =
+            "watcherParallelism";
+    public static final String PROP_MAX_SEND_ATTEMPTS = "maxSendAttempts";
+    public static final String PROP_DEAD_LETTER_MAX_SIZE = "deadLetterMaxSize";
+    public static final String PROP_DEAD_LETTER_MAX_AGE = "deadLetterMaxAge";
+    public static final String PROP_DEAD_LETTER_REPLAY_RATE =
+            "deadLetterReplayRate";
+
+    /**
+     * The names of the events, used to configure per-event properties
+     * (ie. timeToLiveCommentAdded).
+     */
+    public static final Map<Integer, String> EVENT_NAMES;
+    static {
+        Map<Integer, String> names = new LinkedHashMap<>();
+        names.put(CloudNotificationEvents.CHANGE_ABANDONED_EVENT,
+                "ChangeAbandoned");
+        names.put(CloudNotificationEvents.CHANGE_MERGED_EVENT,
+                "ChangeMerged");
+        names.put(CloudNotificationEvents.CHANGE_RESTORED_EVENT,
+                "ChangeRestored");
+        names.put(CloudNotificationEvents.CHANGE_REVERTED_EVENT,
+                "ChangeReverted");
+        names.put(CloudNotificationEvents.COMMENT_ADDED_EVENT,
+                "CommentAdded");
+        names.put(CloudNotificationEvents.DRAFT_PUBLISHED_EVENT,
+                "DraftPublished");
+        names.put(CloudNotificationEvents.HASHTAG_CHANGED_EVENT,
+                "HashtagChanged");
+        names.put(CloudNotificationEvents.REVIEWER_ADDED_EVENT,
+                "ReviewerAdded");
+        names.put(CloudNotificationEvents.REVIEWER_DELETED_EVENT,
+                "ReviewerDeleted");
+        names.put(CloudNotificationEvents.PATCHSET_CREATED_EVENT,
+                "PatchsetCreated");
+        names.put(CloudNotificationEvents.TOPIC_CHANGED_EVENT,
+                "TopicChanged");
+        names.put(CloudNotificationEvents.ASSIGNEE_CHANGED_EVENT,
+                "AssigneeChanged");
+        EVENT_NAMES = Collections.unmodifiableMap(names);
+    }
 
     public final String databasePath;
+    public final String databaseUrl;
     public final String serverToken;
     public final String serverUrl;
+    public final NodeRole nodeRole;
+    public final int registryFlushInterval;
+    public final boolean clusterEnabled;
+    public final String clusterNodeId;
+    public final int clusterHeartbeatInterval;
+    public final int traceBufferSize;
+    public final int timeToLive;
+    public final boolean collapseKeys;
+    public final boolean projectTopics;
+    public final String topicPrefix;
+    public final String instanceIdUrl;
+    public final boolean deviceGroups;
+    public final String senderId;
+    public final String deviceGroupUrl;
+    public final int digestInterval;
+    public final int digestMaxChanges;
+    public final int visibilityCacheTtl;
+    public final int visibilityCacheSize;
+    public final int recipientCacheTtl;
+    public final int watcherParallelism;
+    public final int maxSendAttempts;
+    public final int deadLetterMaxSize;
+    public final int deadLetterMaxAge;
+    public final int deadLetterReplayRate;
+    private final Map<Integer, Integer> eventTimeToLives;
 
     @Inject
     public Configuration(
             @PluginName String pluginName,
             PluginConfigFactory cfgFactory) {
-        PluginConfig cfg = cfgFactory.getFromGerritConfig(pluginName);
+        this(pluginName, cfgFactory.getFromGerritConfig(pluginName));
+    }
+
+    public Configuration(String pluginName, PluginConfig cfg) {
         this.databasePath = cfg.getString(PROP_DATABASE_PATH);
+        this.databaseUrl = cfg.getString(PROP_DATABASE_URL);
         this.serverToken = cfg.getString(PROP_SERVER_TOKEN);
         String serverUrl = cfg.getString(PROP_SERVER_URL);
         if (serverUrl == null || serverUrl.isEmpty()) {
             serverUrl = Configuration.DEFAULT_SERVER_URL;
         }
         this.serverUrl = serverUrl;
+        this.nodeRole = cfg.getEnum(PROP_NODE_ROLE, NodeRole.PRIMARY);
+        this.registryFlushInterval = Math.max(1, cfg.getInt(
+                PROP_REGISTRY_FLUSH_INTERVAL,
+                DEFAULT_REGISTRY_FLUSH_INTERVAL));
+
+        this.clusterEnabled = cfg.getBoolean(PROP_CLUSTER_ENABLED, false);
+        String clusterNodeId = cfg.getString(PROP_CLUSTER_NODE_ID);
+        if (clusterNodeId == null || clusterNodeId.isEmpty()) {
+            clusterNodeId = getDefaultNodeId();
+        }
+        this.clusterNodeId = clusterNodeId;
+        this.clusterHeartbeatInterval = Math.max(1, cfg.getInt(
+                PROP_CLUSTER_HEARTBEAT_INTERVAL,
+                DEFAULT_CLUSTER_HEARTBEAT_INTERVAL));
+        this.traceBufferSize = Math.max(0, cfg.getInt(
+                PROP_TRACE_BUFFER_SIZE, DEFAULT_TRACE_BUFFER_SIZE));
+
+        this.timeToLive = getTimeToLive(
+                cfg, PROP_TIME_TO_LIVE, DEFAULT_TIME_TO_LIVE);
+        this.eventTimeToLives = new HashMap<>();
+        for (Map.Entry<Integer, String> event : EVENT_NAMES.entrySet()) {
+            this.eventTimeToLives.put(event.getKey(), getTimeToLive(cfg,
+                    PROP_TIME_TO_LIVE + event.getValue(), this.timeToLive));
+        }
+        this.collapseKeys = cfg.getBoolean(PROP_COLLAPSE_KEYS, true);
+
+        this.projectTopics = cfg.getBoolean(PROP_PROJECT_TOPICS, false);
+        this.topicPrefix = cfg.getString(
+                PROP_TOPIC_PREFIX, DEFAULT_TOPIC_PREFIX);
+        String instanceIdUrl = cfg.getString(PROP_INSTANCE_ID_URL);
+        if (instanceIdUrl == null || instanceIdUrl.isEmpty()) {
+            instanceIdUrl = DEFAULT_INSTANCE_ID_URL;
+        }
+        this.instanceIdUrl = instanceIdUrl;
+
+        this.deviceGroups = cfg.getBoolean(PROP_DEVICE_GROUPS, false);
+        this.senderId = cfg.getString(PROP_SENDER_ID);
+        String deviceGroupUrl = cfg.getString(PROP_DEVICE_GROUP_URL);
+        if (deviceGroupUrl == null || deviceGroupUrl.isEmpty()) {
+            deviceGroupUrl = DEFAULT_DEVICE_GROUP_URL;
+        }
+        this.deviceGroupUrl = deviceGroupUrl;
+        if (this.deviceGroups
+                && (this.senderId == null || this.senderId.isEmpty())) {
+            log.warn(String.format("[%s] Device groups require the %s "
+                    + "property. Device groups disabled.",
+                    pluginName, PROP_SENDER_ID));
+        }
+
+        String digestInterval = cfg.getString(PROP_DIGEST_INTERVAL);
+        this.digestInterval = digestInterval == null
+                || digestInterval.isEmpty()
+                ? DEFAULT_DIGEST_INTERVAL
+                : (int) Math.max(60, ConfigUtil.getTimeUnit(digestInterval,
+                        DEFAULT_DIGEST_INTERVAL, TimeUnit.SECONDS));
+        this.digestMaxChanges = Math.max(1, cfg.getInt(
+                PROP_DIGEST_MAX_CHANGES, DEFAULT_DIGEST_MAX_CHANGES));
+
+        String visibilityCacheTtl = cfg.getString(PROP_VISIBILITY_CACHE_TTL);
+        this.visibilityCacheTtl = visibilityCacheTtl == null
+                || visibilityCacheTtl.isEmpty()
+                ? DEFAULT_VISIBILITY_CACHE_TTL
+                : (int) Math.max(0, ConfigUtil.getTimeUnit(visibilityCacheTtl,
+                        DEFAULT_VISIBILITY_CACHE_TTL, TimeUnit.SECONDS));
+        this.visibilityCacheSize = Math.max(0, cfg.getInt(
+                PROP_VISIBILITY_CACHE_SIZE, DEFAULT_VISIBILITY_CACHE_SIZE));
+
+        String recipientCacheTtl = cfg.getString(PROP_RECIPIENT_CACHE_TTL);
+        this.recipientCacheTtl = recipientCacheTtl == null
+                || recipientCacheTtl.isEmpty()
+                ? DEFAULT_RECIPIENT_CACHE_TTL
+                : (int) Math.max(0, ConfigUtil.getTimeUnit(recipientCacheTtl,
+                        DEFAULT_RECIPIENT_CACHE_TTL, TimeUnit.SECONDS));
+        this.watcherParallelism = Math.max(1, cfg.getInt(
+                PROP_WATCHER_PARALLELISM, DEFAULT_WATCHER_PARALLELISM));
+        this.maxSendAttempts = Math.max(1, cfg.getInt(
+                PROP_MAX_SEND_ATTEMPTS, DEFAULT_MAX_SEND_ATTEMPTS));
+        this.deadLetterMaxSize = Math.max(0, cfg.getInt(
+                PROP_DEAD_LETTER_MAX_SIZE, DEFAULT_DEAD_LETTER_MAX_SIZE));
+        String deadLetterMaxAge = cfg.getString(PROP_DEAD_LETTER_MAX_AGE);
+        this.deadLetterMaxAge = deadLetterMaxAge == null
+                || deadLetterMaxAge.isEmpty()
+                ? DEFAULT_DEAD_LETTER_MAX_AGE
+                : (int) Math.max(0, ConfigUtil.getTimeUnit(deadLetterMaxAge,
+                        DEFAULT_DEAD_LETTER_MAX_AGE, TimeUnit.SECONDS));
+        this.deadLetterReplayRate = Math.max(1, cfg.getInt(
+                PROP_DEAD_LETTER_REPLAY_RATE, DEFAULT_DEAD_LETTER_REPLAY_RATE));
 
         if (!isEnabled()) {
             log.info(String.format("[%s] Plugin disabled.", pluginName));
         }
+        if (isReplica()) {
+            log.info(String.format(
+                    "[%s] Running as replica. Dispatch disabled.", pluginName));
+        } else if (this.clusterEnabled) {
+            log.info(String.format("[%s] Cluster dispatch enabled. Node: %s",
+                    pluginName, this.clusterNodeId));
+        }
     }
 
     public boolean isEnabled() {
         return this.serverToken != null && !this.serverToken.isEmpty();
     }
+
+    public boolean isReplica() {
+        return this.nodeRole == NodeRole.REPLICA;
+    }
+
+    /**
+     * Returns how long (in seconds) FCM keeps the notifications of an event
+     * while the device is offline.
+     */
+    public int getTimeToLive(int event) {
+        Integer ttl = this.eventTimeToLives.get(event);
+        return ttl != null ? ttl : this.timeToLive;
+    }
+
+    private static int getTimeToLive(
+            PluginConfig cfg, String name, int defaultValue) {
+        String value = cfg.getString(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        long ttl = ConfigUtil.getTimeUnit(
+                value, defaultValue, TimeUnit.SECONDS);
+        return (int) Math.max(0, Math.min(MAX_TIME_TO_LIVE, ttl));
+    }
+
+    private static String getDefaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            return "localhost";
+        }
+    }
 }
@@ -22,7 +22,20 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.h2.jdbcx.JdbcConnectionPool;
 import org.h2.jdbcx.JdbcDataSource;
@@ -30,12 +43,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.common.base.Supplier;
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.DeadLetterErrorInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.PipelineDatabaseInfo;
 
 @Singleton
 public class DatabaseManager {
@@ -44,52 +65,408 @@ public class DatabaseManager {
             LoggerFactory.getLogger(Configuration.class);
 
     private static final String DATABASE_NAME = "cloud-notifications";
+    private static final String SQL_STATE_INTEGRITY_CONSTRAINT_VIOLATION =
+            "23";
 
-    private final File dbFile;
+    // Flush the registry mutations before the interval if there are too many
+    private static final int MAX_PENDING_MUTATIONS = 1000;
+
+    // Failed writes of a registry mutation before it's discarded
+    private static final int MAX_MUTATION_FAILURES = 5;
+
+    // The size of the data column of the registrations
+    private static final int MAX_REGISTRATION_SIZE = 4000;
+
+    // The events of a registration stored before they had their own column
+    private static final int UNKNOWN_EVENTS = -1;
+
+    // The max number of stored registrations versions kept in memory
+    private static final int MAX_CACHED_VERSIONS = 10000;
+
+    // How often the registered events are reloaded from a shared database
+    private static final long REGISTERED_EVENTS_RELOAD_INTERVAL =
+            TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * A registration subscribed to the topics of a project.
+     */
+    public static class TopicSubscriber {
+        public final int accountId;
+        public final String device;
+        public final String token;
+        public final String project;
+        // The events notified by the watch of the project when subscribed
+        // (-1 for the subscriptions of previous versions)
+        public final int watchedEvents;
+
+        public TopicSubscriber(int accountId, String device, String token,
+                String project, int watchedEvents) {
+            this.accountId = accountId;
+            this.device = device;
+            this.token = token;
+            this.project = project;
+            this.watchedEvents = watchedEvents;
+        }
+    }
+
+    /**
+     * A notification that FCM permanently rejected or that exhausted its
+     * retries, kept to be replayed.
+     */
+    public static class DeadLetter {
+        public long id;
+        public int accountId;
+        public String device;
+        public String token;
+        public String error;
+        public long failedOn;
+        public int attempts;
+        public int legacyChangeId;
+        // The json encoded FCM request
+        public String data;
+    }
+
+    /**
+     * A FCM device group of the registrations of an account that receive
+     * the same messages.
+     */
+    public static class DeviceGroup {
+        public String key;
+        public String name;
+        public String notificationKey;
+        public List<String> devices;
+    }
+
+    /**
+     * A pending write or removal of a registration.
+     */
+    private static class Mutation {
+        final int accountId;
+        final String device;
+        final String token;
+        final String data; // null if the registration was removed
+        final int events;
+        final long enqueuedOn;
+        final int failures;
+
+        Mutation(int accountId, String device, String token, String data,
+                int events) {
+            this(accountId, device, token, data, events,
+                    System.currentTimeMillis(), 0);
+        }
+
+        private Mutation(int accountId, String device, String token,
+                String data, int events, long enqueuedOn, int failures) {
+            this.accountId = accountId;
+            this.device = device;
+            this.token = token;
+            this.data = data;
+            this.events = events;
+            this.enqueuedOn = enqueuedOn;
+            this.failures = failures;
+        }
+
+        Mutation mergedWith(Mutation previous) {
+            // The last mutation wins, but it's pending since the first one
+            return new Mutation(accountId, device, token, data, events,
+                    Math.min(enqueuedOn, previous.enqueuedOn), 0);
+        }
+
+        Mutation failed() {
+            return new Mutation(accountId, device, token, data, events,
+                    enqueuedOn, failures + 1);
+        }
+    }
+
+    /**
+     * A registrations version read from a shared database.
+     */
+    private static class StoredVersion {
+        final long version;
+        final long readOn;
+
+        StoredVersion(long version, long readOn) {
+            this.version = version;
+            this.readOn = readOn;
+        }
+    }
+
+    private final String databaseUrl;
+    private final boolean shared;
     private final String pluginName;
     private final Gson gson;
-    private JdbcConnectionPool connectionPool;
+    private final long epoch;
+    private final ConcurrentMap<Integer, AtomicLong> versions;
+    private final Map<Integer, StoredVersion> storedVersions;
+    private long storedVersionsGeneration;
+    private final long flushInterval;
+    private final int deadLetterMaxSize;
+    private final long deadLetterMaxAge;
+    private final Timer0 flushLag;
+    private final Counter0 droppedMutations;
+    private final Object mutationsLock = new Object();
+    private final Runnable flushTask;
+    private final RegisteredEvents registeredEvents = new RegisteredEvents();
+    private Map<Integer, Map<String, Mutation>> pendingMutations;
+    private Map<Integer, Map<String, Mutation>> flushingMutations;
+    private int pendingMutationsCount;
+    private boolean flushRequested;
+    private volatile JdbcConnectionPool connectionPool;
+    private volatile ScheduledExecutorService flushExecutor;
 
     @Inject
     public DatabaseManager(
             @PluginName String pluginName,
             @PluginData java.nio.file.Path path,
-            Configuration cfg) {
+            Configuration cfg,
+            MetricMaker metrics) {
         this.pluginName = pluginName;
         this.gson = new GsonBuilder().create();
+        this.epoch = System.currentTimeMillis();
+        this.versions = new ConcurrentHashMap<>();
+        this.storedVersions = new LinkedHashMap<Integer, StoredVersion>(
+                16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, StoredVersion> eldest) {
+                return size() > MAX_CACHED_VERSIONS;
+            }
+        };
+        this.flushInterval = cfg.registryFlushInterval;
+        this.deadLetterMaxSize = cfg.deadLetterMaxSize;
+        this.deadLetterMaxAge = TimeUnit.SECONDS.toMillis(cfg.deadLetterMaxAge);
+        this.pendingMutations = new HashMap<>();
+        this.flushingMutations = Collections.emptyMap();
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushMutations();
+                } catch (Throwable ex) {
+                    log.warn(String.format(
+                            "[%s] Failed to flush registry mutations",
+                            DatabaseManager.this.pluginName), ex);
+                }
+            }
+        };
+        this.droppedMutations = metrics.newCounter(
+                "registry/dropped_mutations",
+                new Description("Registry mutations discarded because they "
+                        + "couldn't be written to the database")
+                    .setCumulative()
+                    .setUnit("mutations"));
+        this.flushLag = metrics.newTimer("registry/flush_lag",
+                new Description("Time since a registry mutation is requested "
+                        + "until is written to the database")
+                    .setCumulative()
+                    .setUnit(Units.MILLISECONDS));
+        metrics.newCallbackMetric("registry/pending_mutations", Integer.class,
+                new Description("Registry mutations waiting to be written")
+                    .setGauge()
+                    .setUnit("mutations"),
+                new Supplier<Integer>() {
+                    @Override
+                    public Integer get() {
+                        synchronized (mutationsLock) {
+                            return pendingMutationsCount;
+                        }
+                    }
+                });
+        if (cfg.databaseUrl != null && !cfg.databaseUrl.isEmpty()) {
+            // A shared database (ie. a H2 tcp server used by all the nodes
+            // of a cluster). Let the driver deal with it.
+            this.databaseUrl = cfg.databaseUrl;
+            this.shared = true;
+            return;
+        }
+
+        File dbFile;
         if (cfg.databasePath != null && !cfg.databasePath.isEmpty()) {
-            this.dbFile = new File(cfg.databasePath);
+            dbFile = new File(cfg.databasePath);
         } else {
-            this.dbFile = new File(path.toFile(), DATABASE_NAME);
+            dbFile = new File(path.toFile(), DATABASE_NAME);
         }
 
-        boolean canWrite = (this.dbFile.exists() && this.dbFile.canWrite())
-                || (this.dbFile.getParentFile() != null
-                && this.dbFile.getParentFile().canWrite());
-        if (!canWrite) {
+        // Replicas never write to a local database
+        boolean canWrite = (dbFile.exists() && dbFile.canWrite())
+                || (dbFile.getParentFile() != null
+                && dbFile.getParentFile().canWrite());
+        if (!canWrite && !cfg.isReplica()) {
             log.warn(String.format(
                     "[%s] Database is not writeable.", pluginName));
             throw new IllegalArgumentException("Database is not writeable: "
-                    + this.dbFile.getAbsolutePath());
+                    + dbFile.getAbsolutePath());
         }
+        this.databaseUrl = "jdbc:h2:" + dbFile.getAbsolutePath();
+        this.shared = false;
     }
 
     public void initialize() {
         log.info(String.format("[%s] Initialize database [%s]...",
-                pluginName, this.dbFile.getAbsolutePath()));
+                pluginName, this.databaseUrl));
 
         JdbcDataSource ds = new JdbcDataSource();
-        ds.setURL("jdbc:h2:" + this.dbFile.getAbsolutePath());
+        ds.setURL(this.databaseUrl);
         this.connectionPool = JdbcConnectionPool.create(ds);
         createDatabaseIfNeeded();
+        loadRegisteredEvents();
+
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.flushExecutor.scheduleWithFixedDelay(this.flushTask,
+                this.flushInterval, this.flushInterval, TimeUnit.MILLISECONDS);
+        if (this.shared) {
+            // Registrations done through other nodes
+            this.flushExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadRegisteredEvents();
+                    } catch (Throwable ex) {
+                        log.warn(String.format(
+                                "[%s] Failed to reload the registered events",
+                                DatabaseManager.this.pluginName), ex);
+                    }
+                }
+            }, REGISTERED_EVENTS_RELOAD_INTERVAL,
+                    REGISTERED_EVENTS_RELOAD_INTERVAL, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void shutdown() {
-        this.connectionPool.dispose();
+        if (this.flushExecutor != null) {
+            this.flushExecutor.shutdown();
+            try {
+                this.flushExecutor.awaitTermination(
+                        this.flushInterval * 2, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            this.flushExecutor = null;
+
+            // Write the remaining mutations
+            this.flushTask.run();
+        }
+        if (this.connectionPool != null) {
+            this.connectionPool.dispose();
+            this.connectionPool = null;
+        }
+    }
+
+    /**
+     * Whether the database is shared with other nodes.
+     */
+    public boolean isShared() {
+        return this.shared;
+    }
+
+    public boolean isAvailable() {
+        return this.connectionPool != null;
+    }
+
+    public PipelineDatabaseInfo getPipelineInfo() {
+        PipelineDatabaseInfo info = new PipelineDatabaseInfo();
+        JdbcConnectionPool pool = this.connectionPool;
+        info.available = pool != null;
+        if (pool != null) {
+            info.activeConnections = pool.getActiveConnections();
+            info.maxConnections = pool.getMaxConnections();
+        }
+        synchronized (mutationsLock) {
+            info.pendingMutations = pendingMutationsCount;
+        }
+        return info;
+    }
+
+    /**
+     * Returns the version of the registrations of an account, or null if
+     * it can't be read. Without a shared database, every change of the
+     * registrations is done through this node, so the version is kept in
+     * memory. Otherwise, the version is stored in the database and bumped
+     * with every written change of the registrations (by any node), plus
+     * the changes of this node not written yet. The stored version is read
+     * again once per flush interval at most, as the changes of the other
+     * nodes aren't written before.
+     */
+    public String getRegistrationsVersion(int accountId) {
+        AtomicLong version = versions.get(accountId);
+        String local = Long.toHexString(epoch) + "-"
+                + (version == null ? 0 : version.get());
+        if (!this.shared) {
+            return local;
+        }
+
+        Long stored = getStoredVersion(accountId);
+        if (stored == null) {
+            return null;
+        }
+        if (!hasPendingMutations(accountId)) {
+            return Long.toString(stored);
+        }
+        return stored + "-" + local;
+    }
+
+    private Long getStoredVersion(int accountId) {
+        long now = System.currentTimeMillis();
+        long generation;
+        synchronized (this.storedVersions) {
+            StoredVersion cached = this.storedVersions.get(accountId);
+            if (cached != null && now - cached.readOn < this.flushInterval) {
+                return cached.version;
+            }
+            generation = this.storedVersionsGeneration;
+        }
+
+        long stored;
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("select version from " +
+                    "registration_versions where user = ?");
+            st.setInt(1, accountId);
+            rs = st.executeQuery();
+            stored = rs.next() ? rs.getLong("version") : 0;
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to obtain the registrations version of %d",
+                    this.pluginName, accountId), ex);
+            return null;
+        } finally {
+            safelyCloseResources(conn, st, rs);
+        }
+
+        synchronized (this.storedVersions) {
+            // Not cached if this node wrote a newer version while reading it
+            if (generation == this.storedVersionsGeneration) {
+                this.storedVersions.put(
+                        accountId, new StoredVersion(stored, now));
+            }
+        }
+        return stored;
+    }
+
+    private void invalidateStoredVersions(Collection<Integer> accounts) {
+        synchronized (this.storedVersions) {
+            this.storedVersionsGeneration++;
+            for (int accountId : accounts) {
+                this.storedVersions.remove(accountId);
+            }
+        }
     }
 
     public CloudNotificationInfo getCloudNotification(
             int accountId, String deviceId, String token) {
+        // Pending mutations take precedence over the stored data
+        Mutation mutation = getPendingMutations(accountId).get(
+                mutationKey(deviceId, token));
+        if (mutation != null) {
+            return mutation.data == null ? null
+                    : gson.fromJson(mutation.data, CloudNotificationInfo.class);
+        }
+
         Connection conn = null;
         PreparedStatement st = null;
         ResultSet rs = null;
@@ -117,19 +494,37 @@ public class DatabaseManager {
     }
 
     public List<CloudNotificationInfo> getCloudNotifications(int accountId) {
-        List<CloudNotificationInfo> notifications = new ArrayList<>();
+        return getCloudNotifications(accountId, null);
+    }
+
+    public List<CloudNotificationInfo> getCloudNotifications(
+            int accountId, String device) {
+        Map<String, Mutation> mutations = getPendingMutations(accountId);
+        Map<String, CloudNotificationInfo> notifications =
+                new LinkedHashMap<>();
         Connection conn = null;
         PreparedStatement st = null;
         ResultSet rs = null;
         try {
             conn = this.connectionPool.getConnection();
-            st = conn.prepareStatement("select * from notifications where " +
-                    "user = ?");
-            st.setInt(1, accountId);
+            if (device == null) {
+                st = conn.prepareStatement("select * from notifications " +
+                        "where user = ?");
+                st.setInt(1, accountId);
+            } else {
+                st = conn.prepareStatement("select * from notifications " +
+                        "where user = ? and device = ?");
+                st.setInt(1, accountId);
+                st.setString(2, device);
+            }
             rs = st.executeQuery();
             while (rs.next()) {
-                notifications.add(gson.fromJson(
+                String key = mutationKey(
+                        rs.getString("device"), rs.getString("token"));
+                if (!mutations.containsKey(key)) {
+                    notifications.put(key, gson.fromJson(
                         rs.getString("data"), CloudNotificationInfo.class));
+                }
             }
         } catch (SQLException ex) {
             log.warn(String.format(
@@ -139,94 +534,964 @@ public class DatabaseManager {
             safelyCloseResources(conn, st, rs);
         }
 
-        return notifications;
+        // Apply the pending mutations
+        for (Mutation mutation : mutations.values()) {
+            if (mutation.data != null
+                    && (device == null || device.equals(mutation.device))) {
+                notifications.put(mutationKey(mutation.device, mutation.token),
+                        gson.fromJson(mutation.data,
+                                CloudNotificationInfo.class));
+            }
+        }
+
+        return new ArrayList<>(notifications.values());
     }
 
-    public List<CloudNotificationInfo> getCloudNotifications(
-            int accountId, String device) {
-        List<CloudNotificationInfo> notifications = new ArrayList<>();
+    /**
+     * Returns whether a registration fits in its database row. Otherwise,
+     * its write would fail on every flush.
+     */
+    public boolean isStorable(CloudNotificationInfo notification) {
+        return gson.toJson(notification).length() <= MAX_REGISTRATION_SIZE;
+    }
+
+    public void registerCloudNotification(
+            int accountId, CloudNotificationInfo notification) {
+        enqueueMutation(new Mutation(accountId, notification.device,
+                notification.token, gson.toJson(notification),
+                notification.events));
+        // A replaced registration could have dropped some events, but
+        // checking more events than needed is harmless
+        registeredEvents.add(accountId, notification.events);
+    }
+
+    public void registerCloudNotifications(
+            int accountId, List<CloudNotificationInfo> notifications) {
+        for (CloudNotificationInfo notification : notifications) {
+            enqueueMutation(new Mutation(accountId, notification.device,
+                    notification.token, gson.toJson(notification),
+                    notification.events));
+            registeredEvents.add(accountId, notification.events);
+        }
+    }
+
+    public void unregisterCloudNotification(
+            int accountId, String deviceId, String token) {
+        enqueueMutation(new Mutation(accountId, deviceId, token, null, 0));
+        updateRegisteredEvents(accountId);
+    }
+
+    /**
+     * Returns whether any device registered an event. Without access to the
+     * database, all the events are considered registered.
+     */
+    public boolean isEventRegistered(int event) {
+        return !isAvailable() || (registeredEvents.getMask() & event) != 0;
+    }
+
+    /**
+     * Returns whether any device of an account registered an event.
+     */
+    public boolean isEventRegistered(int accountId, int event) {
+        return !isAvailable()
+                || (registeredEvents.getMask(accountId) & event) != 0;
+    }
+
+    /**
+     * Returns whether an account has any device registered to any event.
+     */
+    public boolean isRegistered(int accountId) {
+        return !isAvailable() || registeredEvents.isRegistered(accountId);
+    }
+
+    private void updateRegisteredEvents(int accountId) {
+        // Read without holding the registered events, so other accounts
+        // aren't blocked by the database
+        long since = registeredEvents.getUpdates();
+        registeredEvents.update(
+                accountId, getRegisteredEvents(accountId), since);
+    }
+
+    private int getRegisteredEvents(int accountId) {
+        int events = 0;
+        for (CloudNotificationInfo notification
+                : getCloudNotifications(accountId)) {
+            events |= notification.events;
+        }
+        return events;
+    }
+
+    private void loadRegisteredEvents() {
+        Map<Integer, Integer> events = new HashMap<>();
+        List<Mutation> unknown = new ArrayList<>();
+        registeredEvents.startReload();
         Connection conn = null;
         PreparedStatement st = null;
         ResultSet rs = null;
         try {
             conn = this.connectionPool.getConnection();
-            st = conn.prepareStatement("select * from notifications where " +
-                    "user = ? and device = ?");
+            st = conn.prepareStatement(
+                    "select user, device, token, events, data " +
+                    "from notifications");
+            rs = st.executeQuery();
+            while (rs.next()) {
+                int accountId = rs.getInt("user");
+                int registrationEvents = rs.getInt("events");
+                if (registrationEvents == UNKNOWN_EVENTS) {
+                    // Written before the events had their own column
+                    registrationEvents = gson.fromJson(rs.getString("data"),
+                            CloudNotificationInfo.class).events;
+                    unknown.add(new Mutation(accountId,
+                            rs.getString("device"), rs.getString("token"),
+                            null, registrationEvents));
+                }
+                Integer accountEvents = events.get(accountId);
+                events.put(accountId, (accountEvents != null
+                        ? accountEvents : 0) | registrationEvents);
+            }
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to load the registered events",
+                    this.pluginName), ex);
+            registeredEvents.cancelReload();
+            return;
+        } finally {
+            safelyCloseResources(conn, st, rs);
+        }
+
+        // Registrations not written yet, or updated while reading them,
+        // keep their current events
+        Set<Integer> pending = new HashSet<>();
+        synchronized (this.mutationsLock) {
+            pending.addAll(this.pendingMutations.keySet());
+            pending.addAll(this.flushingMutations.keySet());
+        }
+        registeredEvents.reset(events, pending);
+
+        if (!unknown.isEmpty()) {
+            storeRegisteredEvents(unknown);
+        }
+    }
+
+    /**
+     * Stores the events of the registrations read from their data, so
+     * they aren't parsed again in the next load.
+     */
+    private void storeRegisteredEvents(List<Mutation> registrations) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("update notifications set events = ? " +
+                    "where user = ? and device = ? and token = ? " +
+                    "and events = ?");
+            for (Mutation registration : registrations) {
+                st.setInt(1, registration.events);
+                st.setInt(2, registration.accountId);
+                st.setString(3, registration.device);
+                st.setString(4, registration.token);
+                st.setInt(5, UNKNOWN_EVENTS);
+                st.addBatch();
+            }
+            st.executeBatch();
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to store the registered events",
+                    this.pluginName), ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    private void enqueueMutation(Mutation mutation) {
+        boolean flushNow;
+        synchronized (this.mutationsLock) {
+            Map<String, Mutation> mutations =
+                    this.pendingMutations.get(mutation.accountId);
+            if (mutations == null) {
+                mutations = new LinkedHashMap<>();
+                this.pendingMutations.put(mutation.accountId, mutations);
+            }
+
+            // Merge with the pending mutation of the same registration
+            String key = mutationKey(mutation.device, mutation.token);
+            Mutation previous = mutations.remove(key);
+            if (previous != null) {
+                mutation = mutation.mergedWith(previous);
+            } else {
+                this.pendingMutationsCount++;
+            }
+            mutations.put(key, mutation);
+
+            flushNow = !this.flushRequested
+                    && this.pendingMutationsCount >= MAX_PENDING_MUTATIONS;
+            if (flushNow) {
+                this.flushRequested = true;
+            }
+        }
+        bumpRegistrationsVersion(mutation.accountId);
+
+        ScheduledExecutorService executor = this.flushExecutor;
+        if (flushNow && executor != null) {
+            executor.execute(this.flushTask);
+        }
+    }
+
+    private boolean hasPendingMutations(int accountId) {
+        synchronized (this.mutationsLock) {
+            return this.flushingMutations.containsKey(accountId)
+                    || this.pendingMutations.containsKey(accountId);
+        }
+    }
+
+    private Map<String, Mutation> getPendingMutations(int accountId) {
+        synchronized (this.mutationsLock) {
+            Map<String, Mutation> flushing =
+                    this.flushingMutations.get(accountId);
+            Map<String, Mutation> pending =
+                    this.pendingMutations.get(accountId);
+            if (flushing == null && pending == null) {
+                return Collections.emptyMap();
+            }
+
+            Map<String, Mutation> mutations = new HashMap<>();
+            if (flushing != null) {
+                mutations.putAll(flushing);
+            }
+            if (pending != null) {
+                mutations.putAll(pending);
+            }
+            return mutations;
+        }
+    }
+
+    /**
+     * Writes all the pending registry mutations in a single transaction.
+     * If the transaction fails, the mutations are written one by one, so
+     * a bad mutation doesn't block the rest.
+     */
+    private void flushMutations() {
+        final Map<Integer, Map<String, Mutation>> mutations;
+        synchronized (this.mutationsLock) {
+            this.flushRequested = false;
+            if (this.pendingMutations.isEmpty()) {
+                return;
+            }
+            mutations = this.pendingMutations;
+            this.flushingMutations = mutations;
+            this.pendingMutations = new HashMap<>();
+            this.pendingMutationsCount = 0;
+        }
+
+        List<Mutation> all = new ArrayList<>();
+        for (Map<String, Mutation> account : mutations.values()) {
+            all.addAll(account.values());
+        }
+        List<Mutation> failed = Collections.emptyList();
+        try {
+            writeMutations(all, mutations.keySet());
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to update notifications database",
+                    this.pluginName), ex);
+            if (isReachable()) {
+                // A bad mutation mustn't block the rest
+                failed = writeOneByOne(all);
+            } else {
+                // Retry all of them in the next flush, without counting
+                // the failure against them
+                failed = all;
+            }
+        }
+
+        long oldest = Long.MAX_VALUE;
+        for (Mutation mutation : all) {
+            oldest = Math.min(oldest, mutation.enqueuedOn);
+        }
+        if (failed.size() < all.size()) {
+            this.flushLag.record(System.currentTimeMillis() - oldest,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        Set<Integer> dropped = new HashSet<>();
+        synchronized (this.mutationsLock) {
+            // Give back the failed mutations not superseded in the
+            // meantime, so they are retried in the next flush
+            for (Mutation mutation : failed) {
+                Map<String, Mutation> pending =
+                        this.pendingMutations.get(mutation.accountId);
+                String key = mutationKey(mutation.device, mutation.token);
+                if (pending != null && pending.containsKey(key)) {
+                    continue;
+                }
+                if (mutation.failures >= MAX_MUTATION_FAILURES) {
+                    dropped.add(mutation.accountId);
+                    log.error(String.format(
+                            "[%s] Discarded registry mutation of %s (%d) "
+                                    + "after %d failed writes",
+                            this.pluginName, mutation.device,
+                            mutation.accountId, mutation.failures));
+                    this.droppedMutations.increment();
+                    continue;
+                }
+                if (pending == null) {
+                    pending = new LinkedHashMap<>();
+                    this.pendingMutations.put(mutation.accountId, pending);
+                }
+                pending.put(key, mutation);
+                this.pendingMutationsCount++;
+            }
+            this.flushingMutations = Collections.emptyMap();
+        }
+
+        // Readers no longer see the discarded mutations
+        for (int accountId : dropped) {
+            bumpRegistrationsVersion(accountId);
+            updateRegisteredEvents(accountId);
+        }
+    }
+
+    /**
+     * Writes the registry mutations in a transaction per mutation.
+     *
+     * @return the mutations that failed
+     */
+    private List<Mutation> writeOneByOne(List<Mutation> mutations) {
+        List<Mutation> failed = new ArrayList<>();
+        for (Mutation mutation : mutations) {
+            try {
+                writeMutations(Collections.singletonList(mutation),
+                        Collections.singleton(mutation.accountId));
+            } catch (SQLException ex) {
+                log.warn(String.format(
+                        "[%s] Failed to write registry mutation of %s (%d)",
+                        this.pluginName, mutation.device,
+                        mutation.accountId), ex);
+                failed.add(mutation.failed());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Returns whether the database can be queried.
+     */
+    private boolean isReachable() {
+        Connection conn = null;
+        Statement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.createStatement();
+            st.execute("select 1");
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    /**
+     * Writes registry mutations (and bumps the stored registrations version
+     * of their accounts) in a single transaction.
+     */
+    private void writeMutations(List<Mutation> mutations,
+            Collection<Integer> accounts) throws SQLException {
+        Connection conn = null;
+        PreparedStatement merge = null;
+        PreparedStatement delete = null;
+        PreparedStatement bump = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            conn.setAutoCommit(false);
+            merge = conn.prepareStatement("merge into notifications (user, " +
+                    "device, token, data, events) KEY(user, device, token) " +
+                    "VALUES (?, ?, ?, ?, ?)");
+            delete = conn.prepareStatement("delete from notifications where " +
+                    "user = ? and device = ? and token = ?");
+            for (Mutation mutation : mutations) {
+                PreparedStatement st = mutation.data != null
+                        ? merge : delete;
+                st.setInt(1, mutation.accountId);
+                st.setString(2, mutation.device);
+                st.setString(3, mutation.token);
+                if (mutation.data != null) {
+                    st.setString(4, mutation.data);
+                    st.setInt(5, mutation.events);
+                }
+                st.addBatch();
+            }
+            merge.executeBatch();
+            delete.executeBatch();
+            bump = bumpStoredVersions(conn, accounts);
+            conn.commit();
+            invalidateStoredVersions(accounts);
+        } catch (SQLException ex) {
+            safelyRollback(conn);
+            throw ex;
+        } finally {
+            safelyCloseResources(null, merge, null);
+            safelyCloseResources(null, bump, null);
+            safelyCloseResources(conn, delete, null);
+        }
+    }
+
+    /**
+     * Bumps the stored registrations version of the accounts, in the
+     * transaction of the connection.
+     */
+    private PreparedStatement bumpStoredVersions(
+            Connection conn, Collection<Integer> accounts)
+            throws SQLException {
+        PreparedStatement st = conn.prepareStatement("merge into " +
+                "registration_versions (user, version) KEY(user) " +
+                "select ?, coalesce(max(version), 0) + 1 from " +
+                "registration_versions where user = ?");
+        for (int accountId : accounts) {
             st.setInt(1, accountId);
-            st.setString(2, device);
+            st.setInt(2, accountId);
+            st.addBatch();
+        }
+        st.executeBatch();
+        return st;
+    }
+
+    private static String mutationKey(String device, String token) {
+        return device + "\n" + token;
+    }
+
+    public void heartbeatClusterNode(String node, long now) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("merge into cluster_nodes (node, " +
+                    "heartbeat) KEY(node) VALUES (?, ?)");
+            st.setString(1, node);
+            st.setLong(2, now);
+            st.execute();
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to update cluster node: %s",
+                    this.pluginName, node), ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    public List<String> getLiveClusterNodes(long since) {
+        List<String> nodes = new ArrayList<>();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("select node from cluster_nodes " +
+                    "where heartbeat >= ?");
+            st.setLong(1, since);
             rs = st.executeQuery();
             while (rs.next()) {
-                notifications.add(gson.fromJson(
-                        rs.getString("data"), CloudNotificationInfo.class));
+                nodes.add(rs.getString("node"));
             }
         } catch (SQLException ex) {
             log.warn(String.format(
-                    "[%s] Failed to access notifications database",
+                    "[%s] Failed to access cluster nodes",
                     this.pluginName), ex);
         } finally {
             safelyCloseResources(conn, st, rs);
         }
 
-        return notifications;
+        return nodes;
     }
 
-    public void registerCloudNotification(
-            int accountId, CloudNotificationInfo notification) {
+    public void removeClusterNode(String node) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("delete from cluster_nodes where " +
+                    "node = ?");
+            st.setString(1, node);
+            st.execute();
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to remove cluster node: %s",
+                    this.pluginName, node), ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    /**
+     * Claims the dispatch of an event to an account. Only one node will
+     * succeed claiming the same event/account pair. If the claim can't be
+     * stored (other than by a previous claim), it's considered successful.
+     */
+    public boolean claimDispatch(
+            String event, int accountId, String node, long now) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("insert into dispatch_claims (event, " +
+                    "user, node, claimedOn) VALUES (?, ?, ?, ?)");
+            st.setString(1, event);
+            st.setInt(2, accountId);
+            st.setString(3, node);
+            st.setLong(4, now);
+            st.execute();
+            return true;
+        } catch (SQLException ex) {
+            if (ex.getSQLState() != null && ex.getSQLState().startsWith(
+                    SQL_STATE_INTEGRITY_CONSTRAINT_VIOLATION)) {
+                // Already claimed by other node
+                return false;
+            }
+            // Better a duplicate than a notification lost by every node
+            log.warn(String.format(
+                    "[%s] Failed to claim event %s for account %d. "
+                    + "Sending it anyway", this.pluginName, event, accountId),
+                    ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+        return true;
+    }
+
+    public void purgeDispatchClaims(long before) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("delete from dispatch_claims where " +
+                    "claimedOn < ?");
+            st.setLong(1, before);
+            st.execute();
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to purge dispatch claims",
+                    this.pluginName), ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    public void addTopicSubscription(int accountId, String device,
+            String token, String project, int watchedEvents) {
         Connection conn = null;
         PreparedStatement st = null;
         try {
             conn = this.connectionPool.getConnection();
-            st = conn.prepareStatement("merge into notifications (user, " +
-                    "device, token, data) KEY(user, device, token) " +
-                    "VALUES (?, ?, ?, ?)");
+            st = conn.prepareStatement("merge into topic_subscriptions (" +
+                    "user, device, token, project, watchedEvents) " +
+                    "KEY(user, device, token, project) " +
+                    "VALUES (?, ?, ?, ?, ?)");
             st.setInt(1, accountId);
-            st.setString(2, notification.device);
-            st.setString(3, notification.token);
-            st.setString(4, gson.toJson(notification));
+            st.setString(2, device);
+            st.setString(3, token);
+            st.setString(4, project);
+            st.setInt(5, watchedEvents);
             st.execute();
         } catch (SQLException ex) {
             log.warn(String.format(
-                    "[%s] Failed to update device: %s",
-                    this.pluginName, notification.device), ex);
+                    "[%s] Failed to subscribe %d - %s - %s to project %s",
+                    this.pluginName, accountId, device, token, project), ex);
         } finally {
             safelyCloseResources(conn, st, null);
         }
     }
 
-    public void unregisterCloudNotification(
-            int accountId, String deviceId, String token) {
+    /**
+     * Removes a topic subscription of a registration, or all of them if
+     * project is null.
+     */
+    public void removeTopicSubscription(
+            int accountId, String device, String token, String project) {
         Connection conn = null;
         PreparedStatement st = null;
         try {
             conn = this.connectionPool.getConnection();
-            st = conn.prepareStatement("delete from notifications where " +
-                    "user = ? and device = ? and token = ?");
+            st = conn.prepareStatement("delete from topic_subscriptions " +
+                    "where user = ? and device = ? and token = ?" +
+                    (project != null ? " and project = ?" : ""));
             st.setInt(1, accountId);
-            st.setString(2, deviceId);
+            st.setString(2, device);
+            st.setString(3, token);
+            if (project != null) {
+                st.setString(4, project);
+            }
+            st.execute();
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to unsubscribe %d - %s - %s from project %s",
+                    this.pluginName, accountId, device, token, project), ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    /**
+     * Returns the topic subscriptions of a registration.
+     */
+    public List<TopicSubscriber> getTopicSubscriptions(
+            int accountId, String device, String token) {
+        List<TopicSubscriber> subscriptions = new ArrayList<>();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("select project, watchedEvents " +
+                    "from topic_subscriptions where user = ? and " +
+                    "device = ? and token = ? order by project");
+            st.setInt(1, accountId);
+            st.setString(2, device);
             st.setString(3, token);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                subscriptions.add(new TopicSubscriber(accountId, device,
+                        token, rs.getString("project"),
+                        rs.getInt("watchedEvents")));
+            }
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to obtain topic subscriptions of %d - %s - %s",
+                    this.pluginName, accountId, device, token), ex);
+        } finally {
+            safelyCloseResources(conn, st, rs);
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Returns the topic subscription of a registration to a project, or
+     * null if it isn't subscribed.
+     */
+    public TopicSubscriber getTopicSubscription(
+            int accountId, String device, String token, String project) {
+        for (TopicSubscriber subscription
+                : getTopicSubscriptions(accountId, device, token)) {
+            if (subscription.project.equals(project)) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the registrations subscribed to the topics of a project.
+     */
+    public List<TopicSubscriber> getTopicSubscribers(String project) {
+        List<TopicSubscriber> subscribers = new ArrayList<>();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("select user, device, token, " +
+                    "watchedEvents from topic_subscriptions where project = ?");
+            st.setString(1, project);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                subscribers.add(new TopicSubscriber(rs.getInt("user"),
+                        rs.getString("device"), rs.getString("token"),
+                        project, rs.getInt("watchedEvents")));
+            }
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to obtain topic subscribers of project %s",
+                    this.pluginName, project), ex);
+        } finally {
+            safelyCloseResources(conn, st, rs);
+        }
+        return subscribers;
+    }
+
+    public List<DeviceGroup> getDeviceGroups(int accountId) {
+        List<DeviceGroup> groups = new ArrayList<>();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("select data from device_groups " +
+                    "where user = ?");
+            st.setInt(1, accountId);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                groups.add(this.gson.fromJson(
+                        rs.getString("data"), DeviceGroup.class));
+            }
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to obtain device groups of %d",
+                    this.pluginName, accountId), ex);
+        } finally {
+            safelyCloseResources(conn, st, rs);
+        }
+        return groups;
+    }
+
+    public void saveDeviceGroup(int accountId, DeviceGroup group) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("merge into device_groups (" +
+                    "user, groupKey, data) KEY(user, groupKey) " +
+                    "VALUES (?, ?, ?)");
+            st.setInt(1, accountId);
+            st.setString(2, group.key);
+            st.setString(3, this.gson.toJson(group));
             st.execute();
         } catch (SQLException ex) {
             log.warn(String.format(
-                    "[%s] Failed to delete device: %s",
-                    this.pluginName, deviceId), ex);
+                    "[%s] Failed to save device group %s of %d",
+                    this.pluginName, group.name, accountId), ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    public void removeDeviceGroup(int accountId, String key) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("delete from device_groups " +
+                    "where user = ? and groupKey = ?");
+            st.setInt(1, accountId);
+            st.setString(2, key);
+            st.execute();
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to remove device group %s of %d",
+                    this.pluginName, key, accountId), ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    /**
+     * Stores a dead letter, dropping the oldest ones over the configured
+     * size or age.
+     */
+    public void addDeadLetter(DeadLetter letter) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("insert into dead_letters (user, " +
+                    "device, token, error, failedOn, attempts, " +
+                    "legacyChangeId, data) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            st.setInt(1, letter.accountId);
+            st.setString(2, letter.device);
+            st.setString(3, letter.token);
+            st.setString(4, letter.error);
+            st.setLong(5, letter.failedOn);
+            st.setInt(6, letter.attempts);
+            st.setInt(7, letter.legacyChangeId);
+            st.setString(8, letter.data);
+            st.execute();
+            st.close();
+
+            // Ids are sequential, so the newest letters are kept
+            st = conn.prepareStatement("delete from dead_letters where " +
+                    "failedOn < ? or id <= (select max(id) from " +
+                    "dead_letters) - ?");
+            st.setLong(1, letter.failedOn - this.deadLetterMaxAge);
+            st.setInt(2, this.deadLetterMaxSize);
+            st.execute();
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to store dead letter to %s",
+                    this.pluginName, letter.device), ex);
+        } finally {
+            safelyCloseResources(conn, st, null);
+        }
+    }
+
+    /**
+     * Returns the oldest dead letters (of an error, if not null).
+     */
+    public List<DeadLetter> getDeadLetters(String error, int limit) {
+        List<DeadLetter> letters = new ArrayList<>();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            if (error == null) {
+                st = conn.prepareStatement("select * from dead_letters " +
+                        "order by id limit ?");
+                st.setInt(1, limit);
+            } else {
+                st = conn.prepareStatement("select * from dead_letters " +
+                        "where error = ? order by id limit ?");
+                st.setString(1, error);
+                st.setInt(2, limit);
+            }
+            rs = st.executeQuery();
+            while (rs.next()) {
+                DeadLetter letter = new DeadLetter();
+                letter.id = rs.getLong("id");
+                letter.accountId = rs.getInt("user");
+                letter.device = rs.getString("device");
+                letter.token = rs.getString("token");
+                letter.error = rs.getString("error");
+                letter.failedOn = rs.getLong("failedOn");
+                letter.attempts = rs.getInt("attempts");
+                letter.legacyChangeId = rs.getInt("legacyChangeId");
+                letter.data = rs.getString("data");
+                letters.add(letter);
+            }
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to obtain dead letters",
+                    this.pluginName), ex);
+        } finally {
+            safelyCloseResources(conn, st, rs);
+        }
+        return letters;
+    }
+
+    /**
+     * Returns the number of dead letters, and when the oldest and newest
+     * of them failed, by error.
+     */
+    public Map<String, DeadLetterErrorInfo> getDeadLetterErrors() {
+        Map<String, DeadLetterErrorInfo> errors = new LinkedHashMap<>();
+        Connection conn = null;
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("select error, count(*) as letters, " +
+                    "min(failedOn) as oldest, max(failedOn) as newest " +
+                    "from dead_letters group by error order by letters desc");
+            rs = st.executeQuery();
+            while (rs.next()) {
+                DeadLetterErrorInfo info = new DeadLetterErrorInfo();
+                info.count = rs.getInt("letters");
+                info.oldest = rs.getLong("oldest");
+                info.newest = rs.getLong("newest");
+                errors.put(rs.getString("error"), info);
+            }
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to obtain dead letter errors",
+                    this.pluginName), ex);
+        } finally {
+            safelyCloseResources(conn, st, rs);
+        }
+        return errors;
+    }
+
+    /**
+     * Removes a dead letter. Only one node will succeed removing it, so
+     * only that node replays it.
+     */
+    public boolean removeDeadLetter(long id) {
+        Connection conn = null;
+        PreparedStatement st = null;
+        try {
+            conn = this.connectionPool.getConnection();
+            st = conn.prepareStatement("delete from dead_letters where " +
+                    "id = ?");
+            st.setLong(1, id);
+            return st.executeUpdate() > 0;
+        } catch (SQLException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to remove dead letter %d",
+                    this.pluginName, id), ex);
         } finally {
             safelyCloseResources(conn, st, null);
         }
+        return false;
+    }
+
+    private void bumpRegistrationsVersion(int accountId) {
+        AtomicLong version = versions.get(accountId);
+        if (version == null) {
+            AtomicLong newVersion = new AtomicLong();
+            version = versions.putIfAbsent(accountId, newVersion);
+            if (version == null) {
+                version = newVersion;
+            }
+        }
+        version.incrementAndGet();
     }
 
     private void createDatabaseIfNeeded() {
+        createTableIfNeeded(
+                "create table if not exists notifications (" +
+                "user int unsigned NOT NULL, " +
+                "device varchar(250) NOT NULL, " +
+                "token varchar(250) NOT NULL, " +
+                "data varchar(4000) NOT NULL," +
+                "events int NOT NULL default -1, " +
+                "primary key (user, device, token))");
+        createTableIfNeeded(
+                "alter table notifications add column if not exists " +
+                "events int NOT NULL default -1");
+        createTableIfNeeded(
+                "create table if not exists registration_versions (" +
+                "user int unsigned NOT NULL, " +
+                "version bigint NOT NULL, " +
+                "primary key (user))");
+        createTableIfNeeded(
+                "create table if not exists cluster_nodes (" +
+                "node varchar(250) NOT NULL, " +
+                "heartbeat bigint NOT NULL, " +
+                "primary key (node))");
+        createTableIfNeeded(
+                "create table if not exists dispatch_claims (" +
+                "event varchar(250) NOT NULL, " +
+                "user int unsigned NOT NULL, " +
+                "node varchar(250) NOT NULL, " +
+                "claimedOn bigint NOT NULL, " +
+                "primary key (event, user))");
+        createTableIfNeeded(
+                "create table if not exists topic_subscriptions (" +
+                "user int unsigned NOT NULL, " +
+                "device varchar(250) NOT NULL, " +
+                "token varchar(250) NOT NULL, " +
+                "project varchar(250) NOT NULL, " +
+                "watchedEvents int NOT NULL default -1, " +
+                "primary key (user, device, token, project))");
+        createTableIfNeeded(
+                "alter table topic_subscriptions add column if not exists " +
+                "watchedEvents int NOT NULL default -1");
+        createTableIfNeeded(
+                "create table if not exists device_groups (" +
+                "user int unsigned NOT NULL, " +
+                "groupKey varchar(250) NOT NULL, " +
+                "data varchar(16000) NOT NULL, " +
+                "primary key (user, groupKey))");
+        createTableIfNeeded(
+                "create table if not exists dead_letters (" +
+                "id bigint auto_increment NOT NULL, " +
+                "user int unsigned NOT NULL, " +
+                "device varchar(250) NOT NULL, " +
+                "token varchar(250), " +
+                "error varchar(250) NOT NULL, " +
+                "failedOn bigint NOT NULL, " +
+                "attempts int NOT NULL, " +
+                "legacyChangeId int NOT NULL, " +
+                "data varchar(16000) NOT NULL, " +
+                "primary key (id))");
+        createTableIfNeeded(
+                "create index if not exists dead_letters_error on " +
+                "dead_letters (error)");
+    }
+
+    private void createTableIfNeeded(String sql) {
         Connection conn = null;
         Statement st = null;
         try {
             conn = this.connectionPool.getConnection();
             st = conn.createStatement();
-            st.execute(
-                    "create table if not exists notifications (" +
-                    "user int unsigned NOT NULL, " +
-                    "device varchar(250) NOT NULL, " +
-                    "token varchar(250) NOT NULL, " +
-                    "data varchar(4000) NOT NULL," +
-                    "primary key (user, device, token))");
+            st.execute(sql);
         } catch (SQLException ex) {
             // The table exists. Ignore
         } finally {
@@ -234,6 +1499,16 @@ public class DatabaseManager {
         }
     }
 
+    private void safelyRollback(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.rollback();
+            } catch (Exception ex) {
+                // Ignore
+            }
+        }
+    }
+
     private void safelyCloseResources(
             Connection conn, Statement st, ResultSet rs) {
         if (rs != null) {
@@ -251,6 +1526,14 @@ public class DatabaseManager {
             }
         }
         if (conn != null) {
+            try {
+                // Pooled connections must be returned in autocommit mode
+                if (!conn.getAutoCommit()) {
+                    conn.setAutoCommit(true);
+                }
+            } catch (Exception ex) {
+                // Ignore
+            }
             try {
                 conn.close();
             } catch (Exception ex) {
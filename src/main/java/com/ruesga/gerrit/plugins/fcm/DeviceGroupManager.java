@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager.DeviceGroup;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.workers.NotificationFilter;
+
+/**
+ * Manages the FCM device groups of the accounts. The registrations of an
+ * account that receive the same messages (same token, events, digest
+ * settings, filters, response mode and payload version) are grouped under
+ * a FCM notification key, so a single message replaces the messages to
+ * every one of the devices.
+ */
+@Singleton
+public class DeviceGroupManager {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(DeviceGroupManager.class);
+
+    private static final long GROUPS_TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_CACHED_ACCOUNTS = 10000;
+
+    // Synchronizations run in parallel, but never two of the same account
+    private static final int SYNC_THREADS = 4;
+    private static final int SYNC_LOCKS = 64;
+
+    // FCM device groups limits
+    private static final int MIN_GROUP_DEVICES = 2;
+    private static final int MAX_GROUP_DEVICES = 20;
+
+    /**
+     * A device group message to send for an event.
+     */
+    public static class DeviceGroupDelivery {
+        public final String notificationKey;
+        public final List<CloudNotificationInfo> members;
+
+        DeviceGroupDelivery(String notificationKey,
+                List<CloudNotificationInfo> members) {
+            this.notificationKey = notificationKey;
+            this.members = members;
+        }
+    }
+
+    private static class AccountGroups {
+        long loadedOn;
+        List<DeviceGroup> groups;
+    }
+
+    private final String pluginName;
+    private final Configuration config;
+    private final DatabaseManager db;
+    private final ConcurrentMap<Integer, AccountGroups> accounts =
+            new ConcurrentHashMap<>();
+    private final Object[] syncLocks = new Object[SYNC_LOCKS];
+    private final Set<Integer> pendingSyncs = Collections.newSetFromMap(
+            new ConcurrentHashMap<Integer, Boolean>());
+    private volatile ExecutorService syncExecutor;
+
+    @Inject
+    public DeviceGroupManager(
+            @PluginName String pluginName,
+            Configuration config,
+            DatabaseManager db) {
+        super();
+        this.pluginName = pluginName;
+        this.config = config;
+        this.db = db;
+        for (int i = 0; i < SYNC_LOCKS; i++) {
+            syncLocks[i] = new Object();
+        }
+    }
+
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        this.syncExecutor = Executors.newFixedThreadPool(SYNC_THREADS);
+    }
+
+    public void stop() {
+        ExecutorService executor = this.syncExecutor;
+        if (executor != null) {
+            this.syncExecutor = null;
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return config.deviceGroups && config.senderId != null
+                && !config.senderId.isEmpty() && config.isEnabled();
+    }
+
+    /**
+     * Returns the device group messages to send to the recipient
+     * registrations of an account, and removes from the recipients the
+     * registrations they reach. A group is only used if all its devices
+     * are recipients of the notification.
+     */
+    public List<DeviceGroupDelivery> getDeliveries(
+            int accountId, List<CloudNotificationInfo> recipients) {
+        List<DeviceGroupDelivery> deliveries = new ArrayList<>();
+        if (recipients.size() < MIN_GROUP_DEVICES) {
+            return deliveries;
+        }
+
+        for (DeviceGroup group : getAccountGroups(accountId)) {
+            List<CloudNotificationInfo> members = new ArrayList<>();
+            for (CloudNotificationInfo to : recipients) {
+                if (group.key.equals(groupKey(to))
+                        && group.devices.contains(to.device)) {
+                    members.add(to);
+                }
+            }
+            if (members.size() == group.devices.size()) {
+                recipients.removeAll(members);
+                deliveries.add(new DeviceGroupDelivery(
+                        group.notificationKey, members));
+            }
+        }
+        return deliveries;
+    }
+
+    /**
+     * Schedules the synchronization of the device groups of an account.
+     * Requests received before the synchronization starts are coalesced in
+     * a single one.
+     */
+    public void requestSync(final int accountId) {
+        if (!isEnabled()) {
+            return;
+        }
+        ExecutorService executor = this.syncExecutor;
+        if (executor == null) {
+            sync(accountId);
+            return;
+        }
+        if (!pendingSyncs.add(accountId)) {
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                pendingSyncs.remove(accountId);
+                sync(accountId);
+            }
+        });
+    }
+
+    /**
+     * Synchronizes the device groups of an account with its current
+     * registrations. Groups that can't be updated are discarded, so their
+     * registrations are notified directly.
+     */
+    public void sync(int accountId) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (syncLocks[(accountId & 0x7fffffff) % SYNC_LOCKS]) {
+            doSync(accountId);
+        }
+    }
+
+    private void doSync(int accountId) {
+        Map<String, List<String>> expected = new LinkedHashMap<>();
+        for (CloudNotificationInfo registration
+                : db.getCloudNotifications(accountId)) {
+            String key = groupKey(registration);
+            List<String> devices = expected.get(key);
+            if (devices == null) {
+                devices = new ArrayList<>();
+                expected.put(key, devices);
+            }
+            devices.add(registration.device);
+        }
+        Map<String, DeviceGroup> current = new HashMap<>();
+        for (DeviceGroup group : db.getDeviceGroups(accountId)) {
+            current.put(group.key, group);
+        }
+
+        for (Map.Entry<String, List<String>> entry : expected.entrySet()) {
+            List<String> devices = entry.getValue();
+            if (devices.size() < MIN_GROUP_DEVICES
+                    || devices.size() > MAX_GROUP_DEVICES) {
+                continue;
+            }
+
+            DeviceGroup group = current.remove(entry.getKey());
+            try {
+                if (group == null) {
+                    group = new DeviceGroup();
+                    group.key = entry.getKey();
+                    group.name = groupName(accountId, group.key);
+                    group.notificationKey = manageGroup(
+                            "create", group.name, null, devices);
+                } else {
+                    List<String> added = new ArrayList<>(devices);
+                    added.removeAll(group.devices);
+                    List<String> removed = new ArrayList<>(group.devices);
+                    removed.removeAll(devices);
+                    if (!added.isEmpty()) {
+                        manageGroup("add", group.name,
+                                group.notificationKey, added);
+                    }
+                    if (!removed.isEmpty()) {
+                        manageGroup("remove", group.name,
+                                group.notificationKey, removed);
+                    }
+                }
+                group.devices = devices;
+                db.saveDeviceGroup(accountId, group);
+            } catch (IOException ex) {
+                log.warn(String.format(
+                        "[%s] Failed to update device group %s of %d",
+                        pluginName, group.name, accountId), ex);
+                db.removeDeviceGroup(accountId, group.key);
+            }
+        }
+
+        // Groups no longer needed (FCM deletes empty groups)
+        for (DeviceGroup group : current.values()) {
+            try {
+                manageGroup("remove", group.name,
+                        group.notificationKey, group.devices);
+            } catch (IOException ex) {
+                log.warn(String.format(
+                        "[%s] Failed to remove device group %s of %d",
+                        pluginName, group.name, accountId), ex);
+            }
+            db.removeDeviceGroup(accountId, group.key);
+        }
+        accounts.remove(accountId);
+    }
+
+    /**
+     * Discards a device group that FCM didn't accept, so its registrations
+     * are notified directly until the next synchronization of the account.
+     */
+    public void discard(int accountId, String notificationKey) {
+        for (DeviceGroup group : getAccountGroups(accountId)) {
+            if (group.notificationKey.equals(notificationKey)) {
+                db.removeDeviceGroup(accountId, group.key);
+            }
+        }
+        accounts.remove(accountId);
+    }
+
+    private List<DeviceGroup> getAccountGroups(int accountId) {
+        AccountGroups groups = accounts.get(accountId);
+        long now = System.currentTimeMillis();
+        if (groups != null && groups.loadedOn + GROUPS_TTL > now) {
+            return groups.groups;
+        }
+
+        // Groups updated through other nodes are seen after the ttl
+        groups = new AccountGroups();
+        groups.loadedOn = now;
+        groups.groups = Collections.unmodifiableList(
+                db.getDeviceGroups(accountId));
+        if (accounts.size() >= MAX_CACHED_ACCOUNTS) {
+            accounts.clear();
+        }
+        accounts.put(accountId, groups);
+        return groups.groups;
+    }
+
+    private static String groupKey(CloudNotificationInfo registration) {
+        return sha1(registration.token + "\n" + registration.events + "\n"
+                + registration.responseMode + "\n"
+                + registration.payloadVersion + "\n"
+                + registration.digestEvents + "\n"
+                + registration.digestWatched + "\n"
+                + NotificationFilter.key(registration));
+    }
+
+    private String groupName(int accountId, String key) {
+        // A new name on every creation, as FCM keeps the names of groups
+        // whose removal failed
+        return config.topicPrefix + "-" + accountId + "-"
+                + key.substring(0, 16) + "-"
+                + Long.toString(System.currentTimeMillis(), 36);
+    }
+
+    private static String sha1(String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String manageGroup(String operation, String name,
+            String notificationKey, List<String> devices) throws IOException {
+        JsonObject request = new JsonObject();
+        request.addProperty("operation", operation);
+        request.addProperty("notification_key_name", name);
+        if (notificationKey != null) {
+            request.addProperty("notification_key", notificationKey);
+        }
+        JsonArray registrationIds = new JsonArray();
+        for (String device : devices) {
+            registrationIds.add(device);
+        }
+        request.add("registration_ids", registrationIds);
+        byte[] data = request.toString().getBytes(StandardCharsets.UTF_8);
+
+        URL url = new URL(config.deviceGroupUrl);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty(
+                "Authorization", "key=" + config.serverToken);
+        conn.setRequestProperty("project_id", config.senderId);
+        conn.setRequestProperty(
+                "Content-Length", Integer.toString(data.length));
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(data);
+        }
+
+        int responseCode = conn.getResponseCode();
+        if (responseCode != 200) {
+            throw new IOException("Device group request failed. code: "
+                    + responseCode);
+        }
+        try (Reader reader = new InputStreamReader(
+                conn.getInputStream(), StandardCharsets.UTF_8)) {
+            JsonObject response =
+                    new JsonParser().parse(reader).getAsJsonObject();
+            JsonElement error = response.get("error");
+            if (error != null) {
+                throw new IOException("Device group request failed: "
+                        + error.getAsString());
+            }
+            JsonElement key = response.get("notification_key");
+            if (key != null) {
+                return key.getAsString();
+            }
+            if (notificationKey == null) {
+                throw new IOException("Device group request failed: "
+                        + "no notification key");
+            }
+            return notificationKey;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.rest.NotificationTraceInfo;
+
+/**
+ * Keeps the last completed notification traces in a bounded in-memory
+ * ring buffer, so slow stages can be found without debug logging.
+ */
+@Singleton
+public class NotificationTracer {
+
+    private final int capacity;
+    private final Deque<Notification> traces;
+
+    @Inject
+    public NotificationTracer(Configuration config) {
+        super();
+        this.capacity = config.traceBufferSize;
+        this.traces = new ArrayDeque<>(Math.max(1, capacity));
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Stores the completed trace of a notification, evicting the oldest
+     * trace if the buffer is full.
+     */
+    public void complete(Notification notification) {
+        if (!isEnabled() || notification.trace == null) {
+            return;
+        }
+        synchronized (traces) {
+            if (traces.size() >= capacity) {
+                traces.removeFirst();
+            }
+            traces.addLast(notification);
+        }
+    }
+
+    /**
+     * Returns the completed traces, newest first.
+     *
+     * @param change only the traces of this legacy change id (can be null)
+     * @param account only the traces that notified this account (can be null)
+     * @param limit the maximum number of traces to return
+     */
+    public List<NotificationTraceInfo> getTraces(
+            Integer change, Integer account, int limit) {
+        List<Notification> matches = new ArrayList<>();
+        synchronized (traces) {
+            Iterator<Notification> it = traces.descendingIterator();
+            while (it.hasNext() && matches.size() < limit) {
+                Notification notification = it.next();
+                if (change != null
+                        && notification.legacyChangeId != change) {
+                    continue;
+                }
+                if (account != null
+                        && !notification.trace.hasAccount(account)) {
+                    continue;
+                }
+                matches.add(notification);
+            }
+        }
+
+        List<NotificationTraceInfo> infos = new ArrayList<>(matches.size());
+        for (Notification notification : matches) {
+            infos.add(notification.trace.toInfo(notification));
+        }
+        return infos;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The events registered by the devices of every account, and the
+ * aggregate of all of them. Every bit of the aggregate counts the accounts
+ * that registered its event, so it can be updated incrementally when a
+ * registration is added or removed. The accounts with registered events
+ * are also kept in a compact membership set, checked before evaluating
+ * the watches of every account.
+ *
+ * Updates are serialized by the lock of this object, and a reset builds
+ * the new state aside and publishes it at once, so readers never see it
+ * partially loaded. The events of an account computed from the database
+ * are read without holding the lock, so the events updated in the meantime
+ * are kept: the registered events may be a superset of the real ones for
+ * a while, but never miss any of them.
+ */
+class RegisteredEvents {
+
+    private static class State {
+        final ConcurrentMap<Integer, Integer> accounts =
+                new ConcurrentHashMap<>();
+        final AccountBitSet registered = new AccountBitSet();
+        final int[] counts = new int[Integer.SIZE];
+        volatile int mask;
+    }
+
+    private volatile State state = new State();
+    // The accounts updated since the reload started (if any)
+    private Set<Integer> updatedSinceReload;
+    private long updates;
+
+    int getMask() {
+        return state.mask;
+    }
+
+    boolean isRegistered(int accountId) {
+        return state.registered.contains(accountId);
+    }
+
+    int getMask(int accountId) {
+        Integer events = state.accounts.get(accountId);
+        return events != null ? events : 0;
+    }
+
+    /**
+     * Adds the events registered by a device of an account.
+     */
+    synchronized void add(int accountId, int events) {
+        set(accountId, getMask(accountId) | events);
+    }
+
+    /**
+     * Returns the count of updates, to be taken before reading the events
+     * of an account.
+     */
+    synchronized long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Sets the events registered by all the devices of an account, read
+     * after taking the given count of updates. If there were updates
+     * since, the read could have missed them, so the current events are
+     * kept as well.
+     */
+    synchronized void update(int accountId, int events, long since) {
+        if (updates != since) {
+            events |= getMask(accountId);
+        }
+        set(accountId, events);
+    }
+
+    private void set(int accountId, int events) {
+        updates++;
+        if (updatedSinceReload != null) {
+            updatedSinceReload.add(accountId);
+        }
+        State current = this.state;
+        Integer previous = events != 0
+                ? current.accounts.put(accountId, events)
+                : current.accounts.remove(accountId);
+        int old = previous != null ? previous : 0;
+        if (events != 0) {
+            current.registered.add(accountId);
+        } else {
+            current.registered.remove(accountId);
+        }
+
+        int changed = old ^ events;
+        while (changed != 0) {
+            int bit = Integer.numberOfTrailingZeros(changed);
+            current.counts[bit] += (events & (1 << bit)) != 0 ? 1 : -1;
+            changed &= changed - 1;
+        }
+        updateMask(current);
+    }
+
+    /**
+     * Starts tracking the accounts updated while the events of all the
+     * accounts are read, as the read could miss their updates.
+     */
+    synchronized void startReload() {
+        updatedSinceReload = new HashSet<>();
+    }
+
+    /**
+     * Stops tracking the accounts updated since the reload started.
+     */
+    synchronized void cancelReload() {
+        updatedSinceReload = null;
+    }
+
+    /**
+     * Replaces the events of all the accounts with the loaded ones, and
+     * stops tracking the updated accounts. The current events of the
+     * accounts updated since the reload started, or with registrations not
+     * written yet (the pending ones), are kept as well.
+     */
+    synchronized void reset(Map<Integer, Integer> events,
+            Set<Integer> pending) {
+        Set<Integer> updated = new HashSet<>(pending);
+        if (updatedSinceReload != null) {
+            updated.addAll(updatedSinceReload);
+        }
+        updatedSinceReload = null;
+        updates++;
+
+        State current = this.state;
+        for (int accountId : updated) {
+            Integer accountEvents = current.accounts.get(accountId);
+            if (accountEvents != null) {
+                Integer loadedEvents = events.get(accountId);
+                events.put(accountId, accountEvents
+                        | (loadedEvents != null ? loadedEvents : 0));
+            }
+        }
+
+        State loaded = new State();
+        for (Map.Entry<Integer, Integer> entry : events.entrySet()) {
+            int accountEvents = entry.getValue();
+            if (accountEvents == 0) {
+                continue;
+            }
+            loaded.accounts.put(entry.getKey(), accountEvents);
+            loaded.registered.add(entry.getKey());
+            while (accountEvents != 0) {
+                loaded.counts[Integer.numberOfTrailingZeros(accountEvents)]++;
+                accountEvents &= accountEvents - 1;
+            }
+        }
+        updateMask(loaded);
+        this.state = loaded;
+    }
+
+    private static void updateMask(State state) {
+        int newMask = 0;
+        for (int bit = 0; bit < state.counts.length; bit++) {
+            if (state.counts[bit] > 0) {
+                newMask |= 1 << bit;
+            }
+        }
+        state.mask = newMask;
+    }
+}
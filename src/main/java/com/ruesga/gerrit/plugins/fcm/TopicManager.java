@@ -0,0 +1,665 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.config.AllProjectsName;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager.TopicSubscriber;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationResponseMode;
+
+/**
+ * Manages the FCM topics of the projects. Registrations can subscribe to
+ * the topics of a project they watch without filters, so a single topic
+ * message replaces the messages to every one of the subscribed devices.
+ *
+ * A topic is created per project, event, response mode and payload
+ * version, so all the devices subscribed to a topic expect the same
+ * message. Every event has a single notify type, so a registration is only
+ * subscribed to the topics of the events its watch notifies. The watches
+ * are checked again every time the subscribers of a project are loaded.
+ */
+@Singleton
+public class TopicManager {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(TopicManager.class);
+
+    private static final long SUBSCRIBERS_TTL = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The notify type of the watches of every event (the same that the
+     * event handlers use to resolve the watchers).
+     */
+    private static final Map<Integer, NotifyType> EVENT_NOTIFY_TYPES;
+    static {
+        Map<Integer, NotifyType> types = new HashMap<>();
+        types.put(CloudNotificationEvents.CHANGE_ABANDONED_EVENT,
+                NotifyType.ABANDONED_CHANGES);
+        types.put(CloudNotificationEvents.CHANGE_MERGED_EVENT,
+                NotifyType.SUBMITTED_CHANGES);
+        types.put(CloudNotificationEvents.CHANGE_RESTORED_EVENT,
+                NotifyType.SUBMITTED_CHANGES);
+        types.put(CloudNotificationEvents.CHANGE_REVERTED_EVENT,
+                NotifyType.SUBMITTED_CHANGES);
+        types.put(CloudNotificationEvents.COMMENT_ADDED_EVENT,
+                NotifyType.ALL_COMMENTS);
+        types.put(CloudNotificationEvents.DRAFT_PUBLISHED_EVENT,
+                NotifyType.NEW_PATCHSETS);
+        types.put(CloudNotificationEvents.HASHTAG_CHANGED_EVENT,
+                NotifyType.NEW_PATCHSETS);
+        types.put(CloudNotificationEvents.REVIEWER_ADDED_EVENT,
+                NotifyType.ALL);
+        types.put(CloudNotificationEvents.REVIEWER_DELETED_EVENT,
+                NotifyType.ALL);
+        types.put(CloudNotificationEvents.PATCHSET_CREATED_EVENT,
+                NotifyType.NEW_PATCHSETS);
+        types.put(CloudNotificationEvents.TOPIC_CHANGED_EVENT,
+                NotifyType.NEW_PATCHSETS);
+        types.put(CloudNotificationEvents.ASSIGNEE_CHANGED_EVENT,
+                NotifyType.NEW_PATCHSETS);
+        EVENT_NOTIFY_TYPES = Collections.unmodifiableMap(types);
+    }
+
+    /**
+     * A topic message to send for an event.
+     */
+    public static class TopicDelivery {
+        public final String topic;
+        public final CloudNotificationResponseMode responseMode;
+        public final int payloadVersion;
+
+        TopicDelivery(String topic,
+                CloudNotificationResponseMode responseMode,
+                int payloadVersion) {
+            this.topic = topic;
+            this.responseMode = responseMode;
+            this.payloadVersion = payloadVersion;
+        }
+    }
+
+    private static class Subscription {
+        final CloudNotificationInfo registration;
+        final int watchedEvents;
+
+        Subscription(CloudNotificationInfo registration, int watchedEvents) {
+            this.registration = registration;
+            this.watchedEvents = watchedEvents;
+        }
+    }
+
+    private static class ProjectTopics {
+        long loadedOn;
+        // Subscribed registrations, by registration key
+        Map<String, Subscription> registrations = new HashMap<>();
+        // Accounts with any registration subscribed
+        AccountIdSet subscribedAccounts = new AccountIdSet();
+        // Accounts with all their registrations subscribed
+        AccountIdSet coveredAccounts = new AccountIdSet();
+    }
+
+    private final String pluginName;
+    private final Configuration config;
+    private final DatabaseManager db;
+    private final AllProjectsName allProjectsName;
+    private final Provider<ReviewDb> reviewdb;
+    private final OneOffRequestContext requestContext;
+    private final ConcurrentMap<String, ProjectTopics> projects =
+            new ConcurrentHashMap<>();
+    private final Set<String> resyncs = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    private volatile ExecutorService resyncExecutor;
+
+    @Inject
+    public TopicManager(
+            @PluginName String pluginName,
+            Configuration config,
+            DatabaseManager db,
+            AllProjectsName allProjectsName,
+            Provider<ReviewDb> reviewdb,
+            OneOffRequestContext requestContext) {
+        super();
+        this.pluginName = pluginName;
+        this.config = config;
+        this.db = db;
+        this.allProjectsName = allProjectsName;
+        this.reviewdb = reviewdb;
+        this.requestContext = requestContext;
+    }
+
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        this.resyncExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    public void stop() {
+        ExecutorService executor = this.resyncExecutor;
+        if (executor != null) {
+            this.resyncExecutor = null;
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return config.projectTopics && config.isEnabled();
+    }
+
+    public static String registrationKey(
+            int accountId, String device, String token) {
+        return accountId + "\n" + device + "\n" + token;
+    }
+
+    /**
+     * Returns the events notified by a watch, or 0 if the watch has a
+     * filter (topics deliver every change of the project).
+     */
+    public static int getWatchedEvents(AccountProjectWatch w) {
+        if (w.getFilter() != null) {
+            return 0;
+        }
+        int events = 0;
+        for (Map.Entry<Integer, NotifyType> entry
+                : EVENT_NOTIFY_TYPES.entrySet()) {
+            if (w.isNotify(entry.getValue())) {
+                events |= entry.getKey();
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Returns whether the events of a registration can be delivered through
+     * the project topics. Topic messages are the same for every subscribed
+     * device and are sent as soon as the event happens, so they can't be
+     * filtered per registration nor held for the digests.
+     */
+    public static boolean canUseTopics(CloudNotificationInfo registration) {
+        return registration.include == null && registration.exclude == null
+                && registration.digestEvents == 0
+                && !registration.digestWatched;
+    }
+
+    /**
+     * Returns whether any registration is subscribed to the topics of the
+     * project of a change (or of All-Projects).
+     */
+    public boolean hasSubscribers(String project) {
+        return !getProjectTopics(project).registrations.isEmpty()
+                || !getProjectTopics(allProjectsName.get())
+                        .registrations.isEmpty();
+    }
+
+    /**
+     * Returns whether any registration of an account is subscribed to the
+     * topics of a project (or of All-Projects), so its account would receive
+     * the topic messages of the project.
+     */
+    public boolean isSubscribed(String project, int accountId) {
+        return getProjectTopics(project).subscribedAccounts.contains(accountId)
+                || getProjectTopics(allProjectsName.get())
+                        .subscribedAccounts.contains(accountId);
+    }
+
+    /**
+     * Returns the accounts whose registrations are all subscribed to the
+     * topics of a project. Their watches of the project without filters
+     * don't need to be delivered directly.
+     */
+    public AccountIdSet getCoveredAccounts(String project) {
+        return getProjectTopics(project).coveredAccounts;
+    }
+
+    /**
+     * Returns the topic messages to send for an event of a change of a
+     * project (and of All-Projects), and fills the keys of the registrations
+     * they reach.
+     */
+    public List<TopicDelivery> getDeliveries(
+            String project, int event, Set<String> covered) {
+        Map<String, TopicDelivery> deliveries = new LinkedHashMap<>();
+        for (String p : new String[]{project, allProjectsName.get()}) {
+            ProjectTopics topics = getProjectTopics(p);
+            for (Map.Entry<String, Subscription> entry
+                    : topics.registrations.entrySet()) {
+                Subscription subscription = entry.getValue();
+                CloudNotificationInfo registration = subscription.registration;
+                if ((registration.events & subscription.watchedEvents
+                        & event) == 0) {
+                    continue;
+                }
+                String topic = getTopicName(p, event,
+                        registration.responseMode,
+                        registration.payloadVersion);
+                if (!deliveries.containsKey(topic)) {
+                    deliveries.put(topic, new TopicDelivery(topic,
+                            registration.responseMode,
+                            registration.payloadVersion));
+                }
+                covered.add(entry.getKey());
+            }
+        }
+        return new ArrayList<>(deliveries.values());
+    }
+
+    /**
+     * Returns the topics a registration is subscribed to for a project: the
+     * ones of the registered events that its watch notifies.
+     */
+    public List<String> getTopicNames(CloudNotificationInfo registration,
+            int watchedEvents, String project) {
+        List<String> topics = new ArrayList<>();
+        for (int event : Configuration.EVENT_NAMES.keySet()) {
+            if ((registration.events & watchedEvents & event) != 0) {
+                topics.add(getTopicName(project, event,
+                        registration.responseMode,
+                        registration.payloadVersion));
+            }
+        }
+        return topics;
+    }
+
+    public void subscribe(int accountId, CloudNotificationInfo registration,
+            String project, int watchedEvents) throws IOException {
+        for (String topic
+                : getTopicNames(registration, watchedEvents, project)) {
+            updateTopic(topic, registration.device, true);
+        }
+        db.addTopicSubscription(accountId, registration.device,
+                registration.token, project, watchedEvents);
+        projects.remove(project);
+    }
+
+    public void unsubscribe(int accountId, CloudNotificationInfo registration,
+            TopicSubscriber subscription) throws IOException {
+        String project = subscription.project;
+        for (String topic : getTopicNames(
+                registration, subscription.watchedEvents, project)) {
+            if (!isSharedTopic(accountId, registration, project, topic)) {
+                updateTopic(topic, registration.device, false);
+            }
+        }
+        db.removeTopicSubscription(accountId,
+                registration.device, registration.token, project);
+        projects.remove(project);
+    }
+
+    /**
+     * Moves the subscriptions of a registration to the topics of its new
+     * events, response mode or payload version, or removes them if the
+     * registration can't use topics anymore.
+     */
+    public void onRegistrationUpdated(int accountId,
+            CloudNotificationInfo old, CloudNotificationInfo updated) {
+        if (!isEnabled() || old == null) {
+            return;
+        }
+        if (!canUseTopics(updated)) {
+            onRegistrationRemoved(accountId, old, true);
+            return;
+        }
+        if ((old.events == updated.events
+                && old.responseMode == updated.responseMode
+                && old.payloadVersion == updated.payloadVersion)) {
+            return;
+        }
+
+        for (TopicSubscriber subscription : db.getTopicSubscriptions(
+                accountId, updated.device, updated.token)) {
+            String project = subscription.project;
+            try {
+                for (String topic : getTopicNames(
+                        old, subscription.watchedEvents, project)) {
+                    if (!isSharedTopic(accountId, old, project, topic)) {
+                        updateTopic(topic, old.device, false);
+                    }
+                }
+                for (String topic : getTopicNames(
+                        updated, subscription.watchedEvents, project)) {
+                    updateTopic(topic, updated.device, true);
+                }
+            } catch (IOException ex) {
+                log.warn(String.format(
+                        "[%s] Failed to update topics of %d - %s - %s",
+                        pluginName, accountId, updated.device,
+                        updated.token), ex);
+            }
+            projects.remove(project);
+        }
+    }
+
+    /**
+     * Removes the subscriptions of an unregistered registration.
+     *
+     * @param unsubscribe whether the device must be unsubscribed from the
+     * topics (not needed if the device is no longer registered in FCM)
+     */
+    public void onRegistrationRemoved(int accountId,
+            CloudNotificationInfo registration, boolean unsubscribe) {
+        List<TopicSubscriber> subscriptions = db.getTopicSubscriptions(
+                accountId, registration.device, registration.token);
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+
+        for (TopicSubscriber subscription : subscriptions) {
+            String project = subscription.project;
+            if (unsubscribe) {
+                try {
+                    for (String topic : getTopicNames(registration,
+                            subscription.watchedEvents, project)) {
+                        if (!isSharedTopic(
+                                accountId, registration, project, topic)) {
+                            updateTopic(topic, registration.device, false);
+                        }
+                    }
+                } catch (IOException ex) {
+                    log.warn(String.format(
+                            "[%s] Failed to unsubscribe %s from topics",
+                            pluginName, registration.device), ex);
+                }
+            }
+            projects.remove(project);
+        }
+        db.removeTopicSubscription(accountId,
+                registration.device, registration.token, null);
+    }
+
+    /**
+     * Returns whether other registration of the same device (another account
+     * of the device) is still subscribed to a topic, so the device must not
+     * be removed from it.
+     */
+    private boolean isSharedTopic(int accountId,
+            CloudNotificationInfo registration, String project, String topic) {
+        String key = registrationKey(
+                accountId, registration.device, registration.token);
+        for (Map.Entry<String, Subscription> entry
+                : getProjectTopics(project).registrations.entrySet()) {
+            Subscription other = entry.getValue();
+            if (!entry.getKey().equals(key)
+                    && other.registration.device.equals(registration.device)
+                    && getTopicNames(other.registration,
+                            other.watchedEvents, project).contains(topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getTopicName(String project, int event,
+            CloudNotificationResponseMode responseMode, int payloadVersion) {
+        // FCM topic names only accept [a-zA-Z0-9-_.~%]
+        String id = project + "\n" + event + "\n" + responseMode
+                + "\n" + payloadVersion;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest(id.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(config.topicPrefix);
+            sb.append('-');
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private ProjectTopics getProjectTopics(String project) {
+        ProjectTopics topics = projects.get(project);
+        long now = System.currentTimeMillis();
+        if (topics != null && topics.loadedOn + SUBSCRIBERS_TTL > now) {
+            return topics;
+        }
+
+        // Subscriptions done through other nodes are seen after the ttl
+        topics = new ProjectTopics();
+        topics.loadedOn = now;
+        Map<Integer, Integer> watches = getWatchedEvents(project);
+        List<TopicSubscriber> stale = new ArrayList<>();
+        Map<Integer, Integer> subscribed = new HashMap<>();
+        for (TopicSubscriber subscriber : db.getTopicSubscribers(project)) {
+            CloudNotificationInfo registration = db.getCloudNotification(
+                    subscriber.accountId, subscriber.device, subscriber.token);
+            if (registration == null) {
+                continue;
+            }
+
+            // The watch was removed, got a filter or notifies other events
+            // since the subscription (or the registration can't use topics
+            // anymore). Until its topics are resynced, the registration is
+            // delivered directly.
+            int watchedEvents = subscriber.watchedEvents;
+            if (!canUseTopics(registration)) {
+                stale.add(subscriber);
+                continue;
+            }
+            if (watches != null) {
+                Integer watched = watches.get(subscriber.accountId);
+                if (watched == null || watched != watchedEvents) {
+                    stale.add(subscriber);
+                    continue;
+                }
+            }
+
+            topics.registrations.put(registrationKey(subscriber.accountId,
+                    subscriber.device, subscriber.token),
+                    new Subscription(registration, watchedEvents));
+            topics.subscribedAccounts.add(subscriber.accountId);
+            Integer count = subscribed.get(subscriber.accountId);
+            subscribed.put(subscriber.accountId, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<Integer, Integer> entry : subscribed.entrySet()) {
+            int registrations = db.getCloudNotifications(entry.getKey()).size();
+            if (registrations == entry.getValue()) {
+                topics.coveredAccounts.add(entry.getKey());
+            }
+        }
+        projects.put(project, topics);
+
+        if (!stale.isEmpty() && watches != null) {
+            resync(project, stale, watches);
+        }
+        return topics;
+    }
+
+    /**
+     * Returns the events notified by the watches without filters of a
+     * project, by account, or null if they can't be read.
+     */
+    private Map<Integer, Integer> getWatchedEvents(String project) {
+        Map<Integer, Integer> watches = new HashMap<>();
+        try (ManualRequestContext ctx = requestContext.open()) {
+            for (AccountProjectWatch w : reviewdb.get()
+                    .accountProjectWatches()
+                    .byProject(new Project.NameKey(project))) {
+                if (w.getFilter() == null) {
+                    watches.put(w.getAccountId().get(), getWatchedEvents(w));
+                }
+            }
+        } catch (OrmException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to obtain the watches of project %s",
+                    pluginName, project), ex);
+            return null;
+        }
+        return watches;
+    }
+
+    /**
+     * Moves the stale subscriptions of a project to the topics of the
+     * events its watch notifies now, or removes them if the watch is gone
+     * (or the registration can't use topics).
+     */
+    private void resync(final String project,
+            final List<TopicSubscriber> stale,
+            final Map<Integer, Integer> watches) {
+        ExecutorService executor = this.resyncExecutor;
+        if (executor == null || !resyncs.add(project)) {
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (TopicSubscriber subscriber : stale) {
+                        resync(subscriber, watches.get(subscriber.accountId));
+                    }
+                } finally {
+                    resyncs.remove(project);
+                    projects.remove(project);
+                }
+            }
+        });
+    }
+
+    private void resync(TopicSubscriber subscriber, Integer watchedEvents) {
+        CloudNotificationInfo registration = db.getCloudNotification(
+                subscriber.accountId, subscriber.device, subscriber.token);
+        if (registration == null) {
+            return;
+        }
+        if (!canUseTopics(registration)) {
+            watchedEvents = null;
+        }
+
+        String project = subscriber.project;
+        List<String> current = getTopicNames(
+                registration, subscriber.watchedEvents, project);
+        List<String> target = watchedEvents == null
+                ? Collections.<String>emptyList()
+                : getTopicNames(registration, watchedEvents, project);
+        try {
+            for (String topic : current) {
+                if (!target.contains(topic) && !isSharedTopic(
+                        subscriber.accountId, registration, project, topic)) {
+                    updateTopic(topic, registration.device, false);
+                }
+            }
+            for (String topic : target) {
+                if (!current.contains(topic)) {
+                    updateTopic(topic, registration.device, true);
+                }
+            }
+        } catch (IOException ex) {
+            // Retried the next time the subscribers are loaded
+            log.warn(String.format(
+                    "[%s] Failed to resync the topics of %d - %s - %s",
+                    pluginName, subscriber.accountId, subscriber.device,
+                    project), ex);
+            return;
+        }
+
+        if (watchedEvents == null) {
+            log.info(String.format(
+                    "[%s] Removed the topic subscription of %d - %s to %s:"
+                    + " not watched without filter or not eligible anymore",
+                    pluginName, subscriber.accountId, subscriber.device,
+                    project));
+            db.removeTopicSubscription(subscriber.accountId,
+                    subscriber.device, subscriber.token, project);
+        } else {
+            db.addTopicSubscription(subscriber.accountId, subscriber.device,
+                    subscriber.token, project, watchedEvents);
+        }
+    }
+
+    private void updateTopic(String topic, String device, boolean subscribe)
+            throws IOException {
+        JsonObject request = new JsonObject();
+        request.addProperty("to", "/topics/" + topic);
+        JsonArray devices = new JsonArray();
+        devices.add(device);
+        request.add("registration_tokens", devices);
+        byte[] data = request.toString().getBytes(StandardCharsets.UTF_8);
+
+        URL url = new URL(config.instanceIdUrl
+                + (subscribe ? ":batchAdd" : ":batchRemove"));
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty(
+                "Authorization", "key=" + config.serverToken);
+        conn.setRequestProperty(
+                "Content-Length", Integer.toString(data.length));
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(data);
+        }
+
+        int responseCode = conn.getResponseCode();
+        if (responseCode != 200) {
+            throw new IOException("Instance ID request failed. code: "
+                    + responseCode);
+        }
+        try (Reader reader = new InputStreamReader(
+                conn.getInputStream(), StandardCharsets.UTF_8)) {
+            JsonObject response =
+                    new JsonParser().parse(reader).getAsJsonObject();
+            JsonArray results = response.getAsJsonArray("results");
+            if (results != null && results.size() > 0) {
+                JsonElement error =
+                        results.get(0).getAsJsonObject().get("error");
+                if (error != null) {
+                    throw new IOException("Instance ID request failed: "
+                            + error.getAsString());
+                }
+            }
+        }
+    }
+}
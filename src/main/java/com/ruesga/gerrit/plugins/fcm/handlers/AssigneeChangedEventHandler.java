@@ -16,18 +16,12 @@
 package com.ruesga.gerrit.plugins.fcm.handlers;
 
 import com.google.gerrit.extensions.annotations.PluginName;
-import com.google.gerrit.extensions.common.AccountInfo;
 import com.google.gerrit.extensions.events.AssigneeChangedListener;
 import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
-import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.IdentifiedUser.GenericFactory;
-import com.google.gerrit.server.config.AllProjectsName;
-import com.google.gerrit.server.query.change.ChangeQueryBuilder;
-import com.google.gerrit.server.query.change.ChangeQueryProcessor;
 import com.google.gson.annotations.SerializedName;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.messaging.NotificationAccount;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
 
@@ -35,25 +29,16 @@ public class AssigneeChangedEventHandler extends EventHandler
         implements AssigneeChangedListener {
 
     private static class AssigneeInfo {
-        @SerializedName("old") public AccountInfo old;
-        @SerializedName("new") public AccountInfo _new;
+        @SerializedName("old") public NotificationAccount old;
+        @SerializedName("new") public NotificationAccount _new;
     }
 
     @Inject
     public AssigneeChangedEventHandler(
             @PluginName String pluginName,
             FcmUploaderWorker uploader,
-            AllProjectsName allProjectsName,
-            ChangeQueryBuilder cqb,
-            ChangeQueryProcessor cqp,
-            Provider<ReviewDb> reviewdb,
-            GenericFactory identifiedUserFactory) {
-        super(pluginName,
-                uploader,
-                allProjectsName,
-                cqb, cqp,
-                reviewdb,
-                identifiedUserFactory);
+            RecipientResolver resolver) {
+        super(pluginName, uploader, resolver);
     }
 
     protected int getEventType() {
@@ -66,11 +51,15 @@ public class AssigneeChangedEventHandler extends EventHandler
 
     @Override
     public void onAssigneeChanged(Event event) {
+        if (!isEventRegistered()) {
+            return;
+        }
+
         AssigneeInfo assignee = new AssigneeInfo();
-        assignee.old = event.getOldAssignee();
-        assignee._new = event.getChange().assignee;
+        assignee.old = NotificationAccount.from(event.getOldAssignee());
+        assignee._new = NotificationAccount.from(event.getChange().assignee);
         Notification notification = createNotification(event);
-        notification.extra = getSerializer().toJson(assignee);
+        notification.extra = getSerializer().toJsonTree(assignee);
         notification.body = formatAccount(event.getWho())
                 + " change assignee to "
                 + formatAccount(event.getChange().assignee)
@@ -18,13 +18,7 @@ package com.ruesga.gerrit.plugins.fcm.handlers;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.ChangeAbandonedListener;
 import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
-import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.IdentifiedUser.GenericFactory;
-import com.google.gerrit.server.config.AllProjectsName;
-import com.google.gerrit.server.query.change.ChangeQueryBuilder;
-import com.google.gerrit.server.query.change.ChangeQueryProcessor;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
@@ -36,17 +30,8 @@ public class ChangeAbandonedEventHandler extends EventHandler
     public ChangeAbandonedEventHandler(
             @PluginName String pluginName,
             FcmUploaderWorker uploader,
-            AllProjectsName allProjectsName,
-            ChangeQueryBuilder cqb,
-            ChangeQueryProcessor cqp,
-            Provider<ReviewDb> reviewdb,
-            GenericFactory identifiedUserFactory) {
-        super(pluginName,
-                uploader,
-                allProjectsName,
-                cqb, cqp,
-                reviewdb,
-                identifiedUserFactory);
+            RecipientResolver resolver) {
+        super(pluginName, uploader, resolver);
     }
 
     protected int getEventType() {
@@ -59,6 +44,11 @@ public class ChangeAbandonedEventHandler extends EventHandler
 
     @Override
     public void onChangeAbandoned(Event event) {
+        getResolver().onChangeClosed(event.getChange());
+        if (!isEventRegistered()) {
+            return;
+        }
+
         Notification notification = createNotification(event);
         notification.body = formatAccount(event.getWho())
                 + " abandoned this change";
@@ -20,13 +20,8 @@ import org.apache.commons.lang.StringUtils;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.CommentAddedListener;
 import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
-import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.IdentifiedUser.GenericFactory;
-import com.google.gerrit.server.config.AllProjectsName;
-import com.google.gerrit.server.query.change.ChangeQueryBuilder;
-import com.google.gerrit.server.query.change.ChangeQueryProcessor;
+import com.google.gson.JsonPrimitive;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
@@ -38,17 +33,8 @@ public class CommentAddedEventHandler extends EventHandler
     public CommentAddedEventHandler(
             @PluginName String pluginName,
             FcmUploaderWorker uploader,
-            AllProjectsName allProjectsName,
-            ChangeQueryBuilder cqb,
-            ChangeQueryProcessor cqp,
-            Provider<ReviewDb> reviewdb,
-            GenericFactory identifiedUserFactory) {
-        super(pluginName,
-                uploader,
-                allProjectsName,
-                cqb, cqp,
-                reviewdb,
-                identifiedUserFactory);
+            RecipientResolver resolver) {
+        super(pluginName, uploader, resolver);
     }
 
     protected int getEventType() {
@@ -61,10 +47,14 @@ public class CommentAddedEventHandler extends EventHandler
 
     @Override
     public void onCommentAdded(Event event) {
+        if (!isEventRegistered()) {
+            return;
+        }
+
         Notification notification = createNotification(event);
         if (event.getComment() != null) {
-            notification.extra =
-                    StringUtils.abbreviate(event.getComment(), 250);
+            notification.extra = new JsonPrimitive(
+                    StringUtils.abbreviate(event.getComment(), 250));
         }
         notification.body = formatAccount(event.getWho())
                 + " commented on this change";
@@ -15,41 +15,22 @@
  */
 package com.ruesga.gerrit.plugins.fcm.handlers;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.api.changes.NotifyHandling;
-import com.google.gerrit.extensions.client.ReviewerState;
 import com.google.gerrit.extensions.common.AccountInfo;
-import com.google.gerrit.extensions.common.ChangeInfo;
 import com.google.gerrit.extensions.events.ChangeEvent;
 import com.google.gerrit.extensions.events.RevisionEvent;
-import com.google.gerrit.reviewdb.client.AccountProjectWatch;
 import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
-import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.CurrentUser;
-import com.google.gerrit.server.IdentifiedUser;
-import com.google.gerrit.server.IdentifiedUser.GenericFactory;
-import com.google.gerrit.server.config.AllProjectsName;
-import com.google.gerrit.server.query.Predicate;
-import com.google.gerrit.server.query.QueryParseException;
-import com.google.gerrit.server.query.QueryResult;
-import com.google.gerrit.server.query.change.ChangeData;
-import com.google.gerrit.server.query.change.ChangeQueryBuilder;
-import com.google.gerrit.server.query.change.ChangeQueryProcessor;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gwtorm.server.OrmException;
-import com.google.inject.Provider;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
 import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.messaging.NotificationAccount;
+import com.ruesga.gerrit.plugins.fcm.messaging.NotificationTrace;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
 
 public abstract class EventHandler {
@@ -59,29 +40,17 @@ public abstract class EventHandler {
 
     private final String pluginName;
     private final FcmUploaderWorker uploader;
-    private final AllProjectsName allProjectsName;
-    private final ChangeQueryBuilder cqb;
-    private final ChangeQueryProcessor cqp;
-    private final Provider<ReviewDb> reviewdb;
-    private final GenericFactory identifiedUserFactory;
+    private final RecipientResolver resolver;
     private final Gson gson;
 
     public EventHandler(
             @PluginName String pluginName,
             FcmUploaderWorker uploader,
-            AllProjectsName allProjectsName,
-            ChangeQueryBuilder cqb,
-            ChangeQueryProcessor cqp,
-            Provider<ReviewDb> reviewdb,
-            GenericFactory identifiedUserFactory) {
+            RecipientResolver resolver) {
         super();
         this.pluginName = pluginName;
         this.uploader = uploader;
-        this.allProjectsName = allProjectsName;
-        this.cqb = cqb;
-        this.cqp = cqp;
-        this.reviewdb = reviewdb;
-        this.identifiedUserFactory = identifiedUserFactory;
+        this.resolver = resolver;
         this.gson = new GsonBuilder().create();
     }
 
@@ -89,15 +58,32 @@ public abstract class EventHandler {
 
     protected abstract NotifyType getNotifyType();
 
+    /**
+     * Returns whether any device registered the event of the handler, so
+     * events nobody listens to are discarded before resolving recipients.
+     */
+    protected boolean isEventRegistered() {
+        return this.uploader.isEventRegistered(getEventType());
+    }
+
+    protected RecipientResolver getResolver() {
+        return this.resolver;
+    }
+
     protected Gson getSerializer() {
         return this.gson;
     }
 
     protected Notification createNotification(ChangeEvent event) {
         Notification notification = new Notification();
+        notification.trace = new NotificationTrace();
+        notification.trace.stage(NotificationTrace.STAGE_HANDLER,
+                "event delay " + (System.currentTimeMillis()
+                        - event.getWhen().getTime()) + " ms");
         notification.event = getEventType();
-        notification.when = event.getWhen().getTime() / 1000L;
-        notification.who = event.getWho();
+        notification.eventTime = event.getWhen().getTime();
+        notification.when = notification.eventTime / 1000L;
+        notification.who = NotificationAccount.from(event.getWho());
         notification.change = event.getChange().changeId;
         notification.legacyChangeId = event.getChange()._number;
         notification.project = event.getChange().project;
@@ -125,125 +111,37 @@ public abstract class EventHandler {
 
         // Obtain information about the accounts that need to be
         // notified related to this event
-        List<Integer> notifiedUsers = obtainNotifiedAccounts(event);
-        if (notifiedUsers.isEmpty()) {
+        boolean useTopics = this.resolver.canUseTopics(
+                event.getChange(), event.getWho()._accountId);
+        AccountIdSet watchedOnly = new AccountIdSet();
+        AccountIdSet notifiedUsers = this.resolver.resolve(
+                event, getNotifyType(), useTopics, watchedOnly);
+        notification.watchedOnly = watchedOnly.isEmpty() ? null : watchedOnly;
+
+        // Discard the accounts without devices registered to the event
+        // (backwards, removing an account moves the last one to its place)
+        for (int i = notifiedUsers.size() - 1; i >= 0; i--) {
+            int accountId = notifiedUsers.get(i);
+            if (!this.uploader.isEventRegistered(accountId, getEventType())) {
+                notifiedUsers.remove(accountId);
+            }
+        }
+        if (notifiedUsers.isEmpty() && !useTopics) {
             // Nobody to notify about this event
             return;
         }
+        if (notification.trace != null) {
+            notification.trace.stage(NotificationTrace.STAGE_RECIPIENTS,
+                    notifiedUsers.size() + " accounts");
+        }
 
         // Perform notification
         if (log.isDebugEnabled()) {
             log.debug(String.format("[%s] Sending notification %s to %s",
                     pluginName, gson.toJson(notification),
-                    gson.toJson(notifiedUsers)));
-        }
-        this.uploader.notifyTo(notifiedUsers, notification);
-    }
-
-    private List<Integer> obtainNotifiedAccounts(ChangeEvent event) {
-        Set<Integer> notifiedUsers = new HashSet<>();
-        ChangeInfo change = event.getChange();
-        NotifyHandling notifyTo = event.getNotify();
-
-        // 1.- Owner of the change
-        notifiedUsers.add(change.owner._accountId);
-
-        // 2.- Reviewers
-        if (notifyTo.equals(NotifyHandling.OWNER_REVIEWERS) ||
-                notifyTo.equals(NotifyHandling.ALL)) {
-            if (change.reviewers != null) {
-                for (ReviewerState state : change.reviewers.keySet()) {
-                    Collection<AccountInfo> accounts =
-                            change.reviewers.get(state);
-                    for (AccountInfo account : accounts) {
-                        notifiedUsers.add(account._accountId);
-                    }
-                }
-            }
-        }
-
-        // 3.- Watchers
-        ChangeData changeData = obtainChangeData(change);
-        notifiedUsers.addAll(getWatchers(getNotifyType(), changeData));
-
-        // 4.- Remove the author of this event (he doesn't need to get
-        // the notification)
-        notifiedUsers.remove(event.getWho()._accountId);
-
-        return new ArrayList<>(notifiedUsers);
-    }
-
-    private Set<Integer> getWatchers(NotifyType type, ChangeData change) {
-        Set<Integer> watchers = new HashSet<>();
-        try {
-            for (AccountProjectWatch w : reviewdb.get().accountProjectWatches()
-                    .byProject(change.project())) {
-                add(watchers, w, type, change);
-            }
-            for (AccountProjectWatch w : reviewdb.get().accountProjectWatches()
-                    .byProject(this.allProjectsName)) {
-                add(watchers, w, type, change);
-            }
-        } catch (OrmException ex) {
-            log.error(String.format(
-                    "[%s] Failed to obtain watchers", pluginName), ex);
-        }
-        return watchers;
-    }
-
-    private boolean add(Set<Integer> watchers, AccountProjectWatch w,
-            NotifyType type, ChangeData change) throws OrmException {
-        IdentifiedUser user = identifiedUserFactory.create(w.getAccountId());
-
-        try {
-            if (filterMatch(user, w.getFilter(), change)) {
-                // If we are set to notify on this type, add the user.
-                // Otherwise, still return true to stop notifications for this user.
-                if (w.isNotify(type)) {
-                    watchers.add(w.getAccountId().get());
-                }
-                return true;
-            }
-        } catch (QueryParseException e) {
-            // Ignore broken filter expressions.
-        }
-        return false;
-    }
-
-    private boolean filterMatch(
-            CurrentUser user, String filter, ChangeData change)
-            throws OrmException, QueryParseException {
-        ChangeQueryBuilder qb = cqb.asUser(user);
-        Predicate<ChangeData> p = qb.is_visible();
-
-        if (filter != null) {
-            Predicate<ChangeData> filterPredicate = qb.parse(filter);
-            if (p == null) {
-                p = filterPredicate;
-            } else {
-                p = Predicate.and(filterPredicate, p);
-            }
-        }
-        return p == null || p.asMatchable().match(change);
-    }
-
-    private ChangeData obtainChangeData(ChangeInfo change) {
-        try {
-            QueryResult<ChangeData> changeQuery =
-                    cqp.query(cqb.parse("change:" + change._number));
-            List<ChangeData> changeQueryResults = changeQuery.entities();
-            if (changeQueryResults == null || changeQueryResults.isEmpty()) {
-                log.warn(String.format("[%s] No change found for %s",
-                        pluginName, change._number));
-                return null;
-            }
-            return changeQueryResults.get(0);
-
-        } catch (Exception ex) {
-            log.error(String.format("[%s] Failed to obtain change data: %d",
-                    pluginName, change._number), ex);
+                    notifiedUsers));
         }
-        return null;
+        this.uploader.notifyTo(notifiedUsers, notification, useTopics);
     }
 
     protected String formatAccount(AccountInfo account) {
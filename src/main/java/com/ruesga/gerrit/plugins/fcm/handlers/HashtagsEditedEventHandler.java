@@ -18,14 +18,8 @@ package com.ruesga.gerrit.plugins.fcm.handlers;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.HashtagsEditedListener;
 import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
-import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.IdentifiedUser.GenericFactory;
-import com.google.gerrit.server.config.AllProjectsName;
-import com.google.gerrit.server.query.change.ChangeQueryBuilder;
-import com.google.gerrit.server.query.change.ChangeQueryProcessor;
 import com.google.gson.annotations.SerializedName;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
@@ -42,17 +36,8 @@ public class HashtagsEditedEventHandler extends EventHandler
     public HashtagsEditedEventHandler(
             @PluginName String pluginName,
             FcmUploaderWorker uploader,
-            AllProjectsName allProjectsName,
-            ChangeQueryBuilder cqb,
-            ChangeQueryProcessor cqp,
-            Provider<ReviewDb> reviewdb,
-            GenericFactory identifiedUserFactory) {
-        super(pluginName,
-                uploader,
-                allProjectsName,
-                cqb, cqp,
-                reviewdb,
-                identifiedUserFactory);
+            RecipientResolver resolver) {
+        super(pluginName, uploader, resolver);
     }
 
     protected int getEventType() {
@@ -65,6 +50,10 @@ public class HashtagsEditedEventHandler extends EventHandler
 
     @Override
     public void onHashtagsEdited(Event event) {
+        if (!isEventRegistered()) {
+            return;
+        }
+
         HashtagsInfo hashtags = new HashtagsInfo();
         if (event.getRemovedHashtags() != null) {
             hashtags.removed = event.getRemovedHashtags().toArray(
@@ -75,7 +64,7 @@ public class HashtagsEditedEventHandler extends EventHandler
                     new String[event.getAddedHashtags().size()]);
         }
         Notification notification = createNotification(event);
-        notification.extra = getSerializer().toJson(hashtags);
+        notification.extra = getSerializer().toJsonTree(hashtags);
         notification.body = formatAccount(event.getWho())
                 + " changed change's hashtags";
 
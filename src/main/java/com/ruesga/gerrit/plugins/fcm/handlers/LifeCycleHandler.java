@@ -17,34 +17,70 @@ package com.ruesga.gerrit.plugins.fcm.handlers;
 
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.ruesga.gerrit.plugins.fcm.ClusterManager;
 import com.ruesga.gerrit.plugins.fcm.Configuration;
 import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DeviceGroupManager;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
 
 public class LifeCycleHandler implements LifecycleListener {
 
+    private final Configuration config;
     private final DatabaseManager db;
+    private final ClusterManager cluster;
+    private final TopicManager topics;
+    private final DeviceGroupManager groups;
     private final FcmUploaderWorker uploader;
+    private final Provider<RecipientResolver> resolver;
 
     @Inject
     public LifeCycleHandler(
             Configuration config,
             DatabaseManager db,
-            FcmUploaderWorker uploader) {
+            ClusterManager cluster,
+            TopicManager topics,
+            DeviceGroupManager groups,
+            FcmUploaderWorker uploader,
+            Provider<RecipientResolver> resolver) {
         super();
+        this.config = config;
         this.db = db;
+        this.cluster = cluster;
+        this.topics = topics;
+        this.groups = groups;
         this.uploader = uploader;
+        this.resolver = resolver;
     }
 
     @Override
     public void start() {
+        if (config.isReplica()) {
+            // Replicas don't dispatch notifications. Only open the database
+            // when is shared with the primaries, to serve the registrations.
+            if (this.db.isShared()) {
+                this.db.initialize();
+            }
+            return;
+        }
+
         this.db.initialize();
+        this.cluster.start();
+        this.topics.start();
+        this.groups.start();
         this.uploader.create();
     }
 
     @Override
     public void stop() {
+        if (!config.isReplica()) {
+            this.resolver.get().shutdown();
+        }
         this.uploader.shutdown();
+        this.topics.stop();
+        this.groups.stop();
+        this.cluster.stop();
         this.db.shutdown();
     }
 
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.handlers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.gerrit.extensions.client.ChangeStatus;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.rest.PipelineCacheInfo;
+
+/**
+ * Caches the project watchers of the events of the open changes (of every
+ * notify type), so the events of a change under active review don't
+ * resolve them from scratch. Only the watches without filters are resolved
+ * once: they only depend on the visibility of the change. The filters can
+ * match any field of the change (topic, hashtags, reviewers, labels...),
+ * so the watches with filters are cached, but evaluated on every event.
+ * The owner and the reviewers are always taken from the event.
+ *
+ * The changes are evicted once merged or abandoned, or when their status
+ * changes (ie. a published draft). The whole cache is invalidated with the
+ * {@link VisibilityCache} (the groups of an account or the permissions of
+ * a project changed), and when the watches of an account change, so the
+ * watchers that lost access to a change aren't notified, and the new ones
+ * are. The least recently used changes are evicted when it's full.
+ */
+@Singleton
+public class RecipientCache {
+
+    private static final int MAX_CACHED_CHANGES = 1000;
+
+    /**
+     * The watchers of a change for a notify type: the accounts of the
+     * watches without filters, and the watches with filters. They are never
+     * modified once published, so they can be read without locking.
+     */
+    public static class ChangeWatchers {
+        public final AccountIdSet unfiltered = new AccountIdSet();
+        public final List<AccountProjectWatch> filtered = new ArrayList<>();
+    }
+
+    /**
+     * The cached watchers of a change.
+     */
+    public static class ChangeRecipients {
+        private final ChangeStatus status;
+        private final long expiresOn;
+        // The watchers of every notify type, with and without topics
+        private final AtomicReferenceArray<ChangeWatchers> watchers =
+                new AtomicReferenceArray<>(NotifyType.values().length * 2);
+
+        private ChangeRecipients(ChangeStatus status, long expiresOn) {
+            this.status = status;
+            this.expiresOn = expiresOn;
+        }
+
+        /**
+         * Returns the watchers of a notify type, or null if they weren't
+         * resolved yet.
+         */
+        public ChangeWatchers getWatchers(NotifyType type, boolean useTopics) {
+            return watchers.get(type.ordinal() * 2 + (useTopics ? 1 : 0));
+        }
+
+        public void setWatchers(
+                NotifyType type, boolean useTopics, ChangeWatchers resolved) {
+            watchers.set(type.ordinal() * 2 + (useTopics ? 1 : 0), resolved);
+        }
+    }
+
+    private final long ttl;
+    // In access order, so the least recently used change is the first one
+    private final Map<Integer, ChangeRecipients> changes =
+            new LinkedHashMap<Integer, ChangeRecipients>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, ChangeRecipients> eldest) {
+            return size() > MAX_CACHED_CHANGES;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Inject
+    public RecipientCache(Configuration config) {
+        super();
+        this.ttl = config.recipientCacheTtl * 1000L;
+    }
+
+    public boolean isEnabled() {
+        return ttl > 0;
+    }
+
+    /**
+     * Returns the cached watchers of a change, or an empty entry to cache
+     * them. Returns null if the change isn't open (or the cache is
+     * disabled), so its watchers must be resolved from scratch.
+     */
+    public ChangeRecipients get(ChangeInfo change) {
+        if (!isEnabled() || change._number == null
+                || (change.status != null
+                        && change.status != ChangeStatus.NEW
+                        && change.status != ChangeStatus.DRAFT)) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (changes) {
+            ChangeRecipients recipients = changes.get(change._number);
+            if (recipients != null && recipients.expiresOn > now
+                    && recipients.status == change.status) {
+                hits.incrementAndGet();
+                return recipients;
+            }
+            misses.incrementAndGet();
+
+            recipients = new ChangeRecipients(change.status, now + ttl);
+            changes.put(change._number, recipients);
+            return recipients;
+        }
+    }
+
+    public void evict(int change) {
+        synchronized (changes) {
+            changes.remove(change);
+        }
+    }
+
+    /**
+     * Discards all the cached watchers. The resolutions in progress keep
+     * filling their (already discarded) entries, so they aren't reused.
+     */
+    public void invalidateAll() {
+        synchronized (changes) {
+            changes.clear();
+        }
+    }
+
+    public PipelineCacheInfo getCacheInfo() {
+        PipelineCacheInfo info = new PipelineCacheInfo();
+        synchronized (changes) {
+            info.size = changes.size();
+        }
+        info.hits = hits.get();
+        info.misses = misses.get();
+        long lookups = info.hits + info.misses;
+        info.hitRate = lookups == 0 ? 0 : (double) info.hits / lookups;
+        return info;
+    }
+}
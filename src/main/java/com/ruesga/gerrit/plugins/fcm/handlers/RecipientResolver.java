@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.handlers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.api.changes.NotifyHandling;
+import com.google.gerrit.extensions.client.ReviewerState;
+import com.google.gerrit.extensions.common.AccountInfo;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.events.ChangeEvent;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.IdentifiedUser.GenericFactory;
+import com.google.gerrit.server.config.AllProjectsName;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.server.query.QueryResult;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeQueryBuilder;
+import com.google.gerrit.server.query.change.ChangeQueryProcessor;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.handlers.RecipientCache.ChangeRecipients;
+import com.ruesga.gerrit.plugins.fcm.handlers.RecipientCache.ChangeWatchers;
+
+/**
+ * Resolves the accounts that need to be notified about an event: the owner
+ * of the change, its reviewers and the project watchers.
+ */
+@Singleton
+public class RecipientResolver {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(RecipientResolver.class);
+
+    private static final AccountIdSet NO_ACCOUNTS = new AccountIdSet();
+
+    // Shorter watch lists are evaluated in the thread of the event
+    private static final int MIN_PARALLEL_WATCHES = 256;
+    private static final int MIN_WATCHES_PER_TASK = 64;
+
+    // Buffers of the resolutions, reused by every event of a thread
+    private final ThreadLocal<AccountIdSet> notifiedBuffer =
+            new ThreadLocal<AccountIdSet>() {
+        @Override
+        protected AccountIdSet initialValue() {
+            return new AccountIdSet(64);
+        }
+    };
+    private final ThreadLocal<AccountIdSet> watchersBuffer =
+            new ThreadLocal<AccountIdSet>() {
+        @Override
+        protected AccountIdSet initialValue() {
+            return new AccountIdSet(64);
+        }
+    };
+
+    private final String pluginName;
+    private final AllProjectsName allProjectsName;
+    private final ChangeQueryBuilder cqb;
+    private final ChangeQueryProcessor cqp;
+    private final Provider<ReviewDb> reviewdb;
+    private final GenericFactory identifiedUserFactory;
+    private final Provider<AnonymousUser> anonymousUser;
+    private final TopicManager topics;
+    private final DatabaseManager db;
+    private final VisibilityCache visibility;
+    private final RecipientCache recipients;
+    private final OneOffRequestContext requestContext;
+    private final ChangeData.Factory changeDataFactory;
+    private final ForkJoinPool watcherPool;
+
+    @Inject
+    public RecipientResolver(
+            @PluginName String pluginName,
+            AllProjectsName allProjectsName,
+            ChangeQueryBuilder cqb,
+            ChangeQueryProcessor cqp,
+            Provider<ReviewDb> reviewdb,
+            GenericFactory identifiedUserFactory,
+            Provider<AnonymousUser> anonymousUser,
+            TopicManager topics,
+            DatabaseManager db,
+            VisibilityCache visibility,
+            RecipientCache recipients,
+            Configuration config,
+            OneOffRequestContext requestContext,
+            ChangeData.Factory changeDataFactory) {
+        super();
+        this.pluginName = pluginName;
+        this.allProjectsName = allProjectsName;
+        this.cqb = cqb;
+        this.cqp = cqp;
+        this.reviewdb = reviewdb;
+        this.identifiedUserFactory = identifiedUserFactory;
+        this.anonymousUser = anonymousUser;
+        this.topics = topics;
+        this.db = db;
+        this.visibility = visibility;
+        this.recipients = recipients;
+        this.requestContext = requestContext;
+        this.changeDataFactory = changeDataFactory;
+        this.watcherPool = config != null && config.watcherParallelism > 1
+                ? new ForkJoinPool(config.watcherParallelism)
+                : null;
+    }
+
+    public void shutdown() {
+        if (watcherPool != null) {
+            watcherPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Called when a change is closed, so its watchers aren't cached.
+     */
+    public void onChangeClosed(ChangeInfo change) {
+        recipients.evict(change._number);
+    }
+
+    /**
+     * Returns whether the event of a change can be delivered through the
+     * project topics. Topic messages reach every subscribed device without
+     * checking the permissions of its account, so only changes visible to
+     * anonymous users can be delivered through them. Neither they can skip
+     * the author of the event, so events of subscribed authors are
+     * delivered directly.
+     */
+    public boolean canUseTopics(ChangeInfo change, int authorId) {
+        if (topics == null || !topics.isEnabled()
+                || !topics.hasSubscribers(change.project)
+                || topics.isSubscribed(change.project, authorId)) {
+            return false;
+        }
+
+        ChangeData changeData = obtainChangeData(change);
+        try {
+            return changeData != null
+                    && filterMatch(anonymousUser.get(), null, changeData);
+        } catch (OrmException | QueryParseException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to check the visibility of change %d",
+                    pluginName, change._number), ex);
+            return false;
+        }
+    }
+
+    public AccountIdSet resolve(ChangeEvent event, NotifyType type) {
+        return resolve(event, type, false);
+    }
+
+    /**
+     * @param useTopics whether the event is delivered through the project
+     * topics, so the watchers without filters whose registrations are all
+     * subscribed to the topics don't need to be resolved
+     */
+    public AccountIdSet resolve(
+            ChangeEvent event, NotifyType type, boolean useTopics) {
+        return resolve(event, type, useTopics, null);
+    }
+
+    /**
+     * @param watchedOnly if not null, it's filled with the accounts that
+     * are only notified because they watch the project of the change
+     * @return the accounts to notify. The set is a buffer of the calling
+     * thread, only valid until its next resolution.
+     */
+    public AccountIdSet resolve(ChangeEvent event, NotifyType type,
+            boolean useTopics, AccountIdSet watchedOnly) {
+        AccountIdSet notifiedUsers = notifiedBuffer.get();
+        notifiedUsers.clear();
+        ChangeInfo change = event.getChange();
+        NotifyHandling notifyTo = event.getNotify();
+        boolean notifyReviewers =
+                notifyTo.equals(NotifyHandling.OWNER_REVIEWERS)
+                || notifyTo.equals(NotifyHandling.ALL);
+
+        // 1.- Owner of the change
+        notifiedUsers.add(change.owner._accountId);
+
+        // 2.- Reviewers
+        if (notifyReviewers && change.reviewers != null) {
+            for (ReviewerState state : change.reviewers.keySet()) {
+                Collection<AccountInfo> accounts =
+                        change.reviewers.get(state);
+                for (AccountInfo account : accounts) {
+                    notifiedUsers.add(account._accountId);
+                }
+            }
+        }
+
+        // 3.- Watchers. The watches of the consecutive events of an open
+        // change are cached, but the ones with filters are evaluated on
+        // every event (the change could match them now)
+        ChangeRecipients cached = recipients.get(change);
+        ChangeWatchers resolved = cached != null
+                ? cached.getWatchers(type, useTopics)
+                : null;
+        ChangeData changeData = null;
+        if (resolved == null) {
+            resolved = new ChangeWatchers();
+            changeData = getWatchers(type, change, useTopics,
+                    resolved.unfiltered, resolved.filtered);
+            if (cached != null) {
+                cached.setWatchers(type, useTopics, resolved);
+            }
+        }
+        AccountIdSet watchers = resolved.unfiltered;
+        if (!resolved.filtered.isEmpty()) {
+            watchers = watchersBuffer.get();
+            watchers.clear();
+            watchers.addAll(resolved.unfiltered);
+            if (changeData == null) {
+                changeData = obtainChangeData(change);
+            }
+            if (changeData != null) {
+                try {
+                    addWatchers(watchers, resolved.filtered, type,
+                            changeData, NO_ACCOUNTS);
+                } catch (OrmException ex) {
+                    log.error(String.format(
+                            "[%s] Failed to obtain watchers", pluginName), ex);
+                }
+            }
+        }
+        if (watchedOnly != null) {
+            watchedOnly.addAll(watchers);
+            watchedOnly.removeAll(notifiedUsers);
+        }
+        notifiedUsers.addAll(watchers);
+
+        // 4.- Remove the author of this event (he doesn't need to get
+        // the notification)
+        notifiedUsers.remove(event.getWho()._accountId);
+
+        return notifiedUsers;
+    }
+
+    /**
+     * Resolves the accounts of the watches without filters of the project
+     * of a change (and of All-Projects), and collects the watches with
+     * filters to be evaluated by the caller.
+     *
+     * @return the data of the change, if it was obtained
+     */
+    protected ChangeData getWatchers(NotifyType type, ChangeInfo change,
+            boolean useTopics, AccountIdSet watchers,
+            List<AccountProjectWatch> filtered) {
+        ChangeData changeData = obtainChangeData(change);
+        if (changeData == null) {
+            return null;
+        }
+
+        try {
+            AccountIdSet covered = useTopics
+                    ? topics.getCoveredAccounts(change.project)
+                    : NO_ACCOUNTS;
+            addWatchers(watchers, split(reviewdb.get().accountProjectWatches()
+                    .byProject(changeData.project()), filtered),
+                    type, changeData, covered);
+            covered = useTopics
+                    ? topics.getCoveredAccounts(this.allProjectsName.get())
+                    : NO_ACCOUNTS;
+            addWatchers(watchers, split(reviewdb.get().accountProjectWatches()
+                    .byProject(this.allProjectsName), filtered),
+                    type, changeData, covered);
+        } catch (OrmException ex) {
+            log.error(String.format(
+                    "[%s] Failed to obtain watchers", pluginName), ex);
+        }
+        return changeData;
+    }
+
+    /**
+     * Returns the watches without filters, and adds the rest to filtered.
+     */
+    private static List<AccountProjectWatch> split(
+            Iterable<AccountProjectWatch> watches,
+            List<AccountProjectWatch> filtered) {
+        List<AccountProjectWatch> unfiltered = new ArrayList<>();
+        for (AccountProjectWatch w : watches) {
+            if (w.getFilter() == null) {
+                unfiltered.add(w);
+            } else {
+                filtered.add(w);
+            }
+        }
+        return unfiltered;
+    }
+
+    protected void addWatchers(AccountIdSet watchers,
+            Iterable<AccountProjectWatch> watches, NotifyType type,
+            ChangeData change, AccountIdSet covered) throws OrmException {
+        List<AccountProjectWatch> list = new ArrayList<>();
+        for (AccountProjectWatch w : watches) {
+            list.add(w);
+        }
+        if (watcherPool == null || list.size() < MIN_PARALLEL_WATCHES) {
+            for (AccountProjectWatch w : list) {
+                add(watchers, w, type, change, covered);
+            }
+            return;
+        }
+
+        // Split the watches in a few tasks per thread of the pool. The
+        // fields of a ChangeData are loaded lazily and it isn't thread-safe,
+        // so every task builds its own from the change (loaded here)
+        int perTask = Math.max(MIN_WATCHES_PER_TASK,
+                list.size() / (watcherPool.getParallelism() * 4));
+        AtomicReference<OrmException> error = new AtomicReference<>();
+        watchers.addAll(watcherPool.invoke(new WatchersTask(list, 0,
+                list.size(), perTask, type, change.change(), covered, error)));
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Evaluates a range of the watches in the threads of the watcher pool.
+     * These threads are out of the scope of any request, so every task
+     * opens its own request context (and ReviewDb), and evaluates the
+     * watches against its own ChangeData.
+     */
+    private class WatchersTask extends RecursiveTask<AccountIdSet> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<AccountProjectWatch> watches;
+        private final int from;
+        private final int to;
+        private final int perTask;
+        private final NotifyType type;
+        private final Change change;
+        private final AccountIdSet covered;
+        private final AtomicReference<OrmException> error;
+
+        WatchersTask(List<AccountProjectWatch> watches, int from, int to,
+                int perTask, NotifyType type, Change change,
+                AccountIdSet covered, AtomicReference<OrmException> error) {
+            this.watches = watches;
+            this.from = from;
+            this.to = to;
+            this.perTask = perTask;
+            this.type = type;
+            this.change = change;
+            this.covered = covered;
+            this.error = error;
+        }
+
+        @Override
+        protected AccountIdSet compute() {
+            if (to - from > perTask) {
+                int middle = (from + to) >>> 1;
+                WatchersTask left = new WatchersTask(watches, from, middle,
+                        perTask, type, change, covered, error);
+                left.fork();
+                AccountIdSet result = new WatchersTask(watches, middle, to,
+                        perTask, type, change, covered, error).compute();
+                result.addAll(left.join());
+                return result;
+            }
+
+            AccountIdSet result = new AccountIdSet();
+            try (ManualRequestContext ctx = requestContext.open()) {
+                ChangeData changeData =
+                        changeDataFactory.create(reviewdb.get(), change);
+                for (int i = from; i < to; i++) {
+                    add(result, watches.get(i), type, changeData, covered);
+                }
+            } catch (OrmException ex) {
+                error.compareAndSet(null, ex);
+            }
+            return result;
+        }
+    }
+
+    private boolean add(AccountIdSet watchers, AccountProjectWatch w,
+            NotifyType type, ChangeData change, AccountIdSet covered)
+            throws OrmException {
+        // Most of the watchers never registered a device. Skip them before
+        // evaluating the visibility and the filter of the watch
+        if (!isRegistered(w.getAccountId().get())) {
+            return false;
+        }
+        if (w.getFilter() == null
+                && covered.contains(w.getAccountId().get())) {
+            // Delivered through the project topics
+            return true;
+        }
+
+        try {
+            if (matches(w, change)) {
+                // If we are set to notify on this type, add the user.
+                // Otherwise, still return true to stop notifications for this user.
+                if (w.isNotify(type)) {
+                    watchers.add(w.getAccountId().get());
+                }
+                return true;
+            }
+        } catch (QueryParseException e) {
+            // Ignore broken filter expressions.
+        }
+        return false;
+    }
+
+    protected boolean isRegistered(int accountId) {
+        return db.isRegistered(accountId);
+    }
+
+    /**
+     * Returns whether the change is visible to the account of a watch and
+     * matches its filter.
+     */
+    protected boolean matches(AccountProjectWatch w, ChangeData change)
+            throws OrmException, QueryParseException {
+        // The visibility of the changes of a branch rarely changes between
+        // events, so it is cached (except for drafts, only visible to some
+        // accounts)
+        Change c = change.change();
+        boolean cacheable = visibility.isEnabled()
+                && c.getStatus() != Change.Status.DRAFT;
+        int accountId = w.getAccountId().get();
+        String project = c.getProject().get();
+        String branch = c.getDest().get();
+        Boolean visible = cacheable
+                ? visibility.get(accountId, project, branch)
+                : null;
+        if (visible != null && (!visible || w.getFilter() == null)) {
+            return visible;
+        }
+
+        IdentifiedUser user = identifiedUserFactory.create(w.getAccountId());
+        ChangeQueryBuilder qb = cqb.asUser(user);
+        if (visible == null) {
+            long generation = visibility.getGeneration();
+            Predicate<ChangeData> p = qb.is_visible();
+            visible = p == null || p.asMatchable().match(change);
+            if (cacheable) {
+                visibility.put(accountId, project, branch, visible, generation);
+            }
+            if (!visible) {
+                return false;
+            }
+        }
+        return w.getFilter() == null
+                || qb.parse(w.getFilter()).asMatchable().match(change);
+    }
+
+    private boolean filterMatch(
+            CurrentUser user, String filter, ChangeData change)
+            throws OrmException, QueryParseException {
+        ChangeQueryBuilder qb = cqb.asUser(user);
+        Predicate<ChangeData> p = qb.is_visible();
+
+        if (filter != null) {
+            Predicate<ChangeData> filterPredicate = qb.parse(filter);
+            if (p == null) {
+                p = filterPredicate;
+            } else {
+                p = Predicate.and(filterPredicate, p);
+            }
+        }
+        return p == null || p.asMatchable().match(change);
+    }
+
+    private ChangeData obtainChangeData(ChangeInfo change) {
+        try {
+            QueryResult<ChangeData> changeQuery =
+                    cqp.query(cqb.parse("change:" + change._number));
+            List<ChangeData> changeQueryResults = changeQuery.entities();
+            if (changeQueryResults == null || changeQueryResults.isEmpty()) {
+                log.warn(String.format("[%s] No change found for %s",
+                        pluginName, change._number));
+                return null;
+            }
+            return changeQueryResults.get(0);
+
+        } catch (Exception ex) {
+            log.error(String.format("[%s] Failed to obtain change data: %d",
+                    pluginName, change._number), ex);
+        }
+        return null;
+    }
+}
@@ -21,14 +21,9 @@ import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.common.AccountInfo;
 import com.google.gerrit.extensions.events.ReviewerAddedListener;
 import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
-import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.IdentifiedUser.GenericFactory;
-import com.google.gerrit.server.config.AllProjectsName;
-import com.google.gerrit.server.query.change.ChangeQueryBuilder;
-import com.google.gerrit.server.query.change.ChangeQueryProcessor;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.messaging.NotificationAccount;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
 
@@ -39,17 +34,8 @@ public class ReviewerAddedEventHandler extends EventHandler
     public ReviewerAddedEventHandler(
             @PluginName String pluginName,
             FcmUploaderWorker uploader,
-            AllProjectsName allProjectsName,
-            ChangeQueryBuilder cqb,
-            ChangeQueryProcessor cqp,
-            Provider<ReviewDb> reviewdb,
-            GenericFactory identifiedUserFactory) {
-        super(pluginName,
-                uploader,
-                allProjectsName,
-                cqb, cqp,
-                reviewdb,
-                identifiedUserFactory);
+            RecipientResolver resolver) {
+        super(pluginName, uploader, resolver);
     }
 
     protected int getEventType() {
@@ -62,6 +48,10 @@ public class ReviewerAddedEventHandler extends EventHandler
 
     @Override
     public void onReviewersAdded(Event event) {
+        if (!isEventRegistered()) {
+            return;
+        }
+
         int count = event.getReviewers().size();
         String[] reviewers = new String[count];
         for (int i = 0; i < count; i++) {
@@ -69,7 +59,8 @@ public class ReviewerAddedEventHandler extends EventHandler
             reviewers[i] = formatAccount(reviewer);
         }
         Notification notification = createNotification(event);
-        notification.extra = getSerializer().toJson(event.getReviewers());
+        notification.extra = getSerializer().toJsonTree(
+                NotificationAccount.from(event.getReviewers()));
         notification.body = formatAccount(event.getWho())
                 + " added " + Arrays.toString(reviewers)
                 + " as reviewer on this changed";
@@ -18,14 +18,9 @@ package com.ruesga.gerrit.plugins.fcm.handlers;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.ReviewerDeletedListener;
 import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
-import com.google.gerrit.reviewdb.server.ReviewDb;
-import com.google.gerrit.server.IdentifiedUser.GenericFactory;
-import com.google.gerrit.server.config.AllProjectsName;
-import com.google.gerrit.server.query.change.ChangeQueryBuilder;
-import com.google.gerrit.server.query.change.ChangeQueryProcessor;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.messaging.NotificationAccount;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
 import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
 
@@ -36,17 +31,8 @@ public class ReviewerDeletedEventHandler extends EventHandler
     public ReviewerDeletedEventHandler(
             @PluginName String pluginName,
             FcmUploaderWorker uploader,
-            AllProjectsName allProjectsName,
-            ChangeQueryBuilder cqb,
-            ChangeQueryProcessor cqp,
-            Provider<ReviewDb> reviewdb,
-            GenericFactory identifiedUserFactory) {
-        super(pluginName,
-                uploader,
-                allProjectsName,
-                cqb, cqp,
-                reviewdb,
-                identifiedUserFactory);
+            RecipientResolver resolver) {
+        super(pluginName, uploader, resolver);
     }
 
     protected int getEventType() {
@@ -59,8 +45,13 @@ public class ReviewerDeletedEventHandler extends EventHandler
 
     @Override
     public void onReviewerDeleted(Event event) {
+        if (!isEventRegistered()) {
+            return;
+        }
+
         Notification notification = createNotification(event);
-        notification.extra = getSerializer().toJson(event.getReviewer());
+        notification.extra = getSerializer().toJsonTree(
+                NotificationAccount.from(event.getReviewer()));
         notification.body = formatAccount(event.getWho())
                 + " removed " + formatAccount(event.getReviewer())
                 + " as reviewer on this changed";
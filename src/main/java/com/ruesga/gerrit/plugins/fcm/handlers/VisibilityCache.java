@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.handlers;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gerrit.audit.GroupMemberAuditListener;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountGroupById;
+import com.google.gerrit.reviewdb.client.AccountGroupMember;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.rest.PipelineCacheInfo;
+
+/**
+ * Caches whether the changes of a branch are visible to an account, so the
+ * permissions of the project watchers aren't evaluated on every event.
+ * The decisions expire after a short time, and are invalidated when the
+ * groups of an account or the permissions of a project change in this
+ * node (the changes done through other nodes are seen after the ttl).
+ * The {@link RecipientCache} is built on top of these decisions, so it's
+ * invalidated with them, and when the watches of an account change.
+ */
+@Singleton
+public class VisibilityCache
+        implements GroupMemberAuditListener, GitReferenceUpdatedListener {
+
+    private static final String REFS_CONFIG = "refs/meta/config";
+    private static final String REFS_USERS = "refs/users/";
+
+    private static class Key {
+        final int accountId;
+        final String project;
+        final String branch;
+
+        Key(int accountId, String project, String branch) {
+            this.accountId = accountId;
+            this.project = project;
+            this.branch = branch;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return accountId == other.accountId
+                    && project.equals(other.project)
+                    && branch.equals(other.branch);
+        }
+
+        @Override
+        public int hashCode() {
+            return (accountId * 31 + project.hashCode()) * 31
+                    + branch.hashCode();
+        }
+    }
+
+    private static class Decision {
+        final boolean visible;
+        final long expiresOn;
+
+        Decision(boolean visible, long expiresOn) {
+            this.visible = visible;
+            this.expiresOn = expiresOn;
+        }
+    }
+
+    private final RecipientCache recipients;
+    private final String allUsersName;
+    private final long ttl;
+    private final int maxSize;
+    private final ConcurrentMap<Key, Decision> decisions =
+            new ConcurrentHashMap<>();
+    // Incremented on every invalidation, so decisions evaluated before
+    // it are not cached
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Inject
+    public VisibilityCache(
+            Configuration config,
+            RecipientCache recipients,
+            AllUsersName allUsersName) {
+        super();
+        this.recipients = recipients;
+        this.allUsersName = allUsersName.get();
+        this.ttl = config.visibilityCacheTtl * 1000L;
+        this.maxSize = config.visibilityCacheSize;
+    }
+
+    public boolean isEnabled() {
+        return ttl > 0 && maxSize > 0;
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put}, read before
+     * evaluating the visibility.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns whether the changes of a branch are visible to an account, or
+     * null if it isn't cached.
+     */
+    public Boolean get(int accountId, String project, String branch) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Decision decision = decisions.get(new Key(accountId, project, branch));
+        if (decision == null
+                || decision.expiresOn <= System.currentTimeMillis()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return decision.visible;
+    }
+
+    public void put(int accountId, String project, String branch,
+            boolean visible, long generation) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (decisions.size() >= maxSize) {
+            decisions.clear();
+        }
+        decisions.put(new Key(accountId, project, branch),
+                new Decision(visible, System.currentTimeMillis() + ttl));
+
+        // Discard it if it was evaluated before an invalidation
+        if (this.generation.get() != generation) {
+            decisions.remove(new Key(accountId, project, branch));
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        decisions.clear();
+        recipients.invalidateAll();
+    }
+
+    public void invalidateAccount(int accountId) {
+        generation.incrementAndGet();
+        for (Iterator<Key> it = decisions.keySet().iterator(); it.hasNext();) {
+            if (it.next().accountId == accountId) {
+                it.remove();
+            }
+        }
+        // The account could now see changes whose cached watchers don't
+        // include it, so all of them are discarded
+        recipients.invalidateAll();
+    }
+
+    public PipelineCacheInfo getCacheInfo() {
+        PipelineCacheInfo info = new PipelineCacheInfo();
+        info.size = decisions.size();
+        info.hits = hits.get();
+        info.misses = misses.get();
+        long lookups = info.hits + info.misses;
+        info.hitRate = lookups == 0 ? 0 : (double) info.hits / lookups;
+        return info;
+    }
+
+    @Override
+    public void onGitReferenceUpdated(Event event) {
+        // The permissions are inherited by the child projects
+        if (REFS_CONFIG.equals(event.getRefName())) {
+            invalidateAll();
+        } else if (allUsersName.equals(event.getProjectName())
+                && event.getRefName().startsWith(REFS_USERS)) {
+            // The watches of an account could have changed
+            recipients.invalidateAll();
+        }
+    }
+
+    @Override
+    public void onAddAccountsToGroup(
+            Account.Id me, Collection<AccountGroupMember> added) {
+        invalidateMembers(added);
+    }
+
+    @Override
+    public void onDeleteAccountsFromGroup(
+            Account.Id me, Collection<AccountGroupMember> removed) {
+        invalidateMembers(removed);
+    }
+
+    @Override
+    public void onAddGroupsToGroup(
+            Account.Id me, Collection<AccountGroupById> added) {
+        // The members of the included groups are unknown here
+        invalidateAll();
+    }
+
+    @Override
+    public void onDeleteGroupsFromGroup(
+            Account.Id me, Collection<AccountGroupById> deleted) {
+        invalidateAll();
+    }
+
+    private void invalidateMembers(Collection<AccountGroupMember> members) {
+        for (AccountGroupMember member : members) {
+            invalidateAccount(member.getAccountId().get());
+        }
+    }
+}
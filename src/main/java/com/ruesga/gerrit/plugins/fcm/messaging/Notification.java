@@ -15,11 +15,14 @@
  */
 package com.ruesga.gerrit.plugins.fcm.messaging;
 
-import com.google.gerrit.extensions.common.AccountInfo;
+import java.util.Set;
+
+import com.google.gson.JsonElement;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
 
 public class Notification {
     public long when;
-    public AccountInfo who;
+    public NotificationAccount who;
     public String token;
     public int event;
     public String change;
@@ -29,9 +32,17 @@ public class Notification {
     public String branch;
     public String topic;
     public String subject;
-    public String extra;
+    public JsonElement extra;
+    public Boolean truncated;
 
     public transient String body;
+    // When the event happened (in milliseconds), part of its identity
+    public transient long eventTime;
+    public transient NotificationTrace trace;
+    // Registrations reached by the project topic messages
+    public transient Set<String> topicDeliveries;
+    // Accounts notified only because they watch the project of the change
+    public transient AccountIdSet watchedOnly;
 
     @Override
     public Object clone() {
@@ -48,7 +59,12 @@ public class Notification {
         other.topic = topic;
         other.subject = subject;
         other.extra = extra;
+        other.truncated = truncated;
         other.body = body;
+        other.eventTime = eventTime;
+        other.trace = trace;
+        other.topicDeliveries = topicDeliveries;
+        other.watchedOnly = watchedOnly;
         return other;
     }
 }
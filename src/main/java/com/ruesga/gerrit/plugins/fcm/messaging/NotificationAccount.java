@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.messaging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.gerrit.extensions.common.AccountInfo;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * The minimal projection of an account sent to the devices. Avatars,
+ * emails and other details of the account are left out to keep the FCM
+ * payload small.
+ */
+public class NotificationAccount {
+    @SerializedName("_accountId") public Integer accountId;
+    @SerializedName("name") public String name;
+    @SerializedName("username") public String username;
+
+    public static NotificationAccount from(AccountInfo account) {
+        if (account == null) {
+            return null;
+        }
+        NotificationAccount compact = new NotificationAccount();
+        compact.accountId = account._accountId;
+        compact.name = account.name;
+        compact.username = account.username;
+        return compact;
+    }
+
+    public static List<NotificationAccount> from(
+            Collection<AccountInfo> accounts) {
+        if (accounts == null) {
+            return null;
+        }
+        List<NotificationAccount> compact = new ArrayList<>(accounts.size());
+        for (AccountInfo account : accounts) {
+            compact.add(from(account));
+        }
+        return compact;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.messaging;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * The summary of the events of a change accumulated in a digest.
+ */
+public class NotificationDigestEntry {
+    @SerializedName("change") public String change;
+    @SerializedName("legacyChangeId") public int legacyChangeId;
+    @SerializedName("project") public String project;
+    @SerializedName("branch") public String branch;
+    @SerializedName("subject") public String subject;
+    // A bitwise flag with the events of the change
+    @SerializedName("events") public int events;
+    @SerializedName("count") public int count;
+    // When the last event of the change happened
+    @SerializedName("when") public long when;
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ruesga.gerrit.plugins.fcm.rest.NotificationTraceInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.NotificationTraceStageInfo;
+
+/**
+ * Records when a notification goes through every stage, from the event
+ * handler to the FCM response of every recipient device.
+ *
+ * The trace is completed once every recipient device got its final
+ * result. Every unit of pending work (an account to look up or a device
+ * to send to) is accounted with {@link #fork(int)} and {@link #join()}.
+ */
+public class NotificationTrace {
+
+    public static final String STAGE_HANDLER = "handler";
+    public static final String STAGE_RECIPIENTS = "recipients";
+    public static final String STAGE_LOOKUP = "lookup";
+    public static final String STAGE_ATTEMPT = "attempt";
+    public static final String STAGE_RETRY = "retry";
+    public static final String STAGE_RESULT = "result";
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static class Stage {
+        String name;
+        long at;
+        Integer accountId;
+        String device;
+        String detail;
+    }
+
+    private final String id;
+    private final long startedOn;
+    private final long start;
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<Integer> accounts = new ArrayList<>();
+    private int pending;
+    private long duration = -1;
+
+    public NotificationTrace() {
+        super();
+        this.startedOn = System.currentTimeMillis();
+        this.start = System.nanoTime();
+        this.id = Long.toHexString(startedOn)
+                + "-" + Long.toHexString(sequence.incrementAndGet());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void stage(String name, String detail) {
+        stage(name, null, null, detail);
+    }
+
+    public synchronized void stage(String name,
+            Integer accountId, String device, String detail) {
+        Stage stage = new Stage();
+        stage.name = name;
+        stage.at = System.nanoTime();
+        stage.accountId = accountId;
+        stage.device = device;
+        stage.detail = detail;
+        stages.add(stage);
+        if (accountId != null && !accounts.contains(accountId)) {
+            accounts.add(accountId);
+        }
+    }
+
+    /**
+     * Accounts new pending units of work.
+     */
+    public synchronized void fork(int count) {
+        pending += count;
+    }
+
+    /**
+     * Completes a pending unit of work.
+     *
+     * @return whether the trace is now completed
+     */
+    public synchronized boolean join() {
+        pending--;
+        if (pending == 0 && duration < 0) {
+            duration = System.nanoTime() - start;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean isCompleted() {
+        return duration >= 0;
+    }
+
+    public synchronized boolean hasAccount(int accountId) {
+        return accounts.contains(accountId);
+    }
+
+    public synchronized NotificationTraceInfo toInfo(Notification notification) {
+        NotificationTraceInfo info = new NotificationTraceInfo();
+        info.id = id;
+        info.event = notification.event;
+        info.when = notification.when;
+        info.change = notification.legacyChangeId;
+        info.project = notification.project;
+        info.startedOn = startedOn;
+        info.duration = duration < 0 ? null : toMillis(duration);
+        info.stages = new ArrayList<>(stages.size());
+        for (Stage stage : stages) {
+            NotificationTraceStageInfo s = new NotificationTraceStageInfo();
+            s.stage = stage.name;
+            s.elapsed = toMillis(stage.at - start);
+            s.account = stage.accountId;
+            s.device = stage.device;
+            s.detail = stage.detail;
+            info.stages.add(s);
+        }
+        return info;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -28,4 +28,6 @@ public class CloudNotificationEvents {
     public static final int PATCHSET_CREATED_EVENT = 0x200;
     public static final int TOPIC_CHANGED_EVENT = 0x400;
     public static final int ASSIGNEE_CHANGED_EVENT = 0x800;
+    // A periodic summary of the events of the registrations in digest mode
+    public static final int DIGEST_EVENT = 0x1000;
 }
@@ -39,6 +39,34 @@ public class CloudNotificationInfo {
      */
     @SerializedName("events") public int events;
 
+    /**
+     * A bitwise flag to indicate which of the notified events are only
+     * sent in the periodic digest.
+     * @see CloudNotificationEvents
+     */
+    @SerializedName("digestEvents") public int digestEvents;
+
+    /**
+     * Whether the events of changes only watched by the account (it isn't
+     * the owner or a reviewer of the change) are only sent in the periodic
+     * digest.
+     */
+    @SerializedName("digestWatched") public boolean digestWatched;
+
+    /**
+     * Only notify the changes that match these project, branch and topic
+     * patterns (all of them if absent).
+     * @see CloudNotificationFilterInfo
+     */
+    @SerializedName("include") public CloudNotificationFilterInfo include;
+
+    /**
+     * Don't notify the changes that match any of these project, branch or
+     * topic patterns.
+     * @see CloudNotificationFilterInfo
+     */
+    @SerializedName("exclude") public CloudNotificationFilterInfo exclude;
+
     /**
      * Firebase response mode.
      * @see CloudNotificationResponseMode
@@ -46,4 +74,11 @@ public class CloudNotificationInfo {
     @SerializedName("responseMode")
     public CloudNotificationResponseMode responseMode =
             CloudNotificationResponseMode.BOTH;
+
+    /**
+     * The version of the FCM data payload format.
+     * @see CloudNotificationPayloadVersion
+     */
+    @SerializedName("payloadVersion")
+    public int payloadVersion = CloudNotificationPayloadVersion.LEGACY_VERSION;
 }
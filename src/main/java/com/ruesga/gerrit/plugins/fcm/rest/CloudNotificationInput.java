@@ -29,6 +29,34 @@ public class CloudNotificationInput {
      */
     @SerializedName("events") public int events;
 
+    /**
+     * A bitwise flag to indicate which of the notified events are only
+     * sent in the periodic digest.
+     * @see CloudNotificationEvents
+     */
+    @SerializedName("digestEvents") public int digestEvents;
+
+    /**
+     * Whether the events of changes only watched by the account (it isn't
+     * the owner or a reviewer of the change) are only sent in the periodic
+     * digest.
+     */
+    @SerializedName("digestWatched") public boolean digestWatched;
+
+    /**
+     * Only notify the changes that match these project, branch and topic
+     * patterns (all of them if absent).
+     * @see CloudNotificationFilterInfo
+     */
+    @SerializedName("include") public CloudNotificationFilterInfo include;
+
+    /**
+     * Don't notify the changes that match any of these project, branch or
+     * topic patterns.
+     * @see CloudNotificationFilterInfo
+     */
+    @SerializedName("exclude") public CloudNotificationFilterInfo exclude;
+
     /**
      * Firebase response mode.
      * @see CloudNotificationResponseMode
@@ -36,4 +64,12 @@ public class CloudNotificationInput {
     @SerializedName("responseMode")
     public CloudNotificationResponseMode responseMode =
             CloudNotificationResponseMode.BOTH;
+
+    /**
+     * The most recent version of the FCM data payload format supported
+     * by the client.
+     * @see CloudNotificationPayloadVersion
+     */
+    @SerializedName("payloadVersion")
+    public int payloadVersion = CloudNotificationPayloadVersion.LEGACY_VERSION;
 }
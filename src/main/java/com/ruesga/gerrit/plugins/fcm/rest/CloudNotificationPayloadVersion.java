@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.rest;
+
+public class CloudNotificationPayloadVersion {
+    /**
+     * The extra information is sent as a string with its json encoded
+     * representation.
+     */
+    public static final int LEGACY_VERSION = 1;
+
+    /**
+     * The extra information is sent as a nested json element.
+     */
+    public static final int STRUCTURED_VERSION = 2;
+
+    /**
+     * The most recent version supported by the plugin.
+     */
+    public static final int LATEST_VERSION = STRUCTURED_VERSION;
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.rest;
+
+import java.util.List;
+
+import com.google.gson.annotations.SerializedName;
+
+public class DeadLetterErrorInfo {
+    /**
+     * The dead letters that failed with the error.
+     */
+    @SerializedName("count") public int count;
+
+    /**
+     * When the oldest dead letter failed (in milliseconds since epoch).
+     */
+    @SerializedName("oldest") public long oldest;
+
+    /**
+     * When the newest dead letter failed (in milliseconds since epoch).
+     */
+    @SerializedName("newest") public long newest;
+
+    /**
+     * The oldest dead letters of the error.
+     */
+    @SerializedName("letters") public List<DeadLetterInfo> letters;
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.rest;
+
+import com.google.gson.annotations.SerializedName;
+
+public class DeadLetterReplayInfo {
+    /**
+     * The dead letters queued to be replayed by this request.
+     */
+    @SerializedName("queued") public int queued;
+
+    /**
+     * All the dead letters waiting to be replayed.
+     */
+    @SerializedName("pending") public int pending;
+
+    /**
+     * The dead letters replayed per second.
+     */
+    @SerializedName("rate") public int rate;
+}
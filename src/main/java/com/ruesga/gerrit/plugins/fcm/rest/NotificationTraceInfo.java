@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.rest;
+
+import java.util.List;
+
+import com.google.gson.annotations.SerializedName;
+
+public class NotificationTraceInfo {
+    /**
+     * The trace identifier.
+     */
+    @SerializedName("id") public String id;
+
+    /**
+     * The notified event.
+     * @see CloudNotificationEvents
+     */
+    @SerializedName("event") public int event;
+
+    /**
+     * When the event happened (in seconds since epoch).
+     */
+    @SerializedName("when") public long when;
+
+    /**
+     * The legacy change identifier.
+     */
+    @SerializedName("change") public int change;
+
+    /**
+     * The project of the change.
+     */
+    @SerializedName("project") public String project;
+
+    /**
+     * When the event handler received the event (in milliseconds since
+     * epoch).
+     */
+    @SerializedName("startedOn") public long startedOn;
+
+    /**
+     * The time (in milliseconds) until the last device got its result, or
+     * null if the trace is not completed.
+     */
+    @SerializedName("duration") public Double duration;
+
+    /**
+     * The stages of the notification, in order.
+     */
+    @SerializedName("stages") public List<NotificationTraceStageInfo> stages;
+}
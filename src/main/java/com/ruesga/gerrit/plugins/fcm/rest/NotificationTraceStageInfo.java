@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.rest;
+
+import com.google.gson.annotations.SerializedName;
+
+public class NotificationTraceStageInfo {
+    /**
+     * The stage name (handler, recipients, lookup, attempt, retry or result).
+     */
+    @SerializedName("stage") public String stage;
+
+    /**
+     * The time (in milliseconds) since the event handler received the event.
+     */
+    @SerializedName("elapsed") public double elapsed;
+
+    /**
+     * The notified account, if the stage relates to one account.
+     */
+    @SerializedName("account") public Integer account;
+
+    /**
+     * The notified device, if the stage relates to one device.
+     */
+    @SerializedName("device") public String device;
+
+    /**
+     * Details of the stage (recipients, attempt number, retry delay, FCM
+     * result, ...).
+     */
+    @SerializedName("detail") public String detail;
+}
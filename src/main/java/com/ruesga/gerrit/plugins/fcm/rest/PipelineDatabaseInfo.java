@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.rest;
+
+import com.google.gson.annotations.SerializedName;
+
+public class PipelineDatabaseInfo {
+    /**
+     * Whether the database is available in this node.
+     */
+    @SerializedName("available") public boolean available;
+
+    /**
+     * Connections of the pool currently in use.
+     */
+    @SerializedName("activeConnections") public int activeConnections;
+
+    /**
+     * Maximum connections of the pool.
+     */
+    @SerializedName("maxConnections") public int maxConnections;
+
+    /**
+     * Registry mutations waiting to be written.
+     */
+    @SerializedName("pendingMutations") public int pendingMutations;
+}
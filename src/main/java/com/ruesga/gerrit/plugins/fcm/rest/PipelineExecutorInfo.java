@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.rest;
+
+import com.google.gson.annotations.SerializedName;
+
+public class PipelineExecutorInfo {
+    /**
+     * Threads running a task.
+     */
+    @SerializedName("activeThreads") public int activeThreads;
+
+    /**
+     * Threads of the executor.
+     */
+    @SerializedName("poolSize") public int poolSize;
+
+    /**
+     * Tasks waiting to be run (for the retries, the scheduled retry
+     * backlog).
+     */
+    @SerializedName("queued") public int queued;
+
+    /**
+     * Tasks completed since the plugin was started.
+     */
+    @SerializedName("completed") public long completed;
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.rest;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.annotations.SerializedName;
+
+public class PipelineInfo {
+    /**
+     * Notifications of accounts submitted to the uploader and not yet
+     * processed.
+     */
+    @SerializedName("inFlightNotifications") public int inFlightNotifications;
+
+    /**
+     * Sends to FCM being performed or waiting to be performed.
+     */
+    @SerializedName("inFlightSends") public int inFlightSends;
+
+    /**
+     * The executor that processes the notifications of every account.
+     */
+    @SerializedName("executor") public PipelineExecutorInfo executor;
+
+    /**
+     * The executor of the scheduled retries.
+     */
+    @SerializedName("retries") public PipelineExecutorInfo retries;
+
+    /**
+     * Changes accumulated in the digests pending to be sent.
+     */
+    @SerializedName("pendingDigestChanges") public int pendingDigestChanges;
+
+    /**
+     * Queued or scheduled sends cancelled because their registration was
+     * removed, since the plugin was started.
+     */
+    @SerializedName("cancelledSends") public long cancelledSends;
+
+    /**
+     * Notifications stored as dead letters, since the plugin was started.
+     */
+    @SerializedName("deadLetters") public long deadLetters;
+
+    /**
+     * Notifications of accounts owned by other cluster nodes that this
+     * node dispatched because their owner didn't, since the plugin was
+     * started.
+     */
+    @SerializedName("clusterTakeovers") public long clusterTakeovers;
+
+    /**
+     * Dead letters waiting to be replayed.
+     */
+    @SerializedName("pendingReplays") public int pendingReplays;
+
+    /**
+     * The plugin database.
+     */
+    @SerializedName("database") public PipelineDatabaseInfo database;
+
+    /**
+     * The plugin caches, by name.
+     */
+    @SerializedName("caches") public Map<String, PipelineCacheInfo> caches;
+
+    /**
+     * The count of every FCM error code since the plugin was started.
+     */
+    @SerializedName("errors") public Map<String, Long> errors;
+
+    /**
+     * The last FCM errors, newest first.
+     */
+    @SerializedName("lastErrors") public List<PipelineErrorInfo> lastErrors;
+}
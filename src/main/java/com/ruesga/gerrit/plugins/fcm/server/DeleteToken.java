@@ -16,10 +16,16 @@
 package com.ruesga.gerrit.plugins.fcm.server;
 
 import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
 import com.google.gerrit.extensions.restapi.Response;
 import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
 import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DeviceGroupManager;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
 import com.ruesga.gerrit.plugins.fcm.server.DeleteToken.Input;
+import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
 import com.google.gerrit.server.CurrentUser;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -32,29 +38,60 @@ public class DeleteToken implements RestModifyView<TokenResource, Input> {
     }
 
     private final Provider<CurrentUser> self;
+    private final Configuration config;
     private final DatabaseManager db;
+    private final TopicManager topics;
+    private final DeviceGroupManager groups;
+    private final FcmUploaderWorker uploader;
 
     @Inject
     public DeleteToken(
             Provider<CurrentUser> self,
-            DatabaseManager db) {
+            Configuration config,
+            DatabaseManager db,
+            TopicManager topics,
+            DeviceGroupManager groups,
+            FcmUploaderWorker uploader) {
         super();
         this.self = self;
+        this.config = config;
         this.db = db;
+        this.topics = topics;
+        this.groups = groups;
+        this.uploader = uploader;
     }
 
     @Override
     public Response<?> apply(TokenResource rsrc, Input input)
-            throws BadRequestException {
+            throws BadRequestException, MethodNotAllowedException {
         // Request are only valid from the current authenticated user
         if (self.get() == null || self.get() != rsrc.getUser()) {
             throw new BadRequestException("invalid account!");
         }
 
+        // Registrations are only accepted by primary nodes
+        if (config.isReplica()) {
+            throw new MethodNotAllowedException("read-only replica!");
+        }
+
+        // Unsubscribe the device from its project topics
+        int accountId = self.get().getAccountId().get();
+        CloudNotificationInfo registration = db.getCloudNotification(
+                accountId, rsrc.getDevice(), rsrc.getToken());
+        if (registration != null) {
+            topics.onRegistrationRemoved(accountId, registration, true);
+        }
+
         // Delete registered client from database
         db.unregisterCloudNotification(
-                self.get().getAccountId().get(),
-                rsrc.getDevice(), rsrc.getToken());
+                accountId, rsrc.getDevice(), rsrc.getToken());
+
+        // Drop the sends still pending to the removed registration
+        uploader.cancelPendingSends(
+                accountId, rsrc.getDevice(), rsrc.getToken());
+
+        // Regroup the devices of the account
+        groups.requestSync(accountId);
 
         // Done
         return Response.none();
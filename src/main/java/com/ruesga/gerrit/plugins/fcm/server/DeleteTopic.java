@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.server;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
+import com.google.gerrit.extensions.restapi.ResourceConflictException;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.Response;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.server.CurrentUser;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager.TopicSubscriber;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.server.DeleteTopic.Input;
+
+@Singleton
+public class DeleteTopic implements RestModifyView<TopicResource, Input> {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(DeleteTopic.class);
+
+    public static class Input {
+    }
+
+    private final String pluginName;
+    private final Provider<CurrentUser> self;
+    private final Configuration config;
+    private final DatabaseManager db;
+    private final TopicManager topics;
+
+    @Inject
+    public DeleteTopic(
+            @PluginName String pluginName,
+            Provider<CurrentUser> self,
+            Configuration config,
+            DatabaseManager db,
+            TopicManager topics) {
+        super();
+        this.pluginName = pluginName;
+        this.self = self;
+        this.config = config;
+        this.db = db;
+        this.topics = topics;
+    }
+
+    @Override
+    public Response<?> apply(TopicResource rsrc, Input input)
+            throws BadRequestException, MethodNotAllowedException,
+            ResourceNotFoundException, ResourceConflictException {
+        // Request are only valid from the current authenticated user
+        if (self.get() == null || self.get() != rsrc.getUser()) {
+            throw new BadRequestException("invalid account!");
+        }
+
+        // Subscriptions are only accepted by primary nodes
+        if (config.isReplica()) {
+            throw new MethodNotAllowedException("read-only replica!");
+        }
+
+        int accountId = self.get().getAccountId().get();
+        CloudNotificationInfo registration = db.getCloudNotification(
+                accountId, rsrc.getDevice(), rsrc.getToken());
+        TopicSubscriber subscription = registration == null ? null
+                : db.getTopicSubscription(accountId, rsrc.getDevice(),
+                        rsrc.getToken(), rsrc.getProject());
+        if (subscription == null) {
+            throw new ResourceNotFoundException();
+        }
+
+        // Unsubscribe the device from the project topics
+        try {
+            topics.unsubscribe(accountId, registration, subscription);
+        } catch (IOException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to unsubscribe %s from the topics of %s",
+                    pluginName, rsrc.getDevice(), rsrc.getProject()), ex);
+            throw new ResourceConflictException(
+                    "topic unsubscription failed!");
+        }
+
+        // Done
+        return Response.none();
+    }
+}
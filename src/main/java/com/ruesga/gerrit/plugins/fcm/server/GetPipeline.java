@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.server;
+
+import java.util.HashMap;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.handlers.RecipientCache;
+import com.ruesga.gerrit.plugins.fcm.handlers.VisibilityCache;
+import com.ruesga.gerrit.plugins.fcm.rest.PipelineInfo;
+import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
+
+@Singleton
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+public class GetPipeline implements RestReadView<ConfigResource> {
+
+    private final FcmUploaderWorker uploader;
+    private final DatabaseManager db;
+    private final VisibilityCache visibility;
+    private final RecipientCache recipients;
+
+    @Inject
+    public GetPipeline(
+            FcmUploaderWorker uploader,
+            DatabaseManager db,
+            VisibilityCache visibility,
+            RecipientCache recipients) {
+        super();
+        this.uploader = uploader;
+        this.db = db;
+        this.visibility = visibility;
+        this.recipients = recipients;
+    }
+
+    @Override
+    public PipelineInfo apply(ConfigResource rsrc) {
+        PipelineInfo info = uploader.getPipelineInfo();
+        info.database = db.getPipelineInfo();
+        info.caches = new HashMap<>();
+        info.caches.put("visibility", visibility.getCacheInfo());
+        info.caches.put("recipients", recipients.getCacheInfo());
+        return info;
+    }
+}
@@ -16,8 +16,9 @@
 package com.ruesga.gerrit.plugins.fcm.server;
 
 import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.ETagView;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
 import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
-import com.google.gerrit.extensions.restapi.RestReadView;
 import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
 import com.google.gerrit.server.CurrentUser;
@@ -26,7 +27,7 @@ import com.google.inject.Provider;
 import com.google.inject.Singleton;
 
 @Singleton
-public class GetToken implements RestReadView<TokenResource> {
+public class GetToken implements ETagView<TokenResource> {
 
     private final Provider<CurrentUser> self;
     private final DatabaseManager db;
@@ -40,13 +41,30 @@ public class GetToken implements RestReadView<TokenResource> {
         this.db = db;
     }
 
+    @Override
+    public String getETag(TokenResource rsrc) {
+        if (self.get() == null || self.get() != rsrc.getUser()
+                || !db.isAvailable()) {
+            return null;
+        }
+        String version = db.getRegistrationsVersion(
+                self.get().getAccountId().get());
+        return version != null ? "\"" + version + "\"" : null;
+    }
+
     @Override
     public CloudNotificationInfo apply(TokenResource rsrc)
-            throws BadRequestException, ResourceNotFoundException {
+            throws BadRequestException, ResourceNotFoundException,
+            MethodNotAllowedException {
         if (self.get() == null || self.get() != rsrc.getUser()) {
             throw new BadRequestException("invalid account!");
         }
 
+        // Replicas without access to the primaries database
+        if (!db.isAvailable()) {
+            throw new MethodNotAllowedException("unavailable in replica!");
+        }
+
         // Obtain from database
         CloudNotificationInfo notification = db.getCloudNotification(
                 self.get().getAccountId().get(),
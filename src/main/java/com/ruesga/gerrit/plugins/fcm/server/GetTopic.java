@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.server;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.CurrentUser;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager.TopicSubscriber;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationTopicInfo;
+
+@Singleton
+public class GetTopic implements RestReadView<TopicResource> {
+
+    private final Provider<CurrentUser> self;
+    private final DatabaseManager db;
+    private final TopicManager topics;
+
+    @Inject
+    public GetTopic(
+            Provider<CurrentUser> self,
+            DatabaseManager db,
+            TopicManager topics) {
+        super();
+        this.self = self;
+        this.db = db;
+        this.topics = topics;
+    }
+
+    @Override
+    public CloudNotificationTopicInfo apply(TopicResource rsrc)
+            throws BadRequestException, ResourceNotFoundException,
+            MethodNotAllowedException {
+        if (self.get() == null || self.get() != rsrc.getUser()) {
+            throw new BadRequestException("invalid account!");
+        }
+
+        // Replicas without access to the primaries database
+        if (!db.isAvailable()) {
+            throw new MethodNotAllowedException("unavailable in replica!");
+        }
+
+        // Obtain from database
+        int accountId = self.get().getAccountId().get();
+        CloudNotificationInfo registration = db.getCloudNotification(
+                accountId, rsrc.getDevice(), rsrc.getToken());
+        TopicSubscriber subscription = registration == null ? null
+                : db.getTopicSubscription(accountId, rsrc.getDevice(),
+                        rsrc.getToken(), rsrc.getProject());
+        if (subscription == null) {
+            throw new ResourceNotFoundException();
+        }
+        return ListTopics.toInfo(topics, registration, rsrc.getProject(),
+                subscription.watchedEvents);
+    }
+}
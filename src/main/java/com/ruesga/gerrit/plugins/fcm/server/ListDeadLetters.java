@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import org.kohsuke.args4j.Option;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.inject.Inject;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager.DeadLetter;
+import com.ruesga.gerrit.plugins.fcm.rest.DeadLetterErrorInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.DeadLetterInfo;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+public class ListDeadLetters implements RestReadView<ConfigResource> {
+
+    private static final int DEFAULT_LIMIT = 10;
+
+    private final DatabaseManager db;
+
+    @Option(name = "--error", aliases = {"-e"}, metaVar = "ERROR",
+            usage = "only dead letters of this error")
+    private String error;
+
+    @Option(name = "--limit", aliases = {"-n"}, metaVar = "CNT",
+            usage = "maximum number of dead letters to list per error")
+    private int limit = DEFAULT_LIMIT;
+
+    @Inject
+    public ListDeadLetters(DatabaseManager db) {
+        super();
+        this.db = db;
+    }
+
+    @Override
+    public Map<String, DeadLetterErrorInfo> apply(ConfigResource rsrc) {
+        if (!db.isAvailable()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, DeadLetterErrorInfo> errors = db.getDeadLetterErrors();
+        if (error != null) {
+            errors.keySet().retainAll(Collections.singleton(error));
+        }
+        for (Map.Entry<String, DeadLetterErrorInfo> entry
+                : errors.entrySet()) {
+            DeadLetterErrorInfo info = entry.getValue();
+            info.letters = new ArrayList<>();
+            if (limit <= 0) {
+                continue;
+            }
+            for (DeadLetter letter
+                    : db.getDeadLetters(entry.getKey(), limit)) {
+                info.letters.add(toInfo(letter));
+            }
+        }
+        return errors;
+    }
+
+    private static DeadLetterInfo toInfo(DeadLetter letter) {
+        DeadLetterInfo info = new DeadLetterInfo();
+        info.id = letter.id;
+        info.account = letter.accountId;
+        info.device = letter.device;
+        info.change = letter.legacyChangeId;
+        info.failedOn = letter.failedOn;
+        info.attempts = letter.attempts;
+        return info;
+    }
+}
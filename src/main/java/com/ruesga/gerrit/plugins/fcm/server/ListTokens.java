@@ -18,7 +18,8 @@ package com.ruesga.gerrit.plugins.fcm.server;
 import java.util.List;
 
 import com.google.gerrit.extensions.restapi.BadRequestException;
-import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.extensions.restapi.ETagView;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
 import com.google.gerrit.server.CurrentUser;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -27,7 +28,7 @@ import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
 
 @Singleton
-public class ListTokens implements RestReadView<DeviceResource> {
+public class ListTokens implements ETagView<DeviceResource> {
 
     private final Provider<CurrentUser> self;
     private final DatabaseManager db;
@@ -41,13 +42,29 @@ public class ListTokens implements RestReadView<DeviceResource> {
         this.db = db;
     }
 
+    @Override
+    public String getETag(DeviceResource rsrc) {
+        if (self.get() == null || self.get() != rsrc.getUser()
+                || !db.isAvailable()) {
+            return null;
+        }
+        String version = db.getRegistrationsVersion(
+                self.get().getAccountId().get());
+        return version != null ? "\"" + version + "\"" : null;
+    }
+
     @Override
     public List<CloudNotificationInfo> apply(DeviceResource rsrc)
-            throws BadRequestException {
+            throws BadRequestException, MethodNotAllowedException {
         if (self.get() == null || self.get() != rsrc.getUser()) {
             throw new BadRequestException("invalid account!");
         }
 
+        // Replicas without access to the primaries database
+        if (!db.isAvailable()) {
+            throw new MethodNotAllowedException("unavailable in replica!");
+        }
+
         // Obtain the list of tokens for the device
         return db.getCloudNotifications(
                 self.get().getAccountId().get(), rsrc.getDevice());
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.server;
+
+import java.util.List;
+
+import org.kohsuke.args4j.Option;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.inject.Inject;
+import com.ruesga.gerrit.plugins.fcm.NotificationTracer;
+import com.ruesga.gerrit.plugins.fcm.rest.NotificationTraceInfo;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+public class ListTraces implements RestReadView<ConfigResource> {
+
+    private static final int DEFAULT_LIMIT = 25;
+
+    private final NotificationTracer tracer;
+
+    @Option(name = "--change", aliases = {"-c"}, metaVar = "CHANGE",
+            usage = "only traces of this legacy change id")
+    private Integer change;
+
+    @Option(name = "--account", aliases = {"-a"}, metaVar = "ACCOUNT",
+            usage = "only traces that notified this account id")
+    private Integer account;
+
+    @Option(name = "--limit", aliases = {"-n"}, metaVar = "CNT",
+            usage = "maximum number of traces to list")
+    private int limit = DEFAULT_LIMIT;
+
+    @Inject
+    public ListTraces(NotificationTracer tracer) {
+        super();
+        this.tracer = tracer;
+    }
+
+    @Override
+    public List<NotificationTraceInfo> apply(ConfigResource rsrc) {
+        return tracer.getTraces(change, account, Math.max(0, limit));
+    }
+}
@@ -21,10 +21,16 @@ import java.util.Locale;
 import java.util.TimeZone;
 
 import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
 import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
 import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DeviceGroupManager;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInput;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationPayloadVersion;
+import com.ruesga.gerrit.plugins.fcm.workers.NotificationFilter;
 import com.google.gerrit.server.CurrentUser;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -34,58 +40,165 @@ import com.google.inject.Singleton;
 public class PostToken
         implements RestModifyView<DeviceResource, CloudNotificationInput> {
 
+    private static final SimpleDateFormat formatter;
+    static {
+        formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
     private final Provider<CurrentUser> self;
+    private final Configuration config;
     private final DatabaseManager db;
-    private final SimpleDateFormat formatter;
+    private final TopicManager topics;
+    private final DeviceGroupManager groups;
 
     @Inject
     public PostToken(
             Provider<CurrentUser> self,
-            DatabaseManager db) {
+            Configuration config,
+            DatabaseManager db,
+            TopicManager topics,
+            DeviceGroupManager groups) {
         super();
         this.self = self;
+        this.config = config;
         this.db = db;
-
-        formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
-        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.topics = topics;
+        this.groups = groups;
     }
 
     @Override
     public CloudNotificationInfo apply(
             DeviceResource rsrc, CloudNotificationInput input)
-            throws BadRequestException {
+            throws BadRequestException, MethodNotAllowedException {
         // Request are only valid from the current authenticated user
         if (self.get() == null || self.get() != rsrc.getUser()) {
             throw new BadRequestException("invalid account!");
         }
 
+        // Registrations are only accepted by primary nodes
+        if (config.isReplica()) {
+            throw new MethodNotAllowedException("read-only replica!");
+        }
+
         // Check request parameters
-        if (input.token == null || input.token.isEmpty()) {
+        checkInput(input);
+
+        // Create or update the notification
+        CloudNotificationInfo notification = db.getCloudNotification(
+                self.get().getAccountId().get(),
+                rsrc.getDevice(), input.token);
+        if (isUnchanged(notification, input)) {
+            // Nothing to store (its version and registeredOn are kept)
+            return notification;
+        }
+        CloudNotificationInfo old = copy(notification);
+        notification = merge(notification, rsrc.getDevice(), input);
+        if (!db.isStorable(notification)) {
+            throw new BadRequestException("registration too large!");
+        }
+
+        // Persist the notification
+        db.registerCloudNotification(
+                self.get().getAccountId().get(), notification);
+
+        // Move the topic subscriptions to the new topics
+        topics.onRegistrationUpdated(
+                self.get().getAccountId().get(), old, notification);
+
+        // Regroup the devices of the account
+        groups.requestSync(self.get().getAccountId().get());
+
+        return notification;
+    }
+
+    static void checkInput(CloudNotificationInput input)
+            throws BadRequestException {
+        if (input == null || input.token == null || input.token.isEmpty()) {
             throw new BadRequestException("token is empty!");
         }
+        if (input.payloadVersion
+                < CloudNotificationPayloadVersion.LEGACY_VERSION) {
+            throw new BadRequestException("invalid payloadVersion!");
+        }
+        try {
+            NotificationFilter.validate(input.include, input.exclude);
+        } catch (IllegalArgumentException ex) {
+            throw new BadRequestException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the payload version of the notifications to the device: the
+     * most recent version supported by both the client and the plugin.
+     */
+    static int negotiatePayloadVersion(CloudNotificationInput input) {
+        return Math.min(input.payloadVersion,
+                CloudNotificationPayloadVersion.LATEST_VERSION);
+    }
+
+    /**
+     * Returns whether the registration already matches the requested one.
+     * Unchanged registrations aren't written again by any endpoint, so
+     * neither their registeredOn date nor the registrations version change.
+     */
+    static boolean isUnchanged(
+            CloudNotificationInfo notification, CloudNotificationInput input) {
+        return notification != null
+                && notification.events == input.events
+                && notification.digestEvents == input.digestEvents
+                && notification.digestWatched == input.digestWatched
+                && NotificationFilter.key(notification).equals(
+                        NotificationFilter.key(input.include, input.exclude))
+                && notification.responseMode == input.responseMode
+                && notification.payloadVersion
+                        == negotiatePayloadVersion(input);
+    }
+
+    /**
+     * Returns a copy of a registration (merge updates it in place).
+     */
+    static CloudNotificationInfo copy(CloudNotificationInfo notification) {
+        if (notification == null) {
+            return null;
+        }
+        CloudNotificationInfo copy = new CloudNotificationInfo();
+        copy.device = notification.device;
+        copy.token = notification.token;
+        copy.registeredOn = notification.registeredOn;
+        copy.events = notification.events;
+        copy.digestEvents = notification.digestEvents;
+        copy.digestWatched = notification.digestWatched;
+        copy.include = notification.include;
+        copy.exclude = notification.exclude;
+        copy.responseMode = notification.responseMode;
+        copy.payloadVersion = notification.payloadVersion;
+        return copy;
+    }
 
+    /**
+     * Creates or updates a registration with the requested one.
+     */
+    static CloudNotificationInfo merge(CloudNotificationInfo notification,
+            String device, CloudNotificationInput input) {
         final String registeredOn;
         synchronized (formatter) {
             registeredOn = formatter.format(new Date());
         }
 
-        // Create or update the notification
-        CloudNotificationInfo notification = db.getCloudNotification(
-                self.get().getAccountId().get(),
-                rsrc.getDevice(), input.token);
         if (notification == null) {
             notification = new CloudNotificationInfo();
-            notification.device = rsrc.getDevice();
+            notification.device = device;
             notification.token = input.token;
         }
         notification.registeredOn = registeredOn;
         notification.events = input.events;
+        notification.digestEvents = input.digestEvents;
+        notification.digestWatched = input.digestWatched;
+        notification.include = input.include;
+        notification.exclude = input.exclude;
         notification.responseMode = input.responseMode;
-
-        // Persist the notification
-        db.registerCloudNotification(
-                self.get().getAccountId().get(), notification);
-
+        notification.payloadVersion = negotiatePayloadVersion(input);
         return notification;
     }
 }
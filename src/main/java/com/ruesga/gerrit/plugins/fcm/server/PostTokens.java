@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.server.CurrentUser;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DeviceGroupManager;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInput;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationsInput;
+
+@Singleton
+public class PostTokens
+        implements RestModifyView<DeviceResource, CloudNotificationsInput> {
+
+    private final Provider<CurrentUser> self;
+    private final Configuration config;
+    private final DatabaseManager db;
+    private final TopicManager topics;
+    private final DeviceGroupManager groups;
+
+    @Inject
+    public PostTokens(
+            Provider<CurrentUser> self,
+            Configuration config,
+            DatabaseManager db,
+            TopicManager topics,
+            DeviceGroupManager groups) {
+        super();
+        this.self = self;
+        this.config = config;
+        this.db = db;
+        this.topics = topics;
+        this.groups = groups;
+    }
+
+    @Override
+    public List<CloudNotificationInfo> apply(
+            DeviceResource rsrc, CloudNotificationsInput input)
+            throws BadRequestException, MethodNotAllowedException {
+        // Request are only valid from the current authenticated user
+        if (self.get() == null || self.get() != rsrc.getUser()) {
+            throw new BadRequestException("invalid account!");
+        }
+
+        // Registrations are only accepted by primary nodes
+        if (config.isReplica()) {
+            throw new MethodNotAllowedException("read-only replica!");
+        }
+
+        // Check request parameters (the last registration of a token wins)
+        if (input == null || input.tokens == null) {
+            throw new BadRequestException("tokens are empty!");
+        }
+        Map<String, CloudNotificationInput> inputs = new LinkedHashMap<>();
+        for (CloudNotificationInput token : input.tokens) {
+            PostToken.checkInput(token);
+            inputs.put(token.token, token);
+        }
+
+        // Obtain the current registrations of the device at once
+        int accountId = self.get().getAccountId().get();
+        Map<String, CloudNotificationInfo> current = new HashMap<>();
+        for (CloudNotificationInfo notification
+                : db.getCloudNotifications(accountId, rsrc.getDevice())) {
+            current.put(notification.token, notification);
+        }
+
+        // Create or update only the changed registrations
+        List<CloudNotificationInfo> notifications = new ArrayList<>();
+        List<CloudNotificationInfo> changed = new ArrayList<>();
+        Map<String, CloudNotificationInfo> old = new HashMap<>();
+        for (CloudNotificationInput token : inputs.values()) {
+            CloudNotificationInfo notification = current.get(token.token);
+            if (!PostToken.isUnchanged(notification, token)) {
+                old.put(token.token, PostToken.copy(notification));
+                notification = PostToken.merge(
+                        notification, rsrc.getDevice(), token);
+                if (!db.isStorable(notification)) {
+                    throw new BadRequestException("registration too large!");
+                }
+                changed.add(notification);
+            }
+            notifications.add(notification);
+        }
+
+        // Persist all the changes in a single transaction
+        if (!changed.isEmpty()) {
+            db.registerCloudNotifications(accountId, changed);
+        }
+
+        // Move the topic subscriptions to the new topics
+        for (CloudNotificationInfo notification : changed) {
+            topics.onRegistrationUpdated(
+                    accountId, old.get(notification.token), notification);
+        }
+
+        // Regroup the devices of the account
+        if (!changed.isEmpty()) {
+            groups.requestSync(accountId);
+        }
+
+        return notifications;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.server;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
+import com.google.gerrit.extensions.restapi.ResourceConflictException;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationTopicInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationTopicInput;
+
+@Singleton
+public class PostTopic implements
+        RestModifyView<TokenResource, CloudNotificationTopicInput> {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(PostTopic.class);
+
+    private final String pluginName;
+    private final Provider<CurrentUser> self;
+    private final Configuration config;
+    private final DatabaseManager db;
+    private final TopicManager topics;
+    private final Provider<ReviewDb> reviewdb;
+
+    @Inject
+    public PostTopic(
+            @PluginName String pluginName,
+            Provider<CurrentUser> self,
+            Configuration config,
+            DatabaseManager db,
+            TopicManager topics,
+            Provider<ReviewDb> reviewdb) {
+        super();
+        this.pluginName = pluginName;
+        this.self = self;
+        this.config = config;
+        this.db = db;
+        this.topics = topics;
+        this.reviewdb = reviewdb;
+    }
+
+    @Override
+    public CloudNotificationTopicInfo apply(
+            TokenResource rsrc, CloudNotificationTopicInput input)
+            throws BadRequestException, MethodNotAllowedException,
+            ResourceNotFoundException, ResourceConflictException,
+            OrmException {
+        // Request are only valid from the current authenticated user
+        if (self.get() == null || self.get() != rsrc.getUser()) {
+            throw new BadRequestException("invalid account!");
+        }
+
+        // Subscriptions are only accepted by primary nodes
+        if (config.isReplica()) {
+            throw new MethodNotAllowedException("read-only replica!");
+        }
+        if (!topics.isEnabled()) {
+            throw new MethodNotAllowedException("project topics disabled!");
+        }
+
+        // Check request parameters
+        if (input == null || input.project == null
+                || input.project.isEmpty()) {
+            throw new BadRequestException("project is empty!");
+        }
+        int accountId = self.get().getAccountId().get();
+        CloudNotificationInfo registration = db.getCloudNotification(
+                accountId, rsrc.getDevice(), rsrc.getToken());
+        if (registration == null) {
+            throw new ResourceNotFoundException();
+        }
+
+        // Topic messages can't be filtered nor held for the digests
+        if (!TopicManager.canUseTopics(registration)) {
+            throw new BadRequestException("registration can't use topics!");
+        }
+
+        // Topics deliver every change of the project, so only watches
+        // without filters can be replaced by a subscription. The device is
+        // only subscribed to the topics of the events the watch notifies.
+        int watchedEvents = getWatchedEvents(accountId, input.project);
+        if (watchedEvents == 0) {
+            throw new BadRequestException("project not watched!");
+        }
+
+        // Subscribe the device to the project topics
+        try {
+            topics.subscribe(
+                    accountId, registration, input.project, watchedEvents);
+        } catch (IOException ex) {
+            log.warn(String.format(
+                    "[%s] Failed to subscribe %s to the topics of %s",
+                    pluginName, rsrc.getDevice(), input.project), ex);
+            throw new ResourceConflictException("topic subscription failed!");
+        }
+        return ListTopics.toInfo(
+                topics, registration, input.project, watchedEvents);
+    }
+
+    private int getWatchedEvents(int accountId, String project)
+            throws OrmException {
+        for (AccountProjectWatch w : reviewdb.get().accountProjectWatches()
+                .byProject(new Project.NameKey(project))) {
+            if (w.getAccountId().get() == accountId
+                    && w.getFilter() == null) {
+                return TopicManager.getWatchedEvents(w);
+            }
+        }
+        return 0;
+    }
+}
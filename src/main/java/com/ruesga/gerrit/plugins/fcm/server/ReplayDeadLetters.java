@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.server;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
+import com.google.gerrit.extensions.restapi.RestModifyView;
+import com.google.gerrit.server.config.ConfigResource;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.rest.DeadLetterReplayInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.DeadLetterReplayInput;
+import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
+
+@Singleton
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+public class ReplayDeadLetters implements
+        RestModifyView<ConfigResource, DeadLetterReplayInput> {
+
+    private static final int DEFAULT_LIMIT = 1000;
+
+    private final Configuration config;
+    private final DatabaseManager db;
+    private final FcmUploaderWorker uploader;
+
+    @Inject
+    public ReplayDeadLetters(
+            Configuration config,
+            DatabaseManager db,
+            FcmUploaderWorker uploader) {
+        super();
+        this.config = config;
+        this.db = db;
+        this.uploader = uploader;
+    }
+
+    @Override
+    public DeadLetterReplayInfo apply(
+            ConfigResource rsrc, DeadLetterReplayInput input)
+            throws BadRequestException, MethodNotAllowedException {
+        // Only primary nodes send notifications
+        if (config.isReplica()) {
+            throw new MethodNotAllowedException("read-only replica!");
+        }
+        if (!config.isEnabled() || !db.isAvailable()) {
+            throw new MethodNotAllowedException("notifications disabled!");
+        }
+
+        // Check request parameters
+        int limit = DEFAULT_LIMIT;
+        String error = null;
+        if (input != null) {
+            if (input.limit != null) {
+                if (input.limit <= 0) {
+                    throw new BadRequestException("invalid limit!");
+                }
+                limit = input.limit;
+            }
+            if (input.error != null && !input.error.isEmpty()) {
+                error = input.error;
+            }
+        }
+
+        // Dead letters are sent in the background, at the configured rate
+        DeadLetterReplayInfo info = new DeadLetterReplayInfo();
+        info.queued = uploader.replayDeadLetters(error, limit);
+        info.pending = uploader.getPendingReplays();
+        info.rate = config.deadLetterReplayRate;
+        return info;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.workers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.messaging.NotificationDigestEntry;
+
+/**
+ * Accumulates the notifications of the registrations in digest mode until
+ * the next flush. Only a summary per change is kept, and only for the
+ * most recently notified changes.
+ */
+class DigestAccumulator {
+
+    /**
+     * The pending digest of a registration.
+     */
+    static class Digest {
+        final int accountId;
+        final String device;
+        final String token;
+        // Summaries by change, the least recently notified first
+        final Map<String, NotificationDigestEntry> changes =
+                new LinkedHashMap<>();
+        boolean truncated;
+
+        Digest(int accountId, String device, String token) {
+            this.accountId = accountId;
+            this.device = device;
+            this.token = token;
+        }
+    }
+
+    private final int maxChanges;
+    private Map<String, Digest> digests = new HashMap<>();
+    private int size;
+
+    DigestAccumulator(int maxChanges) {
+        this.maxChanges = maxChanges;
+    }
+
+    synchronized void add(int accountId, String device, String token,
+            Notification notification) {
+        String key = TopicManager.registrationKey(accountId, device, token);
+        Digest digest = digests.get(key);
+        if (digest == null) {
+            digest = new Digest(accountId, device, token);
+            digests.put(key, digest);
+        }
+
+        NotificationDigestEntry entry =
+                digest.changes.remove(notification.change);
+        if (entry == null) {
+            entry = new NotificationDigestEntry();
+            entry.change = notification.change;
+            entry.legacyChangeId = notification.legacyChangeId;
+            entry.project = notification.project;
+            entry.branch = notification.branch;
+            size++;
+        }
+        entry.subject = notification.subject;
+        entry.events |= notification.event;
+        entry.count++;
+        entry.when = Math.max(entry.when, notification.when);
+        digest.changes.put(notification.change, entry);
+
+        // Drop the least recently notified changes
+        Iterator<String> it = digest.changes.keySet().iterator();
+        while (digest.changes.size() > maxChanges && it.hasNext()) {
+            it.next();
+            it.remove();
+            digest.truncated = true;
+            size--;
+        }
+    }
+
+    /**
+     * Returns and removes all the pending digests.
+     */
+    synchronized List<Digest> drain() {
+        List<Digest> drained = new ArrayList<>(digests.values());
+        digests = new HashMap<>();
+        size = 0;
+        return drained;
+    }
+
+    /**
+     * Returns the number of changes pending in all the digests.
+     */
+    synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.workers;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+
+/**
+ * Keeps the FCM payload of a message (its data plus its notification)
+ * under the FCM limit (4096 bytes), which otherwise rejects the message.
+ * The extra information is trimmed (or removed, if it's structured) first,
+ * then the subject, and then the body of the notification. Trimmed
+ * notifications are marked as truncated, so clients can fetch the full
+ * information from Gerrit.
+ */
+public class FcmDataBudget {
+
+    public static final int MAX_PAYLOAD_SIZE = 4096;
+
+    private static final String ELLIPSIS = "...";
+
+    private static final int EXTRA = 0;
+    private static final int SUBJECT = 1;
+    private static final int BODY = 2;
+
+    private FcmDataBudget() {
+    }
+
+    /**
+     * Trims the message to fit the FCM payload limit.
+     *
+     * @return whether the message fits the limit. Otherwise, it mustn't be
+     *     sent, as FCM would reject it
+     */
+    public static boolean fit(Gson gson, FcmRequestInfo request) {
+        if (size(gson, request) <= MAX_PAYLOAD_SIZE) {
+            return true;
+        }
+
+        Notification what = request.data;
+        if (what != null) {
+            what.truncated = Boolean.TRUE;
+            if (what.extra != null) {
+                // Structured information can't be partially trimmed
+                if (isStructured(what.extra)) {
+                    what.extra = null;
+                } else {
+                    trim(gson, request, EXTRA);
+                }
+            }
+            if (size(gson, request) > MAX_PAYLOAD_SIZE
+                    && what.subject != null) {
+                trim(gson, request, SUBJECT);
+            }
+        }
+        if (size(gson, request) > MAX_PAYLOAD_SIZE
+                && request.notification != null
+                && request.notification.body != null) {
+            trim(gson, request, BODY);
+        }
+        return size(gson, request) <= MAX_PAYLOAD_SIZE;
+    }
+
+    private static int size(Gson gson, FcmRequestInfo request) {
+        int size = 0;
+        if (request.data != null) {
+            size += gson.toJson(request.data)
+                    .getBytes(StandardCharsets.UTF_8).length;
+        }
+        if (request.notification != null) {
+            size += gson.toJson(request.notification)
+                    .getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+
+    private static boolean isStructured(JsonElement extra) {
+        if (!extra.isJsonPrimitive()
+                || !extra.getAsJsonPrimitive().isString()) {
+            return true;
+        }
+
+        // Json encoded representation of legacy payloads
+        String s = extra.getAsString().trim();
+        return s.startsWith("{") || s.startsWith("[") || s.startsWith("\"");
+    }
+
+    /**
+     * Trims a field to the longest length that fits the limit, or removes
+     * it if nothing fits.
+     */
+    private static void trim(Gson gson, FcmRequestInfo request, int field) {
+        String value = get(request, field);
+        int min = 0;
+        int max = value.length() - 1;
+        String fit = null;
+        while (min <= max) {
+            int length = (min + max) >>> 1;
+            String trimmed = abbreviate(value, length);
+            set(request, field, trimmed);
+            if (size(gson, request) <= MAX_PAYLOAD_SIZE) {
+                fit = trimmed;
+                min = length + 1;
+            } else {
+                max = length - 1;
+            }
+        }
+        set(request, field, fit);
+    }
+
+    private static String abbreviate(String value, int length) {
+        if (length > 0 && Character.isHighSurrogate(value.charAt(length - 1))) {
+            length--;
+        }
+        return value.substring(0, length) + ELLIPSIS;
+    }
+
+    private static String get(FcmRequestInfo request, int field) {
+        switch (field) {
+            case EXTRA:
+                return request.data.extra.getAsString();
+            case SUBJECT:
+                return request.data.subject;
+            default:
+                return request.notification.body;
+        }
+    }
+
+    private static void set(FcmRequestInfo request, int field, String value) {
+        switch (field) {
+            case EXTRA:
+                request.data.extra =
+                        value != null ? new JsonPrimitive(value) : null;
+                break;
+            case SUBJECT:
+                request.data.subject = value;
+                break;
+            default:
+                request.notification.body = value;
+                break;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
 
 public class FcmRequestInfo {
     @SerializedName("to") public String to;
+    @SerializedName("collapse_key") public String collapseKey;
     @SerializedName("time_to_live") public Integer timeToLive;
     @SerializedName("notification") public FcmRequestNotificationInfo notification;
     @SerializedName("data") public Notification data;
@@ -25,4 +25,10 @@ public class FcmResponseInfo {
     @SerializedName("failure") public Integer failure;
     @SerializedName("canonical_ids") public Integer canonicalIds;
     @SerializedName("results") public List<FcmResponseResultInfo> results;
+    // Topic messages responses
+    @SerializedName("message_id") public Long messageId;
+    @SerializedName("error") public String error;
+    // Device group messages responses
+    @SerializedName("failed_registration_ids")
+    public List<String> failedRegistrationIds;
 }
@@ -21,26 +21,61 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.ClusterManager;
 import com.ruesga.gerrit.plugins.fcm.Configuration;
 import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager.DeadLetter;
+import com.ruesga.gerrit.plugins.fcm.DeviceGroupManager;
+import com.ruesga.gerrit.plugins.fcm.DeviceGroupManager.DeviceGroupDelivery;
+import com.ruesga.gerrit.plugins.fcm.NotificationTracer;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.TopicManager.TopicDelivery;
+import com.ruesga.gerrit.plugins.fcm.workers.DigestAccumulator.Digest;
 import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.messaging.NotificationDigestEntry;
+import com.ruesga.gerrit.plugins.fcm.messaging.NotificationTrace;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationPayloadVersion;
 import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationResponseMode;
+import com.ruesga.gerrit.plugins.fcm.rest.PipelineErrorInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.PipelineExecutorInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.PipelineInfo;
 
 @Singleton
 public class FcmUploaderWorker {
@@ -48,73 +83,488 @@ public class FcmUploaderWorker {
     private static final Logger log =
             LoggerFactory.getLogger(FcmUploaderWorker.class);
 
+    private static final int MAX_LAST_ERRORS = 20;
+    private static final int TOPIC_ACCOUNT_ID = 0;
+    private static final int ORDERED_STRIPES = 64;
+    // Time given to the queued notifications to be sent on shutdown
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    // Time a device that exceeded its message rate isn't sent messages. It
+    // doubles while the device keeps exceeding it
+    private static final long MIN_DEVICE_BACKOFF =
+            TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX_DEVICE_BACKOFF = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_DEVICE_BACKOFFS = 10000;
+    // The FCM error of the messages that exceed its payload limit
+    private static final String MESSAGE_TOO_BIG = "MessageTooBig";
+    // The events that change the status of a change. They are collapsed
+    // apart from the rest of the events, as FCM only keeps 4 collapse keys
+    // per device
+    private static final int STATUS_EVENTS =
+            CloudNotificationEvents.CHANGE_ABANDONED_EVENT
+            | CloudNotificationEvents.CHANGE_MERGED_EVENT
+            | CloudNotificationEvents.CHANGE_RESTORED_EVENT
+            | CloudNotificationEvents.CHANGE_REVERTED_EVENT;
+
     private static class SubmitNotification {
         int accountId;
         String device;
         String token;
         FcmRequestInfo request;
+        Notification notification;
         int attempt;
+        // The registrations reached through a device group (if any)
+        List<CloudNotificationInfo> group;
+        // The scheduled retry (if any)
+        OrderedExecutor.DelayedTask retry;
+        // Whether the message exceeds the FCM payload limit
+        boolean oversized;
+    }
+
+    private static class DeviceBackoff {
+        final long until;
+        final long delay;
+
+        DeviceBackoff(long until, long delay) {
+            this.until = until;
+            this.delay = delay;
+        }
     }
 
     private final String pluginName;
     private final Configuration config;
     private final DatabaseManager db;
+    private final ClusterManager cluster;
+    private final NotificationTracer tracer;
+    private final TopicManager topics;
+    private final DeviceGroupManager groups;
     private final Gson gson;
-    private ExecutorService executor;
-    private ScheduledExecutorService delayedExecutor;
+    private final AtomicInteger inFlightNotifications = new AtomicInteger();
+    private final AtomicInteger inFlightSends = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicLong> errorCounts =
+            new ConcurrentHashMap<>();
+    private final Deque<PipelineErrorInfo> lastErrors = new ArrayDeque<>();
+    private final DigestAccumulator digests;
+    // The queued and scheduled sends, by registration key. A send is
+    // performed only by whoever removes it from here
+    private final Map<String, Set<SubmitNotification>> pendingSends =
+            new HashMap<>();
+    private final AtomicLong cancelledSends = new AtomicLong();
+    private final Counter0 cancelledSendsCounter;
+    private final AtomicLong deadLetters = new AtomicLong();
+    private final Counter0 deadLettersCounter;
+    // The dead letters waiting to be replayed, and their ids
+    private final Deque<DeadLetter> replays = new ArrayDeque<>();
+    private final Set<Long> replayIds = new HashSet<>();
+    // The devices that exceeded their message rate, by device
+    private final ConcurrentMap<String, DeviceBackoff> deviceBackoffs =
+            new ConcurrentHashMap<>();
+    private ThreadPoolExecutor executor;
+    private OrderedExecutor orderedExecutor;
+    private ScheduledThreadPoolExecutor delayedExecutor;
+    // The takeovers of the accounts of other nodes. They are kept apart from
+    // the retries, so the pending ones still run on shutdown
+    private ScheduledThreadPoolExecutor takeoverExecutor;
+    private volatile boolean stopped;
 
     @Inject
     public FcmUploaderWorker(
             @PluginName String pluginName,
             Configuration config,
-            DatabaseManager db) {
+            DatabaseManager db,
+            ClusterManager cluster,
+            NotificationTracer tracer,
+            TopicManager topics,
+            DeviceGroupManager groups,
+            MetricMaker metrics) {
         super();
         this.pluginName = pluginName;
         this.config = config;
         this.db = db;
+        this.cluster = cluster;
+        this.tracer = tracer;
+        this.topics = topics;
+        this.groups = groups;
         this.gson = new GsonBuilder().create();
+        this.digests = new DigestAccumulator(config.digestMaxChanges);
+        this.cancelledSendsCounter = metrics.newCounter(
+                "notifications/cancelled_sends",
+                new Description("Queued or scheduled sends cancelled because "
+                        + "their registration was removed")
+                    .setCumulative()
+                    .setUnit("sends"));
+        this.deadLettersCounter = metrics.newCounter(
+                "notifications/dead_letters",
+                new Description("Notifications that failed permanently or "
+                        + "exhausted their retries")
+                    .setCumulative()
+                    .setUnit("notifications"));
     }
 
     public void create() {
-        this.executor = Executors.newCachedThreadPool();
-        this.delayedExecutor = Executors.newScheduledThreadPool(50);
+        this.executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        this.delayedExecutor = new ScheduledThreadPoolExecutor(50);
+        this.takeoverExecutor = new ScheduledThreadPoolExecutor(1);
+        this.orderedExecutor = new OrderedExecutor(
+                pluginName, executor, delayedExecutor, ORDERED_STRIPES);
+        this.delayedExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                flushDigests();
+            }
+        }, config.digestInterval, config.digestInterval, TimeUnit.SECONDS);
+        this.delayedExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                replayNextDeadLetters();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
     }
 
     public void shutdown() {
-        this.executor.shutdown();
-        this.delayedExecutor.shutdownNow();
+        if (this.executor != null) {
+            // The events received from now on are discarded
+            stopped = true;
+
+            // Don't lose the pending digests
+            flushDigests();
+            this.delayedExecutor.shutdownNow();
+            // The pending retries were discarded, so don't keep the later
+            // notifications of their changes waiting for them
+            this.orderedExecutor.releaseAll();
+
+            // Give the queued notifications (and the flushed digests) a
+            // bounded time to be sent, before the cluster and the database
+            // are stopped. The stripes resubmit themselves to the executor,
+            // so it can't be shut down while they have queued tasks.
+            long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+            try {
+                // The pending takeovers still run once their delay elapses
+                this.takeoverExecutor.shutdown();
+                this.takeoverExecutor.awaitTermination(
+                        SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+                while (inFlightNotifications.get() > 0
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(100L);
+                }
+                this.executor.shutdown();
+                long remaining = Math.max(
+                        0L, deadline - System.currentTimeMillis());
+                if (!this.executor.awaitTermination(
+                        remaining, TimeUnit.MILLISECONDS)) {
+                    log.warn(String.format(
+                            "[%s] Shutdown timed out with %d notifications "
+                            + "in flight", pluginName,
+                            inFlightNotifications.get()));
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            this.takeoverExecutor.shutdownNow();
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns whether any device registered an event.
+     */
+    public boolean isEventRegistered(int event) {
+        return config.isEnabled() && db.isEventRegistered(event);
+    }
+
+    /**
+     * Returns whether any device of an account registered an event.
+     */
+    public boolean isEventRegistered(int accountId, int event) {
+        return db.isEventRegistered(accountId, event);
     }
 
-    public void notifyTo(final List<Integer> notifiedAccounts,
+    public void notifyTo(AccountIdSet notifiedAccounts,
             final Notification notification) {
+        notifyTo(notifiedAccounts, notification, false);
+    }
+
+    /**
+     * @param useTopics whether the notification can be delivered through
+     * the project topics to the subscribed registrations
+     */
+    public void notifyTo(AccountIdSet notifiedAccounts,
+            final Notification notification, boolean useTopics) {
         if (!config.isEnabled()) {
             return;
         }
+        if (stopped) {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "[%s] Discarded event %d of change %d on shutdown",
+                        pluginName, notification.event,
+                        notification.legacyChangeId));
+            }
+            return;
+        }
 
-        for (final Integer accountId : notifiedAccounts) {
-            this.executor.submit(new Runnable() {
+        if (!tracer.isEnabled()) {
+            notification.trace = null;
+        }
+
+        try {
+            doNotifyTo(notifiedAccounts, notification, useTopics);
+        } catch (RejectedExecutionException ex) {
+            // Raced with the shutdown
+            log.warn(String.format(
+                    "[%s] Discarded event %d of change %d on shutdown",
+                    pluginName, notification.event,
+                    notification.legacyChangeId));
+        }
+    }
+
+    private void doNotifyTo(AccountIdSet notifiedAccounts,
+            final Notification notification, boolean useTopics) {
+        // Hold the trace until all the accounts were submitted
+        traceFork(notification, 1);
+        if (useTopics && topics.isEnabled()) {
+            notifyTopics(notification);
+        }
+
+        // Other nodes of the cluster are in charge of the rest of accounts.
+        // The successor of an account takes it over after a delay, if its
+        // owner didn't claim it (ie. it's dead but still inside its lease)
+        int total = notifiedAccounts.size();
+        int[] owned = new int[total];
+        final int[] others = new int[total];
+        int count = 0;
+        int otherCount = 0;
+        for (int i = 0; i < total; i++) {
+            int accountId = notifiedAccounts.get(i);
+            if (cluster.isOwner(accountId)) {
+                owned[count++] = accountId;
+            } else if (cluster.isSuccessor(accountId)) {
+                others[otherCount++] = accountId;
+            }
+        }
+        submitAccounts(owned, count, notification, false);
+        if (otherCount > 0) {
+            final int takeoverCount = otherCount;
+            traceFork(notification, 1);
+            takeoverExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        submitAccounts(others, takeoverCount,
+                                notification, true);
+                    } finally {
+                        traceJoin(notification);
+                    }
+                }
+            }, cluster.getTakeoverDelay(), TimeUnit.MILLISECONDS);
+        }
+        traceJoin(notification);
+    }
+
+    /**
+     * The notifications of a change to an account are processed in order
+     * in the stripe of its key, so group the accounts by stripe and submit
+     * a task per stripe instead of a task per account.
+     */
+    private void submitAccounts(int[] notified, int count,
+            final Notification notification, final boolean takeover) {
+        int stripes = orderedExecutor.stripes();
+        int[] stripeOf = new int[count];
+        final int[] starts = new int[stripes + 1];
+        for (int i = 0; i < count; i++) {
+            stripeOf[i] = orderedExecutor.stripeOf(
+                    orderingKey(notification, notified[i]));
+            starts[stripeOf[i] + 1]++;
+        }
+        for (int s = 0; s < stripes; s++) {
+            starts[s + 1] += starts[s];
+        }
+        final int[] accounts = new int[count];
+        int[] next = Arrays.copyOf(starts, stripes);
+        for (int i = 0; i < count; i++) {
+            accounts[next[stripeOf[i]]++] = notified[i];
+        }
+
+        for (int s = 0; s < stripes; s++) {
+            final int start = starts[s];
+            final int end = starts[s + 1];
+            if (start == end) {
+                continue;
+            }
+            traceFork(notification, end - start);
+            inFlightNotifications.addAndGet(end - start);
+            orderedExecutor.executeInStripe(s, new Runnable() {
                 @Override
                 public void run() {
-                    asyncNotify(accountId, notification);
+                    for (int i = start; i < end; i++) {
+                        final int accountId = accounts[i];
+                        orderedExecutor.runInOrder(
+                                orderingKey(notification, accountId),
+                                new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    asyncNotify(
+                                            accountId, notification, takeover);
+                                } finally {
+                                    inFlightNotifications.decrementAndGet();
+                                }
+                            }
+                        });
+                    }
                 }
             });
         }
     }
 
-    private void asyncNotify(int accountId, Notification notification) {
-        List<CloudNotificationInfo> notifications =
-                db.getCloudNotifications(accountId);
-        for (CloudNotificationInfo to : notifications) {
-            if ((notification.event | to.events) == to.events) {
+    private void notifyTopics(final Notification notification) {
+        Set<String> covered = new HashSet<>();
+        final List<TopicDelivery> deliveries = topics.getDeliveries(
+                notification.project, notification.event, covered);
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        notification.topicDeliveries = covered;
+
+        traceFork(notification, 1);
+        inFlightNotifications.incrementAndGet();
+        orderedExecutor.execute(orderingKey(notification, TOPIC_ACCOUNT_ID),
+                new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    asyncNotifyTopics(deliveries, notification);
+                } finally {
+                    inFlightNotifications.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void asyncNotifyTopics(
+            List<TopicDelivery> deliveries, Notification notification) {
+        try {
+            // Only one node of the cluster sends the topic messages
+            if (!cluster.claim(TOPIC_ACCOUNT_ID, notification)) {
+                return;
+            }
+
+            traceFork(notification, deliveries.size());
+            for (TopicDelivery delivery : deliveries) {
+                CloudNotificationInfo to = new CloudNotificationInfo();
+                to.device = "/topics/" + delivery.topic;
+                to.events = notification.event;
+                to.responseMode = delivery.responseMode;
+                to.payloadVersion = delivery.payloadVersion;
+
+                // Topic messages are shared by all the accounts
+                Notification what = (Notification) notification.clone();
+                what.token = null;
+
+                sendNotification(createRequest(TOPIC_ACCOUNT_ID, to, what));
+            }
+        } finally {
+            traceJoin(notification);
+        }
+    }
+
+    private void asyncNotify(
+            int accountId, Notification notification, boolean takeover) {
+        try {
+            boolean claimed = takeover
+                    ? cluster.takeover(accountId, notification)
+                    : cluster.claim(accountId, notification);
+            if (!claimed) {
+                traceStage(notification, NotificationTrace.STAGE_LOOKUP,
+                        accountId, null, "claimed by other node");
+                return;
+            }
+
+            List<CloudNotificationInfo> notifications =
+                    db.getCloudNotifications(accountId);
+            List<CloudNotificationInfo> recipients = new ArrayList<>();
+            int digested = 0;
+            for (CloudNotificationInfo to : notifications) {
+                if ((notification.event | to.events) == to.events
+                        && !isTopicDelivered(accountId, to, notification)
+                        && NotificationFilter.accepts(to, notification)) {
+                    if (isDigested(accountId, to, notification)) {
+                        digests.add(accountId, to.device, to.token,
+                                notification);
+                        digested++;
+                    } else {
+                        recipients.add(to);
+                    }
+                }
+            }
+            traceStage(notification, NotificationTrace.STAGE_LOOKUP,
+                    accountId, null, recipients.size() + " devices"
+                        + (digested > 0 ? ", " + digested + " digested" : ""));
+
+            // Registrations with the same messages share a device group
+            List<DeviceGroupDelivery> deliveries = groups.isEnabled()
+                    ? groups.getDeliveries(accountId, recipients)
+                    : new ArrayList<DeviceGroupDelivery>();
+
+            traceFork(notification, deliveries.size() + recipients.size());
+            for (DeviceGroupDelivery delivery : deliveries) {
+                CloudNotificationInfo to = delivery.members.get(0);
+                Notification what = (Notification) notification.clone();
+                what.token = to.token;
+
+                SubmitNotification submit =
+                        createRequest(accountId, to, what);
+                submit.request.to = delivery.notificationKey;
+                submit.device = delivery.notificationKey;
+                submit.group = delivery.members;
+                sendNotification(submit);
+            }
+            for (CloudNotificationInfo to : recipients) {
                 Notification what = (Notification) notification.clone();
                 what.token = to.token;
 
                 sendNotification(createRequest(accountId, to, what));
             }
+        } finally {
+            traceJoin(notification);
         }
     }
 
-    private synchronized void sendNotification(SubmitNotification submit) {
+    private void sendNotification(SubmitNotification submit) {
+        inFlightSends.incrementAndGet();
+        try {
+            doSendNotification(submit);
+        } finally {
+            inFlightSends.decrementAndGet();
+        }
+    }
+
+    private void doSendNotification(SubmitNotification submit) {
+        // A device that exceeded its message rate isn't sent anything until
+        // its back-off expires. Waiting doesn't consume an attempt
+        long backoff = getDeviceBackoff(submit.device);
+        if (backoff > 0) {
+            scheduleRetry(submit, backoff);
+            return;
+        }
+
+        // FCM would reject it, even after being trimmed
+        if (submit.oversized) {
+            log.warn(String.format(
+                    "[%s] Notification to device %s exceeds the FCM "
+                        + "payload limit. Discarded",
+                    pluginName, submit.device));
+            recordError(submit, MESSAGE_TOO_BIG);
+            traceStage(submit.notification, NotificationTrace.STAGE_RESULT,
+                    submit.accountId, submit.device, MESSAGE_TOO_BIG);
+            traceJoin(submit.notification);
+            return;
+        }
+
+        traceStage(submit.notification, NotificationTrace.STAGE_ATTEMPT,
+                submit.accountId, submit.device,
+                String.valueOf(submit.attempt + 1));
+
+        String result = null;
         try {
             String data = gson.toJson(submit.request);
             if (log.isDebugEnabled()) {
@@ -164,31 +614,70 @@ public class FcmUploaderWorker {
                 }
 
                 // Process the server response
-                processResponse(conn, submit, gson.fromJson(
+                result = processResponse(conn, submit, gson.fromJson(
                         response.toString(), FcmResponseInfo.class));
 
             } else if (responseCode == 500) {
                 // Retry
-                retryAfter(conn, submit);
+                recordError(submit, "HTTP " + responseCode);
+                if (!retryAfter(conn, submit)) {
+                    result = "HTTP " + responseCode;
+                    fallbackToDevices(submit, submit.group);
+                    deadLetter(submit, result);
+                }
 
             } else {
                 log.warn(String.format(
                         "[%s] Failed to send notification to device %s. code: %d",
                             pluginName, submit.request.to, responseCode));
+                result = "HTTP " + responseCode;
+                recordError(submit, result);
+                fallbackToDevices(submit, submit.group);
+                deadLetter(submit, result);
             }
 
         } catch (Throwable e) {
             log.warn(String.format(
                     "[%s] Failed to send notification to device %s",
                         pluginName, submit.request.to), e);
+            result = e.getClass().getSimpleName();
+            recordError(submit, result);
+            fallbackToDevices(submit, submit.group);
+            deadLetter(submit, result);
+        }
+
+        // The notification reached its final result (it's not retried)
+        if (result != null) {
+            traceStage(submit.notification, NotificationTrace.STAGE_RESULT,
+                    submit.accountId, submit.device, result);
+            traceJoin(submit.notification);
         }
     }
 
+    /**
+     * The key that orders the notifications of a change to an account.
+     */
+    private static int orderingKey(Notification notification, int accountId) {
+        return orderingKey(notification.legacyChangeId, accountId);
+    }
+
+    private static int orderingKey(int legacyChangeId, int accountId) {
+        return legacyChangeId * 31 + accountId;
+    }
+
     private SubmitNotification createRequest(
             int accountId, CloudNotificationInfo to, Notification what) {
         FcmRequestInfo request = new FcmRequestInfo();
         request.to = to.device;
-        request.timeToLive = 28800; // 8 hours
+        request.timeToLive = config.getTimeToLive(what.event);
+        if (config.collapseKeys && what.change != null) {
+            // FCM only keeps the latest pending message of every class of
+            // events (per account) while the device is offline
+            String eventClass = (what.event & STATUS_EVENTS) != 0
+                    ? "status" : "activity";
+            request.collapseKey = to.token != null
+                    ? eventClass + ":" + to.token : eventClass;
+        }
         if (to.responseMode.equals(CloudNotificationResponseMode.NOTIFICATION)
                 || to.responseMode.equals(CloudNotificationResponseMode.BOTH)) {
             request.notification = new FcmRequestNotificationInfo();
@@ -197,6 +686,12 @@ public class FcmUploaderWorker {
         }
         if (to.responseMode.equals(CloudNotificationResponseMode.DATA)
                 || to.responseMode.equals(CloudNotificationResponseMode.BOTH)) {
+            if (to.payloadVersion
+                        < CloudNotificationPayloadVersion.STRUCTURED_VERSION
+                    && what.extra != null && !isString(what.extra)) {
+                // Legacy clients expect the json encoded representation
+                what.extra = new JsonPrimitive(gson.toJson(what.extra));
+            }
             request.data = what;
         }
 
@@ -205,19 +700,115 @@ public class FcmUploaderWorker {
         submit.device = to.device;
         submit.token = to.token;
         submit.request = request;
+        submit.notification = what;
+        submit.oversized = !FcmDataBudget.fit(gson, request);
         return submit;
     }
 
-    private void processResponse(HttpURLConnection conn,
+    private static boolean isTopicDelivered(int accountId,
+            CloudNotificationInfo to, Notification notification) {
+        return notification.topicDeliveries != null
+                && notification.topicDeliveries.contains(
+                        TopicManager.registrationKey(
+                                accountId, to.device, to.token));
+    }
+
+    private static boolean isDigested(int accountId,
+            CloudNotificationInfo to, Notification notification) {
+        return (to.digestEvents & notification.event) != 0
+                || (to.digestWatched && notification.watchedOnly != null
+                        && notification.watchedOnly.contains(accountId));
+    }
+
+    /**
+     * Sends the accumulated digests, one message per registration.
+     */
+    private void flushDigests() {
+        for (final Digest digest : digests.drain()) {
+            inFlightNotifications.incrementAndGet();
+            this.executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        asyncNotifyDigest(digest);
+                    } finally {
+                        inFlightNotifications.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    private void asyncNotifyDigest(Digest digest) {
+        // The registration could be updated or removed in the meantime
+        CloudNotificationInfo to = db.getCloudNotification(
+                digest.accountId, digest.device, digest.token);
+        if (to == null) {
+            return;
+        }
+
+        // The most recently notified changes first
+        List<NotificationDigestEntry> changes =
+                new ArrayList<>(digest.changes.values());
+        Collections.reverse(changes);
+        int count = 0;
+        for (NotificationDigestEntry entry : changes) {
+            count += entry.count;
+        }
+        Notification what = new Notification();
+        what.when = System.currentTimeMillis() / 1000L;
+        what.token = to.token;
+        what.event = CloudNotificationEvents.DIGEST_EVENT;
+        what.body = String.format("%d updates in %d changes",
+                count, changes.size());
+        what.extra = gson.toJsonTree(changes);
+        if (digest.truncated) {
+            what.truncated = Boolean.TRUE;
+        }
+        sendNotification(createRequest(digest.accountId, to, what));
+    }
+
+    private static CloudNotificationInfo toRegistration(
+            SubmitNotification submit) {
+        CloudNotificationInfo registration = new CloudNotificationInfo();
+        registration.device = submit.device;
+        registration.token = submit.token;
+        return registration;
+    }
+
+    private static boolean isString(JsonElement element) {
+        return element.isJsonPrimitive()
+                && element.getAsJsonPrimitive().isString();
+    }
+
+    /**
+     * @return the final result of the notification, or null if the
+     * notification was scheduled to be retried
+     */
+    private String processResponse(HttpURLConnection conn,
             SubmitNotification submit, FcmResponseInfo response) {
-        if (response.failure > 0 && !response.results.isEmpty()) {
+        if (submit.group != null) {
+            return processGroupResponse(submit, response);
+        }
+        if (response.error != null) {
+            // Topic messages errors
+            recordError(submit, response.error);
+            deadLetter(submit, response.error);
+            return response.error;
+        }
+        if (response.failure != null && response.failure > 0
+                && response.results != null && !response.results.isEmpty()) {
             FcmResponseResultInfo result = response.results.get(0);
             if (result.error != null) {
+                recordError(submit, result.error);
                 switch (result.error) {
                 case "Unavailable":
                 case "InternalServerError":
                     // Retry
-                    retryAfter(conn, submit);
+                    if (retryAfter(conn, submit)) {
+                        return null;
+                    }
+                    deadLetter(submit, result.error);
                     break;
 
                 case "NotRegistered":
@@ -233,25 +824,126 @@ public class FcmUploaderWorker {
                             submit.accountId,
                             submit.device,
                             submit.token);
+                    cancelPendingSends(
+                            submit.accountId, submit.device, submit.token);
+                    topics.onRegistrationRemoved(submit.accountId,
+                            toRegistration(submit), false);
+                    groups.requestSync(submit.accountId);
                     break;
 
                 case "DeviceMessageRateExceeded":
-                    // TODO we should stop sending messages to this device
-                    // or we will get banned. This shouldn't happen
-                    // normally. Need to thought how to handle this.
+                    // Stop sending messages to this device for a while, or
+                    // it will be banned. Not kept as a dead letter, since a
+                    // replay would only exceed the rate again
+                    if (retryAfterDeviceBackoff(submit)) {
+                        return null;
+                    }
+                    log.warn(String.format(
+                            "[%s] Dropped notification to %d - %s: "
+                            + "device message rate exceeded",
+                            pluginName, submit.accountId, submit.device));
                     break;
 
                 default:
+                    // A permanent error. Keep it to be replayed once
+                    // the cause is fixed
+                    deadLetter(submit, result.error);
                     break;
                 }
+                return result.error;
             }
         }
 
         // The message was successfully sent
+        if (!deviceBackoffs.isEmpty()) {
+            deviceBackoffs.remove(submit.device);
+        }
+        return "Success";
+    }
+
+    /**
+     * @return the final result of the device group message. The devices
+     * that FCM failed to reach are notified directly
+     */
+    private String processGroupResponse(
+            SubmitNotification submit, FcmResponseInfo response) {
+        if (response.error != null) {
+            recordError(submit, response.error);
+            fallbackToDevices(submit, submit.group);
+            return response.error;
+        }
+        if (response.failure != null && response.failure > 0) {
+            List<CloudNotificationInfo> failed = new ArrayList<>();
+            for (CloudNotificationInfo to : submit.group) {
+                if (response.failedRegistrationIds == null
+                        || response.failedRegistrationIds.contains(
+                                to.device)) {
+                    failed.add(to);
+                }
+            }
+            String result = "DeviceGroupPartialFailure";
+            recordError(submit, result);
+            if (failed.size() == submit.group.size()) {
+                fallbackToDevices(submit, failed);
+            } else {
+                sendToDevices(submit, failed);
+            }
+            return result;
+        }
+
+        // The message was successfully sent to all the devices
+        return "Success";
+    }
+
+    /**
+     * Discards a device group that failed, and notifies its devices
+     * directly.
+     */
+    private void fallbackToDevices(SubmitNotification submit,
+            List<CloudNotificationInfo> members) {
+        if (members == null) {
+            return;
+        }
+        groups.discard(submit.accountId, submit.device);
+        sendToDevices(submit, members);
     }
 
-    private void retryAfter(
+    private void sendToDevices(SubmitNotification submit,
+            List<CloudNotificationInfo> members) {
+        traceFork(submit.notification, members.size());
+        int key = orderingKey(submit.notification, submit.accountId);
+        for (CloudNotificationInfo to : members) {
+            Notification what = (Notification) submit.notification.clone();
+            what.token = to.token;
+            final SubmitNotification send =
+                    createRequest(submit.accountId, to, what);
+            trackPendingSend(send);
+
+            inFlightNotifications.incrementAndGet();
+            orderedExecutor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (untrackPendingSend(send)) {
+                            sendNotification(send);
+                        }
+                    } finally {
+                        inFlightNotifications.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return whether the notification was scheduled to be retried, or
+     * false if it exhausted its attempts
+     */
+    private boolean retryAfter(
             HttpURLConnection conn, final SubmitNotification submit) {
+        if (submit.attempt + 1 >= config.maxSendAttempts) {
+            return false;
+        }
         submit.attempt++;
 
         // Is Retry-After header present?
@@ -270,17 +962,356 @@ public class FcmUploaderWorker {
             // own exponential back-off timeout (in seconds)
             retryAfter = submit.attempt * 30;
         }
+        scheduleRetry(submit, TimeUnit.SECONDS.toMillis(retryAfter));
+        return true;
+    }
+
+    /**
+     * Backs off the device of a notification that exceeded its message
+     * rate, and schedules the notification to be retried after it.
+     *
+     * @return whether the notification was scheduled to be retried, or
+     * false if it exhausted its attempts
+     */
+    private boolean retryAfterDeviceBackoff(SubmitNotification submit) {
+        long backoff = backOffDevice(submit.device);
+        if (submit.attempt + 1 >= config.maxSendAttempts) {
+            return false;
+        }
+        submit.attempt++;
+        scheduleRetry(submit, backoff);
+        return true;
+    }
+
+    /**
+     * @return the time (in milliseconds) the device must wait before it's
+     * sent messages again, or 0 if it isn't backed off
+     */
+    private long getDeviceBackoff(String device) {
+        if (deviceBackoffs.isEmpty()) {
+            return 0;
+        }
+        DeviceBackoff backoff = deviceBackoffs.get(device);
+        if (backoff == null) {
+            return 0;
+        }
+        return Math.max(0, backoff.until - System.currentTimeMillis());
+    }
 
+    /**
+     * Stops sending messages to a device that exceeded its message rate.
+     * The back-off doubles if the device exceeds it again soon after the
+     * previous one expired.
+     *
+     * @return the back-off (in milliseconds)
+     */
+    private long backOffDevice(String device) {
+        long now = System.currentTimeMillis();
+        DeviceBackoff previous = deviceBackoffs.get(device);
+        long delay = MIN_DEVICE_BACKOFF;
+        if (previous != null && previous.until + previous.delay > now) {
+            delay = Math.min(previous.delay * 2, MAX_DEVICE_BACKOFF);
+        }
+        if (deviceBackoffs.size() >= MAX_DEVICE_BACKOFFS) {
+            // Forget the devices that are no longer backed off
+            for (Map.Entry<String, DeviceBackoff> entry
+                    : deviceBackoffs.entrySet()) {
+                DeviceBackoff backoff = entry.getValue();
+                if (backoff.until + backoff.delay <= now) {
+                    deviceBackoffs.remove(entry.getKey(), backoff);
+                }
+            }
+        }
+        deviceBackoffs.put(device, new DeviceBackoff(now + delay, delay));
         if (log.isDebugEnabled()) {
-            log.debug("[%] Retry fcm notification to %s after %d seconds",
-                    pluginName, submit.request.to, retryAfter);
+            log.debug(String.format(
+                    "[%s] Backing off device %s for %d seconds", pluginName,
+                    device, TimeUnit.MILLISECONDS.toSeconds(delay)));
         }
-        this.delayedExecutor.schedule(new Runnable() {
-            @Override
-            public void run() {
-                sendNotification(submit);
+        return delay;
+    }
+
+    /**
+     * Schedules a notification to be sent again after a delay (in
+     * milliseconds).
+     */
+    private void scheduleRetry(final SubmitNotification submit, long delay) {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(delay);
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "[%s] Retry fcm notification to %s after %d seconds",
+                    pluginName, submit.request.to, seconds));
+        }
+        traceStage(submit.notification, NotificationTrace.STAGE_RETRY,
+                submit.accountId, submit.device, seconds + " s");
+        // The retry keeps its place in the order of the change, so the
+        // newer notifications of the change to the account wait for it
+        int key = orderingKey(submit.notification, submit.accountId);
+        trackPendingSend(submit);
+        try {
+            submit.retry = orderedExecutor.executeAfter(key, new Runnable() {
+                @Override
+                public void run() {
+                    if (untrackPendingSend(submit)) {
+                        sendNotification(submit);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Shutting down
+            untrackPendingSend(submit);
+            log.warn(String.format(
+                    "[%s] Discarded the retry of a notification to %s",
+                    pluginName, submit.request.to));
+        }
+    }
+
+    /**
+     * Stores a notification that failed permanently (or exhausted its
+     * retries), so it can be replayed once the cause is fixed. Device
+     * group messages aren't stored, their devices are notified directly.
+     */
+    private void deadLetter(SubmitNotification submit, String error) {
+        if (submit.group != null || config.deadLetterMaxSize == 0
+                || !db.isAvailable()) {
+            return;
+        }
+
+        DeadLetter letter = new DeadLetter();
+        letter.accountId = submit.accountId;
+        letter.device = submit.device;
+        letter.token = submit.token;
+        letter.error = error;
+        letter.failedOn = System.currentTimeMillis();
+        letter.attempts = submit.attempt + 1;
+        letter.legacyChangeId = submit.notification.legacyChangeId;
+        letter.data = gson.toJson(submit.request);
+        db.addDeadLetter(letter);
+        deadLetters.incrementAndGet();
+        deadLettersCounter.increment();
+    }
+
+    /**
+     * Queues the oldest dead letters (of an error, if not null) to be
+     * replayed at the configured rate.
+     *
+     * @return the number of dead letters queued
+     */
+    public int replayDeadLetters(String error, int limit) {
+        List<DeadLetter> letters = db.getDeadLetters(error, limit);
+        int queued = 0;
+        synchronized (replays) {
+            for (DeadLetter letter : letters) {
+                if (replayIds.add(letter.id)) {
+                    replays.addLast(letter);
+                    queued++;
+                }
+            }
+        }
+        if (queued > 0) {
+            log.info(String.format("[%s] Replaying %d dead letters",
+                    pluginName, queued));
+        }
+        return queued;
+    }
+
+    public int getPendingReplays() {
+        synchronized (replays) {
+            return replays.size();
+        }
+    }
+
+    private void replayNextDeadLetters() {
+        for (int i = 0; i < config.deadLetterReplayRate; i++) {
+            final DeadLetter letter;
+            synchronized (replays) {
+                letter = replays.pollFirst();
+                if (letter == null) {
+                    return;
+                }
+                replayIds.remove(letter.id);
+            }
+
+            inFlightNotifications.incrementAndGet();
+            orderedExecutor.execute(
+                    orderingKey(letter.legacyChangeId, letter.accountId),
+                    new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        replayDeadLetter(letter);
+                    } finally {
+                        inFlightNotifications.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    private void replayDeadLetter(DeadLetter letter) {
+        // Other node could have replayed it
+        if (!db.removeDeadLetter(letter.id)) {
+            return;
+        }
+
+        // Don't replay to registrations that were removed meanwhile
+        if (letter.accountId != TOPIC_ACCOUNT_ID && db.getCloudNotification(
+                letter.accountId, letter.device, letter.token) == null) {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "[%s] Dead letter to %s no longer registered",
+                        pluginName, letter.device));
+            }
+            return;
+        }
+
+        SubmitNotification submit = new SubmitNotification();
+        submit.accountId = letter.accountId;
+        submit.device = letter.device;
+        submit.token = letter.token;
+        submit.request = gson.fromJson(letter.data, FcmRequestInfo.class);
+        submit.notification = submit.request.data != null
+                ? submit.request.data : new Notification();
+        submit.notification.legacyChangeId = letter.legacyChangeId;
+        sendNotification(submit);
+    }
+
+    /**
+     * Cancels the queued and scheduled sends of a removed registration.
+     */
+    public void cancelPendingSends(int accountId, String device, String token) {
+        Set<SubmitNotification> sends;
+        synchronized (pendingSends) {
+            sends = pendingSends.remove(
+                    TopicManager.registrationKey(accountId, device, token));
+        }
+        if (sends == null) {
+            return;
+        }
+
+        for (SubmitNotification submit : sends) {
+            if (submit.retry != null) {
+                submit.retry.cancel();
+            }
+            traceStage(submit.notification, NotificationTrace.STAGE_RESULT,
+                    submit.accountId, submit.device, "Cancelled");
+            traceJoin(submit.notification);
+        }
+        cancelledSends.addAndGet(sends.size());
+        cancelledSendsCounter.incrementBy(sends.size());
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("[%s] Cancelled %d sends to %s",
+                    pluginName, sends.size(), device));
+        }
+    }
+
+    private void trackPendingSend(SubmitNotification submit) {
+        String key = TopicManager.registrationKey(
+                submit.accountId, submit.device, submit.token);
+        synchronized (pendingSends) {
+            Set<SubmitNotification> sends = pendingSends.get(key);
+            if (sends == null) {
+                sends = new HashSet<>();
+                pendingSends.put(key, sends);
+            }
+            sends.add(submit);
+        }
+    }
+
+    /**
+     * @return whether the send was still pending (it wasn't cancelled)
+     */
+    private boolean untrackPendingSend(SubmitNotification submit) {
+        String key = TopicManager.registrationKey(
+                submit.accountId, submit.device, submit.token);
+        synchronized (pendingSends) {
+            Set<SubmitNotification> sends = pendingSends.get(key);
+            if (sends == null || !sends.remove(submit)) {
+                return false;
+            }
+            if (sends.isEmpty()) {
+                pendingSends.remove(key);
+            }
+            return true;
+        }
+    }
+
+    public PipelineInfo getPipelineInfo() {
+        PipelineInfo info = new PipelineInfo();
+        info.inFlightNotifications = inFlightNotifications.get();
+        info.inFlightSends = inFlightSends.get();
+        info.executor = toExecutorInfo(executor);
+        if (orderedExecutor != null) {
+            info.executor.queued += orderedExecutor.getQueued();
+        }
+        info.retries = toExecutorInfo(delayedExecutor);
+        info.pendingDigestChanges = digests.size();
+        info.cancelledSends = cancelledSends.get();
+        info.clusterTakeovers = cluster.getTakeovers();
+        info.deadLetters = deadLetters.get();
+        info.pendingReplays = getPendingReplays();
+        info.errors = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : errorCounts.entrySet()) {
+            info.errors.put(entry.getKey(), entry.getValue().get());
+        }
+        synchronized (lastErrors) {
+            info.lastErrors = new ArrayList<>(lastErrors);
+        }
+        return info;
+    }
+
+    private PipelineExecutorInfo toExecutorInfo(ThreadPoolExecutor executor) {
+        PipelineExecutorInfo info = new PipelineExecutorInfo();
+        if (executor != null) {
+            info.activeThreads = executor.getActiveCount();
+            info.poolSize = executor.getPoolSize();
+            info.queued = executor.getQueue().size();
+            info.completed = executor.getCompletedTaskCount();
+        }
+        return info;
+    }
+
+    private void recordError(SubmitNotification submit, String error) {
+        AtomicLong count = errorCounts.get(error);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = errorCounts.putIfAbsent(error, newCount);
+            if (count == null) {
+                count = newCount;
             }
-        }, retryAfter, TimeUnit.SECONDS);
+        }
+        count.incrementAndGet();
+
+        PipelineErrorInfo info = new PipelineErrorInfo();
+        info.error = error;
+        info.when = System.currentTimeMillis();
+        info.account = submit.accountId;
+        info.device = submit.device;
+        synchronized (lastErrors) {
+            if (lastErrors.size() >= MAX_LAST_ERRORS) {
+                lastErrors.removeLast();
+            }
+            lastErrors.addFirst(info);
+        }
+    }
+
+    private void traceStage(Notification notification, String stage,
+            Integer accountId, String device, String detail) {
+        if (notification.trace != null) {
+            notification.trace.stage(stage, accountId, device, detail);
+        }
+    }
+
+    private void traceFork(Notification notification, int count) {
+        if (notification.trace != null) {
+            notification.trace.fork(count);
+        }
+    }
+
+    private void traceJoin(Notification notification) {
+        if (notification.trace != null && notification.trace.join()) {
+            tracer.complete(notification);
+        }
     }
 
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.workers;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationFilterInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+
+import dk.brics.automaton.RegExp;
+import dk.brics.automaton.RunAutomaton;
+
+/**
+ * The compiled include and exclude filters of a registration. Exact names
+ * and prefixes are looked up in hash sets (one lookup per distinct prefix
+ * length), and only regular expressions are evaluated one by one, so
+ * matching stays cheap for registrations with many patterns. Regular
+ * expressions are compiled to automatons (as Gerrit does with the ref
+ * patterns), so they match in linear time whatever the pattern is.
+ *
+ * Compiled filters are shared by all the registrations with the same
+ * patterns.
+ */
+public class NotificationFilter {
+
+    private static final int MAX_CACHED_FILTERS = 10000;
+
+    // Limits of the patterns of the filters of a registration, so they
+    // fit in its database row
+    private static final int MAX_PATTERNS = 50;
+    private static final int MAX_PATTERN_LENGTH = 250;
+    private static final int MAX_PATTERNS_LENGTH = 2000;
+
+    private static final ConcurrentMap<String, NotificationFilter> cache =
+            new ConcurrentHashMap<>();
+
+    private static class PatternSet {
+        final Set<String> names = new HashSet<>();
+        final Set<String> prefixes = new HashSet<>();
+        final int[] prefixLengths;
+        final List<RunAutomaton> regexes = new ArrayList<>();
+
+        PatternSet(List<String> patterns) {
+            Set<Integer> lengths = new TreeSet<>();
+            if (patterns != null) {
+                for (String pattern : patterns) {
+                    if (pattern.startsWith("^")) {
+                        try {
+                            regexes.add(toAutomaton(pattern));
+                        } catch (IllegalArgumentException ex) {
+                            // Ignore broken expressions of old registrations
+                        }
+                    } else if (pattern.endsWith("*")) {
+                        String prefix =
+                                pattern.substring(0, pattern.length() - 1);
+                        prefixes.add(prefix);
+                        lengths.add(prefix.length());
+                    } else {
+                        names.add(pattern);
+                    }
+                }
+            }
+            prefixLengths = new int[lengths.size()];
+            int i = 0;
+            for (int length : lengths) {
+                prefixLengths[i++] = length;
+            }
+        }
+
+        boolean isEmpty() {
+            return names.isEmpty() && prefixes.isEmpty() && regexes.isEmpty();
+        }
+
+        boolean matches(String value) {
+            if (value == null) {
+                return false;
+            }
+            if (names.contains(value)) {
+                return true;
+            }
+            for (int length : prefixLengths) {
+                if (length > value.length()) {
+                    break;
+                }
+                if (prefixes.contains(value.substring(0, length))) {
+                    return true;
+                }
+            }
+            for (RunAutomaton regex : regexes) {
+                if (regex.run(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final PatternSet includeProjects;
+    private final PatternSet includeBranches;
+    private final PatternSet includeTopics;
+    private final PatternSet excludeProjects;
+    private final PatternSet excludeBranches;
+    private final PatternSet excludeTopics;
+
+    private NotificationFilter(CloudNotificationFilterInfo include,
+            CloudNotificationFilterInfo exclude) {
+        includeProjects = new PatternSet(
+                include != null ? include.projects : null);
+        includeBranches = new PatternSet(
+                include != null ? include.branches : null);
+        includeTopics = new PatternSet(
+                include != null ? include.topics : null);
+        excludeProjects = new PatternSet(
+                exclude != null ? exclude.projects : null);
+        excludeBranches = new PatternSet(
+                exclude != null ? exclude.branches : null);
+        excludeTopics = new PatternSet(
+                exclude != null ? exclude.topics : null);
+    }
+
+    /**
+     * Returns whether a notification passes the filters of a registration.
+     */
+    public static boolean accepts(
+            CloudNotificationInfo to, Notification notification) {
+        if (to.include == null && to.exclude == null) {
+            return true;
+        }
+        return compile(to).matches(notification);
+    }
+
+    /**
+     * Checks the syntax and the size of the patterns of the filters of a
+     * registration.
+     *
+     * @throws IllegalArgumentException if a pattern is empty, a regular
+     * expression is invalid or the patterns exceed the limits. The message
+     * describes the error.
+     */
+    public static void validate(CloudNotificationFilterInfo include,
+            CloudNotificationFilterInfo exclude) {
+        List<String> patterns = new ArrayList<>();
+        for (CloudNotificationFilterInfo filter
+                : new CloudNotificationFilterInfo[]{include, exclude}) {
+            if (filter != null) {
+                addAll(patterns, filter.projects);
+                addAll(patterns, filter.branches);
+                addAll(patterns, filter.topics);
+            }
+        }
+        if (patterns.size() > MAX_PATTERNS) {
+            throw new IllegalArgumentException("too many filter patterns!");
+        }
+
+        int length = 0;
+        for (String pattern : patterns) {
+            if (pattern == null || pattern.isEmpty()) {
+                throw new IllegalArgumentException("empty filter pattern!");
+            }
+            if (pattern.length() > MAX_PATTERN_LENGTH) {
+                throw new IllegalArgumentException("filter pattern too long!");
+            }
+            length += pattern.length();
+            if (pattern.startsWith("^")) {
+                try {
+                    toAutomaton(pattern);
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException(
+                            "invalid filter pattern!", ex);
+                }
+            }
+        }
+        if (length > MAX_PATTERNS_LENGTH) {
+            throw new IllegalArgumentException("filter patterns too long!");
+        }
+    }
+
+    private static void addAll(List<String> patterns, List<String> values) {
+        if (values != null) {
+            patterns.addAll(values);
+        }
+    }
+
+    private static RunAutomaton toAutomaton(String pattern) {
+        // Automatons always match the whole value, without anchors
+        String regex = pattern.substring(1);
+        if (regex.endsWith("$") && !regex.endsWith("\\$")) {
+            regex = regex.substring(0, regex.length() - 1);
+        }
+        return new RunAutomaton(
+                new RegExp(regex, RegExp.NONE).toAutomaton());
+    }
+
+    /**
+     * Returns a key that identifies the filters of a registration.
+     */
+    public static String key(CloudNotificationInfo to) {
+        return key(to.include, to.exclude);
+    }
+
+    public static String key(CloudNotificationFilterInfo include,
+            CloudNotificationFilterInfo exclude) {
+        if (include == null && exclude == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        append(sb, include);
+        append(sb, exclude);
+        return sb.toString();
+    }
+
+    private static NotificationFilter compile(CloudNotificationInfo to) {
+        String key = key(to);
+        NotificationFilter filter = cache.get(key);
+        if (filter == null) {
+            filter = new NotificationFilter(to.include, to.exclude);
+            if (cache.size() >= MAX_CACHED_FILTERS) {
+                cache.clear();
+            }
+            cache.put(key, filter);
+        }
+        return filter;
+    }
+
+    private boolean matches(Notification notification) {
+        if ((!includeProjects.isEmpty()
+                    && !includeProjects.matches(notification.project))
+                || (!includeBranches.isEmpty()
+                    && !includeBranches.matches(notification.branch))
+                || (!includeTopics.isEmpty()
+                    && !includeTopics.matches(notification.topic))) {
+            return false;
+        }
+        return !excludeProjects.matches(notification.project)
+                && !excludeBranches.matches(notification.branch)
+                && !excludeTopics.matches(notification.topic);
+    }
+
+    private static void append(
+            StringBuilder sb, CloudNotificationFilterInfo filter) {
+        sb.append('{');
+        if (filter != null) {
+            append(sb, filter.projects);
+            append(sb, filter.branches);
+            append(sb, filter.topics);
+        }
+        sb.append('}');
+    }
+
+    private static void append(StringBuilder sb, List<String> patterns) {
+        sb.append('[');
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                sb.append(pattern.length()).append(':').append(pattern);
+            }
+        }
+        sb.append(']');
+    }
+}
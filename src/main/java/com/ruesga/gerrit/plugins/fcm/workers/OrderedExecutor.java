@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.workers;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the tasks with the same key in submission order, one at a time,
+ * while the tasks of other keys run in parallel in the backing executor.
+ * The keys are spread over a fixed set of stripes, every one with its own
+ * queue consumed by at most one thread at a time.
+ *
+ * A task can be delayed without losing its place: while a delayed task
+ * of a key is waiting, the later tasks of the key are parked, and they
+ * run once the delayed task ran (or was cancelled). The other keys of the
+ * stripe aren't held.
+ */
+class OrderedExecutor {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(OrderedExecutor.class);
+
+    // Tasks run before a stripe yields its thread to the other stripes
+    private static final int MAX_TASKS_PER_RUN = 32;
+
+    // A key with delayed tasks, and its tasks waiting for them
+    private static class Hold {
+        int delayed;
+        final Deque<Runnable> parked = new ArrayDeque<>();
+    }
+
+    /**
+     * A task delayed with {@link OrderedExecutor#executeAfter}.
+     */
+    class DelayedTask {
+        private final Stripe stripe;
+        private final int key;
+        private final Hold hold;
+        private ScheduledFuture<?> future;
+
+        private DelayedTask(Stripe stripe, int key, Hold hold) {
+            this.stripe = stripe;
+            this.key = key;
+            this.hold = hold;
+        }
+
+        /**
+         * Cancels the task if it didn't run yet, and releases the later
+         * tasks of its key.
+         */
+        void cancel() {
+            if (future.cancel(false)) {
+                stripe.execute(new Release(stripe, key, hold, null));
+            }
+        }
+    }
+
+    // Runs a delayed task, and then releases the tasks of its key parked
+    // meanwhile
+    private class Release implements Runnable {
+        private final Stripe stripe;
+        private final int key;
+        private final Hold hold;
+        private final Runnable task;
+
+        Release(Stripe stripe, int key, Hold hold, Runnable task) {
+            this.stripe = stripe;
+            this.key = key;
+            this.hold = hold;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (task != null) {
+                    task.run();
+                }
+            } finally {
+                synchronized (stripe) {
+                    stripe.unhold(key, hold);
+                }
+            }
+        }
+    }
+
+    private class Stripe implements Runnable {
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+        private final Map<Integer, Hold> holds = new HashMap<>();
+        private int parked;
+        private boolean scheduled;
+
+        void execute(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+            }
+            schedule();
+        }
+
+        void schedule() {
+            synchronized (this) {
+                if (scheduled || tasks.isEmpty()) {
+                    return;
+                }
+                scheduled = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                // Nothing will consume the queue (the executor is shut down)
+                synchronized (this) {
+                    tasks.clear();
+                    scheduled = false;
+                }
+                throw ex;
+            }
+        }
+
+        void unhold(int key, Hold hold) {
+            // The hold could have been released by releaseAll
+            if (holds.get(key) == hold && --hold.delayed == 0) {
+                release(key, hold);
+            }
+        }
+
+        /**
+         * Puts the parked tasks of a key ahead of the queue, in order. They
+         * run through runInOrder, in case one of them is delayed again.
+         */
+        void release(int key, Hold hold) {
+            holds.remove(key);
+            parked -= hold.parked.size();
+            for (Iterator<Runnable> it = hold.parked.descendingIterator();
+                    it.hasNext();) {
+                tasks.addFirst(inOrder(key, it.next()));
+            }
+        }
+
+        synchronized int size() {
+            return tasks.size() + parked;
+        }
+
+        @Override
+        public void run() {
+            boolean drained = false;
+            try {
+                drain();
+                drained = true;
+            } finally {
+                // A task threw an Error. Don't leave the stripe scheduled
+                // without a thread, or its tasks would never run again
+                if (!drained && !handOff()) {
+                    synchronized (this) {
+                        scheduled = false;
+                    }
+                }
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                    Runnable task;
+                    synchronized (this) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                    runTask(task);
+                }
+
+                // Let other stripes run before continuing. If the executor
+                // rejects it (ie. it's shutting down), go on in this thread
+                if (handOff()) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return whether the stripe was handed to other thread (or it
+         * doesn't have more tasks)
+         */
+        private boolean handOff() {
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    return true;
+                }
+            }
+            try {
+                executor.execute(this);
+                return true;
+            } catch (RejectedExecutionException ex) {
+                return false;
+            }
+        }
+    }
+
+    private final String pluginName;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private final Stripe[] stripes;
+
+    OrderedExecutor(String pluginName, Executor executor,
+            ScheduledExecutorService scheduler, int stripes) {
+        this.pluginName = pluginName;
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Returns the stripe of a key, so tasks can be grouped by stripe
+     * before submitting them.
+     */
+    int stripeOf(int key) {
+        int h = key * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    int stripes() {
+        return stripes.length;
+    }
+
+    void execute(int key, Runnable task) {
+        executeInStripe(stripeOf(key), inOrder(key, task));
+    }
+
+    /**
+     * Executes a task in a stripe. A task grouping the work of several
+     * keys must run every one through {@link #runInOrder}.
+     */
+    void executeInStripe(int stripe, Runnable task) {
+        stripes[stripe].execute(task);
+    }
+
+    /**
+     * Runs a task of a key now, or parks it if a delayed task of the key
+     * is waiting. Must be called from a task of the stripe of the key.
+     */
+    void runInOrder(int key, Runnable task) {
+        Stripe stripe = stripes[stripeOf(key)];
+        synchronized (stripe) {
+            Hold hold = stripe.holds.isEmpty() ? null : stripe.holds.get(key);
+            if (hold != null) {
+                hold.parked.add(task);
+                stripe.parked++;
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Runs a task of a key after a delay. The tasks of the key submitted
+     * meanwhile wait for it, so it keeps its place in the key order.
+     *
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    DelayedTask executeAfter(
+            int key, Runnable task, long delay, TimeUnit unit) {
+        final Stripe stripe = stripes[stripeOf(key)];
+        Hold hold;
+        synchronized (stripe) {
+            hold = stripe.holds.get(key);
+            if (hold == null) {
+                hold = new Hold();
+                stripe.holds.put(key, hold);
+            }
+            hold.delayed++;
+        }
+
+        DelayedTask delayed = new DelayedTask(stripe, key, hold);
+        final Release release = new Release(stripe, key, hold, task);
+        try {
+            delayed.future = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    stripe.execute(release);
+                }
+            }, delay, unit);
+        } catch (RejectedExecutionException ex) {
+            synchronized (stripe) {
+                stripe.unhold(key, hold);
+            }
+            stripe.schedule();
+            throw ex;
+        }
+        return delayed;
+    }
+
+    /**
+     * Requeues the tasks parked behind delayed tasks, ahead of the rest of
+     * tasks of their stripes. Used on shutdown, once the delayed tasks
+     * were discarded.
+     */
+    void releaseAll() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<Integer, Hold> entry
+                        : new HashMap<>(stripe.holds).entrySet()) {
+                    stripe.release(entry.getKey(), entry.getValue());
+                }
+            }
+            stripe.schedule();
+        }
+    }
+
+    /**
+     * Returns the tasks waiting in the stripes, including the ones parked
+     * behind a delayed task.
+     */
+    int getQueued() {
+        int queued = 0;
+        for (Stripe stripe : stripes) {
+            queued += stripe.size();
+        }
+        return queued;
+    }
+
+    private Runnable inOrder(final int key, final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runInOrder(key, task);
+            }
+        };
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException ex) {
+            log.error(String.format(
+                    "[%s] Failed to run a notification task",
+                    pluginName), ex);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.AllProjectsName;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gson.JsonObject;
+import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationResponseMode;
+import com.ruesga.gerrit.plugins.fcm.tools.FcmStubServer;
+import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
+
+/**
+ * Checks the cluster dispatch with two plugin instances in the same JVM,
+ * sharing a local database and a local FCM stub server.
+ */
+public class ClusterDispatchTest {
+
+    private static final String PLUGIN_NAME = "cloud-notifications";
+    private static final int FIRST_ACCOUNT_ID = 1000000;
+    private static final int ACCOUNTS = 200;
+    private static final int EVENTS = 20;
+    private static final int HEARTBEAT_INTERVAL = 1;
+    private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private static class Node {
+        DatabaseManager db;
+        ClusterManager cluster;
+        FcmUploaderWorker uploader;
+    }
+
+    private final ConcurrentMap<String, AtomicInteger> sends =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private FcmStubServer stub;
+    private Path dataDir;
+    private Node primary;
+    private Node secondary;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new FcmStubServer(0, new FcmStubServer.Listener() {
+            @Override
+            public void onMessageAccepted(JsonObject message, long acceptedOn) {
+                JsonObject data = message.getAsJsonObject("data");
+                String key = message.get("to").getAsString() + ":"
+                        + data.get("legacyChangeId").getAsInt();
+                AtomicInteger count = sends.get(key);
+                if (count == null) {
+                    AtomicInteger newCount = new AtomicInteger();
+                    count = sends.putIfAbsent(key, newCount);
+                    if (count == null) {
+                        count = newCount;
+                    }
+                }
+                count.incrementAndGet();
+                accepted.incrementAndGet();
+            }
+        });
+        stub.start();
+
+        dataDir = Files.createTempDirectory("fcm-clustertest");
+        String databaseUrl = "jdbc:h2:" + new File(dataDir.toFile(),
+                PLUGIN_NAME).getAbsolutePath();
+        primary = createNode("node-a", databaseUrl);
+        secondary = createNode("node-b", databaseUrl);
+
+        // Every account has a device, registered through the primary
+        for (int i = 0; i < ACCOUNTS; i++) {
+            int accountId = FIRST_ACCOUNT_ID + i;
+            CloudNotificationInfo registration = new CloudNotificationInfo();
+            registration.device = "device-" + accountId;
+            registration.token = "token-" + accountId;
+            registration.registeredOn = "2016-11-25 14:45:03.123";
+            registration.events = 0xFFFFFFF;
+            registration.responseMode = CloudNotificationResponseMode.DATA;
+            List<CloudNotificationInfo> registrations = new ArrayList<>();
+            registrations.add(registration);
+            primary.db.registerCloudNotifications(accountId, registrations);
+        }
+
+        // Wait until the registrations are written and both nodes see
+        // each other
+        TimeUnit.SECONDS.sleep(HEARTBEAT_INTERVAL * 2);
+    }
+
+    @After
+    public void tearDown() {
+        for (Node node : new Node[]{secondary, primary}) {
+            if (node != null) {
+                node.uploader.shutdown();
+                node.cluster.stop();
+                node.db.shutdown();
+            }
+        }
+        if (stub != null) {
+            stub.stop();
+        }
+        if (dataDir != null) {
+            delete(dataDir.toFile());
+        }
+    }
+
+    @Test
+    public void everyAccountHasOneOwnerAndOneSuccessor() {
+        int owned = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            int accountId = FIRST_ACCOUNT_ID + i;
+            assertTrue(primary.cluster.isOwner(accountId)
+                    != secondary.cluster.isOwner(accountId));
+            assertTrue(primary.cluster.isOwner(accountId)
+                    == secondary.cluster.isSuccessor(accountId));
+            assertTrue(secondary.cluster.isOwner(accountId)
+                    == primary.cluster.isSuccessor(accountId));
+            if (primary.cluster.isOwner(accountId)) {
+                owned++;
+            }
+        }
+        // The accounts are spread across both nodes
+        assertTrue(owned > 0 && owned < ACCOUNTS);
+    }
+
+    @Test
+    public void bothNodesReceiveEvents() throws InterruptedException {
+        for (int i = 0; i < EVENTS; i++) {
+            long eventTime = System.currentTimeMillis();
+            primary.uploader.notifyTo(
+                    allAccounts(), createNotification(i, eventTime));
+            secondary.uploader.notifyTo(
+                    allAccounts(), createNotification(i, eventTime));
+        }
+        drain(ACCOUNTS * EVENTS);
+
+        assertSentOnce(ACCOUNTS * EVENTS);
+        assertEquals(0, primary.cluster.getTakeovers());
+        assertEquals(0, secondary.cluster.getTakeovers());
+    }
+
+    @Test
+    public void silentNodeIsTakenOver() throws InterruptedException {
+        // The secondary is alive in the cluster, but it doesn't receive
+        // the events (ie. it died but it's still inside its lease)
+        for (int i = 0; i < EVENTS; i++) {
+            primary.uploader.notifyTo(allAccounts(),
+                    createNotification(i, System.currentTimeMillis()));
+        }
+        drain(ACCOUNTS * EVENTS);
+
+        assertSentOnce(ACCOUNTS * EVENTS);
+        assertTrue(primary.cluster.getTakeovers() > 0);
+    }
+
+    private Node createNode(String nodeId, String databaseUrl)
+            throws Exception {
+        Config cfg = new Config();
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_SERVER_URL, stub.getUrl());
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_SERVER_TOKEN, "clustertest");
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_DATABASE_URL, databaseUrl);
+        cfg.setBoolean("plugin", PLUGIN_NAME,
+                Configuration.PROP_CLUSTER_ENABLED, true);
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_CLUSTER_NODE_ID, nodeId);
+        cfg.setInt("plugin", PLUGIN_NAME,
+                Configuration.PROP_CLUSTER_HEARTBEAT_INTERVAL,
+                HEARTBEAT_INTERVAL);
+        Configuration config = new Configuration(
+                PLUGIN_NAME, new PluginConfig(PLUGIN_NAME, cfg));
+
+        Node node = new Node();
+        node.db = new DatabaseManager(PLUGIN_NAME, dataDir, config,
+                new DisabledMetricMaker());
+        node.db.initialize();
+        node.cluster = new ClusterManager(PLUGIN_NAME, config, node.db);
+        node.cluster.start();
+        node.uploader = new FcmUploaderWorker(PLUGIN_NAME, config, node.db,
+                node.cluster, new NotificationTracer(config),
+                new TopicManager(PLUGIN_NAME, config, node.db,
+                        new AllProjectsName("All-Projects"), null, null),
+                new DeviceGroupManager(PLUGIN_NAME, config, node.db),
+                new DisabledMetricMaker());
+        node.uploader.create();
+        return node;
+    }
+
+    private void assertSentOnce(int expected) {
+        int duplicated = 0;
+        for (Map.Entry<String, AtomicInteger> entry : sends.entrySet()) {
+            if (entry.getValue().get() > 1) {
+                duplicated++;
+            }
+        }
+        assertEquals(expected, sends.size());
+        assertEquals(0, duplicated);
+    }
+
+    private void drain(int expected) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (accepted.get() < expected
+                && System.currentTimeMillis() < timeout) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        // Give the late duplicates (if any) a chance to show up
+        TimeUnit.SECONDS.sleep(HEARTBEAT_INTERVAL * 2);
+    }
+
+    private static AccountIdSet allAccounts() {
+        AccountIdSet accounts = new AccountIdSet();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accounts.add(FIRST_ACCOUNT_ID + i);
+        }
+        return accounts;
+    }
+
+    // Both nodes build the same notification from the same event
+    private static Notification createNotification(
+            int change, long eventTime) {
+        Notification notification = new Notification();
+        notification.event = CloudNotificationEvents.COMMENT_ADDED_EVENT;
+        notification.legacyChangeId = change + 1;
+        notification.change = "I" + Integer.toHexString(change + 1);
+        notification.project = "clustertest";
+        notification.branch = "master";
+        notification.subject = "Cluster test change #" + (change + 1);
+        notification.eventTime = eventTime;
+        notification.when = eventTime / 1000L;
+        notification.body = "A comment was added";
+        return notification;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RegisteredEventsTest {
+
+    @Test
+    public void addedEventsAreMergedIntoTheMask() {
+        RegisteredEvents events = new RegisteredEvents();
+        events.add(1, 0x1);
+        events.add(1, 0x4);
+        events.add(2, 0x2);
+
+        assertEquals(0x5, events.getMask(1));
+        assertEquals(0x7, events.getMask());
+        assertTrue(events.isRegistered(2));
+    }
+
+    @Test
+    public void updateRemovesTheEventsOfAnAccount() {
+        RegisteredEvents events = new RegisteredEvents();
+        events.add(1, 0x3);
+        events.add(2, 0x1);
+
+        events.update(1, 0, events.getUpdates());
+        assertFalse(events.isRegistered(1));
+        assertEquals(0x1, events.getMask());
+    }
+
+    @Test
+    public void updateKeepsTheEventsAddedWhileReading() {
+        RegisteredEvents events = new RegisteredEvents();
+        events.add(1, 0x1);
+
+        long since = events.getUpdates();
+        events.add(1, 0x8);
+        events.update(1, 0, since);
+        assertEquals(0x9, events.getMask(1));
+    }
+
+    @Test
+    public void resetKeepsTheEventsUpdatedWhileLoading() {
+        RegisteredEvents events = new RegisteredEvents();
+        events.add(1, 0x1);
+        events.add(2, 0x1);
+        events.add(3, 0x1);
+
+        events.startReload();
+        events.add(2, 0x2);
+        Map<Integer, Integer> loaded = new HashMap<>();
+        loaded.put(1, 0x4);
+        loaded.put(2, 0x1);
+        events.reset(loaded, Collections.singleton(3));
+
+        assertEquals(0x4, events.getMask(1));
+        assertEquals(0x3, events.getMask(2));
+        assertEquals(0x1, events.getMask(3));
+        assertEquals(0x7, events.getMask());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gerrit.extensions.api.changes.NotifyHandling;
+import com.google.gerrit.extensions.common.AccountInfo;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.events.ChangeEvent;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+
+/**
+ * Checks that resolving the recipients of an event with a large number of
+ * project watchers doesn't allocate per watcher (see
+ * RecipientResolutionBenchmark for the allocation rates).
+ */
+public class RecipientAllocationTest {
+
+    private static final String PLUGIN_NAME = "cloud-notifications";
+    private static final int FIRST_ACCOUNT_ID = 1000000;
+    private static final int WATCHERS = 10000;
+    private static final int WARMUP_EVENTS = 2000;
+    private static final int EVENTS = 100;
+    // A boxed set costs more than 40 bytes per account (the Integer and
+    // its map entry)
+    private static final long MAX_BYTES_PER_WATCHER = 8;
+
+    private ChangeEvent event;
+    private List<AccountProjectWatch> watches;
+    private TestResolver resolver;
+
+    @Before
+    public void setUp() {
+        Project.NameKey project = new Project.NameKey("allocations");
+        watches = new ArrayList<>(WATCHERS);
+        for (int i = 0; i < WATCHERS; i++) {
+            AccountProjectWatch w = new AccountProjectWatch(
+                    new AccountProjectWatch.Key(
+                            new Account.Id(FIRST_ACCOUNT_ID + 1 + i),
+                            project, null));
+            w.setNotify(NotifyType.ALL_COMMENTS, true);
+            watches.add(w);
+        }
+
+        final ChangeInfo change = new ChangeInfo();
+        change._number = 1;
+        change.project = project.get();
+        change.owner = new AccountInfo(FIRST_ACCOUNT_ID);
+        final Timestamp when = new Timestamp(System.currentTimeMillis());
+        event = new ChangeEvent() {
+            @Override
+            public ChangeInfo getChange() {
+                return change;
+            }
+
+            @Override
+            public AccountInfo getWho() {
+                return change.owner;
+            }
+
+            @Override
+            public Timestamp getWhen() {
+                return when;
+            }
+
+            @Override
+            public NotifyHandling getNotify() {
+                return NotifyHandling.ALL;
+            }
+        };
+
+        // Resolve the recipients of every event from scratch
+        Config cfg = new Config();
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_RECIPIENT_CACHE_TTL, "0");
+        Configuration config = new Configuration(
+                PLUGIN_NAME, new PluginConfig(PLUGIN_NAME, cfg));
+        resolver = new TestResolver(watches, new RecipientCache(config));
+    }
+
+    @Test
+    public void resolutionDoesNotAllocatePerWatcher() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean)
+                        ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()
+                || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        // Let the per-thread buffers grow to their final size
+        AccountIdSet watchedOnly = new AccountIdSet(WATCHERS);
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            resolve(watchedOnly);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < EVENTS; i++) {
+            assertEquals(WATCHERS, resolve(watchedOnly));
+        }
+        long perEvent =
+                (threads.getThreadAllocatedBytes(threadId) - before) / EVENTS;
+        assertTrue("allocated " + perEvent + " bytes per event",
+                perEvent < WATCHERS * MAX_BYTES_PER_WATCHER);
+    }
+
+    private int resolve(AccountIdSet watchedOnly) {
+        watchedOnly.clear();
+        return resolver.resolve(
+                event, NotifyType.ALL_COMMENTS, false, watchedOnly).size();
+    }
+
+    private static class TestResolver extends RecipientResolver {
+        private final List<AccountProjectWatch> watches;
+
+        TestResolver(
+                List<AccountProjectWatch> watches, RecipientCache recipients) {
+            super(PLUGIN_NAME, null, null, null, null, null, null, null, null,
+                    null, recipients, null, null, null);
+            this.watches = watches;
+        }
+
+        @Override
+        protected ChangeData getWatchers(NotifyType type, ChangeInfo change,
+                boolean useTopics, AccountIdSet watchers,
+                List<AccountProjectWatch> filtered) {
+            try {
+                addWatchers(watchers, watches, type, null, new AccountIdSet());
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            return null;
+        }
+
+        @Override
+        protected boolean isRegistered(int accountId) {
+            return true;
+        }
+
+        @Override
+        protected boolean matches(AccountProjectWatch w, ChangeData change) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationResponseMode;
+
+/**
+ * Checks that only the watchers with registered devices are evaluated
+ * (see WatcherPrefilterBenchmark for the time saved).
+ */
+public class WatcherPrefilterTest {
+
+    private static final String PLUGIN_NAME = "cloud-notifications";
+    private static final int FIRST_ACCOUNT_ID = 1000000;
+    private static final int WATCHERS = 5000;
+    private static final int REGISTERED = 200;
+
+    private Path dataDir;
+    private DatabaseManager db;
+    private List<AccountProjectWatch> watches;
+    private AccountIdSet registered;
+    private CountingResolver resolver;
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = Files.createTempDirectory("fcm-prefiltertest");
+        Configuration config = new Configuration(
+                PLUGIN_NAME, new PluginConfig(PLUGIN_NAME, new Config()));
+        db = new DatabaseManager(PLUGIN_NAME, dataDir, config,
+                new DisabledMetricMaker());
+        db.initialize();
+
+        Project.NameKey project = new Project.NameKey("prefilter");
+        watches = new ArrayList<>(WATCHERS);
+        for (int i = 0; i < WATCHERS; i++) {
+            AccountProjectWatch w = new AccountProjectWatch(
+                    new AccountProjectWatch.Key(
+                            new Account.Id(FIRST_ACCOUNT_ID + i),
+                            project, null));
+            w.setNotify(NotifyType.ALL_COMMENTS, true);
+            watches.add(w);
+        }
+        Collections.shuffle(watches, new Random(0));
+
+        // Only a few of the watchers registered a device
+        registered = new AccountIdSet();
+        for (int i = 0; i < REGISTERED; i++) {
+            int accountId = FIRST_ACCOUNT_ID + (i * (WATCHERS / REGISTERED));
+            CloudNotificationInfo notification = new CloudNotificationInfo();
+            notification.device = "device-" + accountId;
+            notification.token = "token-" + accountId;
+            notification.registeredOn = "2016-11-25 14:45:03.123";
+            notification.events = 0xFFFFFFF;
+            notification.responseMode = CloudNotificationResponseMode.DATA;
+            db.registerCloudNotification(accountId, notification);
+            registered.add(accountId);
+        }
+
+        resolver = new CountingResolver(db);
+    }
+
+    @After
+    public void tearDown() {
+        if (db != null) {
+            db.shutdown();
+        }
+        if (dataDir != null) {
+            File[] files = dataDir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dataDir.toFile().delete();
+        }
+    }
+
+    @Test
+    public void onlyRegisteredWatchersAreEvaluated() throws Exception {
+        AccountIdSet recipients = resolve();
+
+        assertEquals(REGISTERED, resolver.evaluated.get());
+        assertEquals(REGISTERED, recipients.size());
+        for (int accountId : recipients.toArray()) {
+            assertTrue(registered.contains(accountId));
+        }
+    }
+
+    @Test
+    public void unregisteredWatcherIsNoLongerEvaluated() throws Exception {
+        db.unregisterCloudNotification(FIRST_ACCOUNT_ID,
+                "device-" + FIRST_ACCOUNT_ID, "token-" + FIRST_ACCOUNT_ID);
+
+        AccountIdSet recipients = resolve();
+
+        assertEquals(REGISTERED - 1, resolver.evaluated.get());
+        assertEquals(REGISTERED - 1, recipients.size());
+        assertTrue(!recipients.contains(FIRST_ACCOUNT_ID));
+    }
+
+    private AccountIdSet resolve() throws Exception {
+        AccountIdSet recipients = new AccountIdSet();
+        resolver.addWatchers(recipients, watches, NotifyType.ALL_COMMENTS,
+                null, new AccountIdSet());
+        return recipients;
+    }
+
+    private static class CountingResolver extends RecipientResolver {
+        final AtomicInteger evaluated = new AtomicInteger();
+
+        CountingResolver(DatabaseManager db) {
+            super(PLUGIN_NAME, null, null, null, null, null, null, null, db,
+                    null, null, null, null, null);
+        }
+
+        @Override
+        protected boolean matches(AccountProjectWatch w, ChangeData change) {
+            evaluated.incrementAndGet();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+
+public class FcmDataBudgetTest {
+
+    private final Gson gson = new GsonBuilder().create();
+
+    @Test
+    public void smallMessageIsNotTrimmed() {
+        FcmRequestInfo request = createRequest(100, 100, 100);
+        assertTrue(FcmDataBudget.fit(gson, request));
+        assertNull(request.data.truncated);
+        assertEquals(100, request.data.subject.length());
+    }
+
+    @Test
+    public void extraIsTrimmedBeforeTheSubject() {
+        FcmRequestInfo request = createRequest(5000, 100, 100);
+        assertTrue(FcmDataBudget.fit(gson, request));
+        assertEquals(Boolean.TRUE, request.data.truncated);
+        assertTrue(request.data.extra.getAsString().endsWith("..."));
+        assertEquals(100, request.data.subject.length());
+        assertTrue(size(request) <= FcmDataBudget.MAX_PAYLOAD_SIZE);
+    }
+
+    @Test
+    public void structuredExtraIsRemoved() {
+        FcmRequestInfo request = createRequest(0, 100, 100);
+        JsonObject extra = new JsonObject();
+        extra.addProperty("message", repeat('x', 5000));
+        request.data.extra = extra;
+        assertTrue(FcmDataBudget.fit(gson, request));
+        assertNull(request.data.extra);
+    }
+
+    @Test
+    public void notificationBodyCountsAgainstTheLimit() {
+        FcmRequestInfo request = createRequest(0, 100, 5000);
+        assertTrue(FcmDataBudget.fit(gson, request));
+        assertTrue(request.notification.body.endsWith("..."));
+        assertTrue(size(request) <= FcmDataBudget.MAX_PAYLOAD_SIZE);
+    }
+
+    @Test
+    public void messageThatCantBeTrimmedDoesNotFit() {
+        FcmRequestInfo request = createRequest(0, 0, 0);
+        request.data.project = repeat('p', 5000);
+        assertFalse(FcmDataBudget.fit(gson, request));
+    }
+
+    private FcmRequestInfo createRequest(int extra, int subject, int body) {
+        FcmRequestInfo request = new FcmRequestInfo();
+        request.to = "device";
+        request.data = new Notification();
+        request.data.change = "I0123456789abcdef";
+        request.data.legacyChangeId = 1;
+        request.data.project = "budget";
+        request.data.subject = subject > 0 ? repeat('s', subject) : null;
+        request.data.extra = extra > 0
+                ? new JsonPrimitive(repeat('e', extra)) : null;
+        request.notification = new FcmRequestNotificationInfo();
+        request.notification.title = "Gerrit notification";
+        request.notification.body = body > 0 ? repeat('b', body) : null;
+        return request;
+    }
+
+    private int size(FcmRequestInfo request) {
+        return gson.toJson(request.data).getBytes(StandardCharsets.UTF_8)
+                .length + gson.toJson(request.notification)
+                .getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.AllProjectsName;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gson.JsonObject;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.ClusterManager;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DeviceGroupManager;
+import com.ruesga.gerrit.plugins.fcm.NotificationTracer;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.messaging.Notification;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationEvents;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationResponseMode;
+import com.ruesga.gerrit.plugins.fcm.tools.FcmStubServer;
+
+public class FcmUploaderWorkerTest {
+
+    private static final String PLUGIN_NAME = "cloud-notifications";
+    private static final int ACCOUNT_ID = 1000000;
+    private static final int CHANGE = 1;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final List<Integer> accepted =
+            Collections.synchronizedList(new ArrayList<Integer>());
+    private FcmStubServer stub;
+    private Path dataDir;
+    private DatabaseManager db;
+    private FcmUploaderWorker uploader;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new FcmStubServer(0, new FcmStubServer.Listener() {
+            @Override
+            public void onMessageAccepted(JsonObject message, long acceptedOn) {
+                accepted.add(message.getAsJsonObject("data")
+                        .get("event").getAsInt());
+            }
+        });
+        stub.start();
+
+        dataDir = Files.createTempDirectory("fcm-uploadertest");
+        Config cfg = new Config();
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_SERVER_URL, stub.getUrl());
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_SERVER_TOKEN, "uploadertest");
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_DATABASE_URL, "jdbc:h2:" + new File(
+                        dataDir.toFile(), PLUGIN_NAME).getAbsolutePath());
+        Configuration config = new Configuration(
+                PLUGIN_NAME, new PluginConfig(PLUGIN_NAME, cfg));
+
+        db = new DatabaseManager(PLUGIN_NAME, dataDir, config,
+                new DisabledMetricMaker());
+        db.initialize();
+        uploader = new FcmUploaderWorker(PLUGIN_NAME, config, db,
+                new ClusterManager(PLUGIN_NAME, config, db),
+                new NotificationTracer(config),
+                new TopicManager(PLUGIN_NAME, config, db,
+                        new AllProjectsName("All-Projects"), null, null),
+                new DeviceGroupManager(PLUGIN_NAME, config, db),
+                new DisabledMetricMaker());
+        uploader.create();
+
+        CloudNotificationInfo registration = new CloudNotificationInfo();
+        registration.device = "device-" + ACCOUNT_ID;
+        registration.token = "token-" + ACCOUNT_ID;
+        registration.registeredOn = "2016-11-25 14:45:03.123";
+        registration.events = 0xFFF;
+        registration.responseMode = CloudNotificationResponseMode.DATA;
+        db.registerCloudNotification(ACCOUNT_ID, registration);
+    }
+
+    @After
+    public void tearDown() {
+        if (uploader != null) {
+            uploader.shutdown();
+        }
+        if (db != null) {
+            db.shutdown();
+        }
+        if (stub != null) {
+            stub.stop();
+        }
+        if (dataDir != null) {
+            delete(dataDir.toFile());
+        }
+    }
+
+    @Test
+    public void retriedSendIsNotOvertakenByLaterEventOfTheChange()
+            throws Exception {
+        // The first send fails, and is retried after a second
+        stub.setServerErrors(1, 500, 1);
+        uploader.notifyTo(account(), createNotification(
+                CloudNotificationEvents.PATCHSET_CREATED_EVENT));
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return stub.getServerErrors() > 0;
+            }
+        });
+
+        // A later event of the same change to the same account, while the
+        // retry is waiting
+        stub.setServerErrors(0, 500, 0);
+        uploader.notifyTo(account(), createNotification(
+                CloudNotificationEvents.CHANGE_MERGED_EVENT));
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return accepted.size() >= 2;
+            }
+        });
+
+        assertEquals(Arrays.asList(
+                CloudNotificationEvents.PATCHSET_CREATED_EVENT,
+                CloudNotificationEvents.CHANGE_MERGED_EVENT),
+                new ArrayList<>(accepted));
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitFor(Condition condition)
+            throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.isMet()) {
+            assertTrue("timed out", System.currentTimeMillis() < timeout);
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    private static AccountIdSet account() {
+        AccountIdSet accounts = new AccountIdSet();
+        accounts.add(ACCOUNT_ID);
+        return accounts;
+    }
+
+    private static Notification createNotification(int event) {
+        Notification notification = new Notification();
+        notification.event = event;
+        notification.legacyChangeId = CHANGE;
+        notification.change = "I" + Integer.toHexString(CHANGE);
+        notification.project = "uploadertest";
+        notification.branch = "master";
+        notification.subject = "Uploader test change";
+        notification.when = System.currentTimeMillis() / 1000L;
+        notification.body = "An event";
+        return notification;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
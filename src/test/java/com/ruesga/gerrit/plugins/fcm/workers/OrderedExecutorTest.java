@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OrderedExecutorTest {
+
+    private static final int KEY = 1;
+    private static final long TIMEOUT = 10;
+
+    private ExecutorService executor;
+    private ScheduledThreadPoolExecutor scheduler;
+    private OrderedExecutor ordered;
+    private List<String> runs;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        ordered = new OrderedExecutor("test", executor, scheduler, 4);
+        runs = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void delayedTaskHoldsTheLaterTasksOfItsKey() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch otherKey = new CountDownLatch(1);
+        ordered.execute(KEY, new Runnable() {
+            @Override
+            public void run() {
+                runs.add("patch set");
+                // The send failed, retry it later
+                ordered.executeAfter(KEY, record("patch set retry"),
+                        300, TimeUnit.MILLISECONDS);
+            }
+        });
+        ordered.execute(KEY, record("merged"));
+        ordered.execute(KEY, countDown(done));
+        // Other keys of the same stripe aren't held
+        ordered.execute(KEY + ordered.stripes(), countDown(otherKey));
+
+        assertTrue(otherKey.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("patch set"), snapshot());
+        assertEquals(2, ordered.getQueued());
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("patch set", "patch set retry", "merged"),
+                snapshot());
+        assertEquals(0, ordered.getQueued());
+    }
+
+    @Test
+    public void delayedTaskDelayedAgainKeepsHoldingItsKey() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        ordered.execute(KEY, new Runnable() {
+            @Override
+            public void run() {
+                ordered.executeAfter(KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        runs.add("retry 1");
+                        ordered.executeAfter(KEY, record("retry 2"),
+                                100, TimeUnit.MILLISECONDS);
+                    }
+                }, 100, TimeUnit.MILLISECONDS);
+            }
+        });
+        ordered.execute(KEY, record("next"));
+        ordered.execute(KEY, countDown(done));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("retry 1", "retry 2", "next"), snapshot());
+    }
+
+    @Test
+    public void cancelledDelayedTaskReleasesItsKey() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final OrderedExecutor.DelayedTask[] delayed =
+                new OrderedExecutor.DelayedTask[1];
+        final CountDownLatch scheduled = new CountDownLatch(1);
+        ordered.execute(KEY, new Runnable() {
+            @Override
+            public void run() {
+                delayed[0] = ordered.executeAfter(KEY, record("retry"),
+                        1, TimeUnit.HOURS);
+                scheduled.countDown();
+            }
+        });
+        ordered.execute(KEY, record("next"));
+        ordered.execute(KEY, countDown(done));
+
+        assertTrue(scheduled.await(TIMEOUT, TimeUnit.SECONDS));
+        delayed[0].cancel();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("next"), snapshot());
+    }
+
+    @Test
+    public void releaseAllRunsTheParkedTasks() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch scheduled = new CountDownLatch(1);
+        ordered.execute(KEY, new Runnable() {
+            @Override
+            public void run() {
+                ordered.executeAfter(KEY, record("retry"),
+                        1, TimeUnit.HOURS);
+                scheduled.countDown();
+            }
+        });
+        assertTrue(scheduled.await(TIMEOUT, TimeUnit.SECONDS));
+        ordered.execute(KEY, record("next"));
+        ordered.execute(KEY, countDown(done));
+
+        scheduler.shutdownNow();
+        ordered.releaseAll();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("next"), snapshot());
+    }
+
+    @Test
+    public void errorDoesNotStallTheStripe() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        ordered.execute(KEY, new Runnable() {
+            @Override
+            public void run() {
+                throw new AssertionError("boom");
+            }
+        });
+        ordered.execute(KEY, record("next"));
+        ordered.execute(KEY, countDown(done));
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("next"), snapshot());
+    }
+
+    @Test
+    public void stripeKeepsDrainingWhenTheExecutorRejectsIt()
+            throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        ordered.execute(KEY, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    resume.await(TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        // More tasks than a run, so the stripe has to yield its thread
+        for (int i = 0; i < 100; i++) {
+            ordered.execute(KEY, record(String.valueOf(i)));
+        }
+        assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+        executor.shutdown();
+        resume.countDown();
+
+        assertTrue(executor.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(100, snapshot().size());
+        assertEquals(0, ordered.getQueued());
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runs.add(name);
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private List<String> snapshot() {
+        synchronized (runs) {
+            return new ArrayList<>(runs);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.tools;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stub of the FCM legacy send endpoint (fcm/send), for tests and
+ * benchmarks. Point the plugin serverUrl to {@link #getUrl()}.
+ *
+ * The stub can inject a latency distribution, a rate of server errors (with
+ * or without a Retry-After header), per-device error codes and canonical
+ * ids. Messages addressed to several devices (registration_ids) receive a
+ * multicast response with one result per device. All the random decisions
+ * are taken from a seeded generator, so runs are reproducible.
+ */
+public class FcmStubServer {
+
+    public static final String SEND_PATH = "/fcm/send";
+
+    public static final String ERROR_UNAVAILABLE = "Unavailable";
+    public static final String ERROR_INTERNAL_SERVER_ERROR =
+            "InternalServerError";
+    public static final String ERROR_NOT_REGISTERED = "NotRegistered";
+    public static final String ERROR_DEVICE_MESSAGE_RATE_EXCEEDED =
+            "DeviceMessageRateExceeded";
+
+    public enum LatencyDistribution {
+        /** Always the configured latency. */
+        FIXED,
+        /** Uniformly distributed between 0 and twice the latency. */
+        UNIFORM,
+        /** Exponentially distributed with the latency as mean. */
+        EXPONENTIAL
+    }
+
+    /**
+     * Listener notified for every message accepted by the stub.
+     */
+    public interface Listener {
+        void onMessageAccepted(JsonObject message, long acceptedOn);
+    }
+
+    private final Listener listener;
+    private final Random random;
+    private final AtomicLong messageIds = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong deviceErrors = new AtomicLong();
+    private final ConcurrentMap<String, String> errors =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> canonicalIds =
+            new ConcurrentHashMap<>();
+    private volatile LatencyDistribution latencyDistribution =
+            LatencyDistribution.FIXED;
+    private volatile int latency;
+    private volatile double serverErrorRate;
+    private volatile int serverErrorCode = 500;
+    private volatile int retryAfter;
+    private volatile double deviceErrorRate;
+    private volatile String deviceError = ERROR_UNAVAILABLE;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param latency the time (in milliseconds) to wait before answering
+     * @param listener the listener of the accepted messages (can be null)
+     */
+    public FcmStubServer(int latency, Listener listener) {
+        this(latency, listener, 0L);
+    }
+
+    /**
+     * @param latency the time (in milliseconds) to wait before answering
+     * @param listener the listener of the accepted messages (can be null)
+     * @param seed the seed of the random decisions
+     */
+    public FcmStubServer(int latency, Listener listener, long seed) {
+        super();
+        this.latency = latency;
+        this.listener = listener;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Sets how the latency of the responses is distributed.
+     *
+     * @param distribution the distribution of the latency
+     * @param latency the fixed, half the maximum or the mean latency
+     *        (in milliseconds), depending on the distribution
+     */
+    public FcmStubServer setLatency(
+            LatencyDistribution distribution, int latency) {
+        this.latencyDistribution = distribution;
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Answers a rate of the requests with a server error.
+     *
+     * @param rate the rate of failed requests (0 to 1)
+     * @param code the http status code (5xx)
+     * @param retryAfter the value of the Retry-After header in seconds,
+     *        or 0 to omit the header
+     */
+    public FcmStubServer setServerErrors(double rate, int code, int retryAfter) {
+        this.serverErrorRate = rate;
+        this.serverErrorCode = code;
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    /**
+     * Answers a rate of the devices with an error result.
+     *
+     * @param rate the rate of failed devices (0 to 1)
+     * @param error the FCM error code of the result
+     */
+    public FcmStubServer setDeviceErrors(double rate, String error) {
+        this.deviceErrorRate = rate;
+        this.deviceError = error;
+        return this;
+    }
+
+    /**
+     * Answers every message to a device with an error result, until the
+     * error is cleared with a null error.
+     */
+    public FcmStubServer setDeviceError(String device, String error) {
+        if (error == null) {
+            errors.remove(device);
+        } else {
+            errors.put(device, error);
+        }
+        return this;
+    }
+
+    /**
+     * Answers every message to a device with a canonical id, until the
+     * canonical id is cleared with a null value.
+     */
+    public FcmStubServer setCanonicalId(String device, String canonicalId) {
+        if (canonicalId == null) {
+            canonicalIds.remove(device);
+        } else {
+            canonicalIds.put(device, canonicalId);
+        }
+        return this;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getServerErrors() {
+        return serverErrors.get();
+    }
+
+    public long getDeviceErrors() {
+        return deviceErrors.get();
+    }
+
+    public void start() throws IOException {
+        this.executor = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext(SEND_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleSend(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    public void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+            this.executor.shutdownNow();
+            this.server = null;
+        }
+    }
+
+    /**
+     * The url to configure as the plugin serverUrl.
+     */
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + SEND_PATH;
+    }
+
+    private void handleSend(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+
+        JsonObject message;
+        try (Reader reader = new InputStreamReader(
+                exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            message = new JsonParser().parse(reader).getAsJsonObject();
+        } catch (RuntimeException ex) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        List<String> devices = new ArrayList<>();
+        if (message.has("registration_ids")) {
+            for (JsonElement device
+                    : message.getAsJsonArray("registration_ids")) {
+                devices.add(device.getAsString());
+            }
+        } else if (message.has("to")) {
+            devices.add(message.get("to").getAsString());
+        }
+        if (devices.isEmpty()) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+
+        try {
+            long delay = nextLatency();
+            if (delay > 0) {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (nextBoolean(serverErrorRate)) {
+            serverErrors.incrementAndGet();
+            if (retryAfter > 0) {
+                exchange.getResponseHeaders().set(
+                        "Retry-After", String.valueOf(retryAfter));
+            }
+            exchange.sendResponseHeaders(serverErrorCode, -1);
+            return;
+        }
+
+        long multicastId = messageIds.incrementAndGet();
+        int success = 0;
+        int failure = 0;
+        int canonical = 0;
+        JsonArray results = new JsonArray();
+        for (String device : devices) {
+            JsonObject result = new JsonObject();
+            String error = errors.get(device);
+            if (error == null && nextBoolean(deviceErrorRate)) {
+                error = deviceError;
+            }
+            if (error != null) {
+                deviceErrors.incrementAndGet();
+                result.addProperty("error", error);
+                failure++;
+            } else {
+                result.addProperty("message_id",
+                        "0:" + messageIds.incrementAndGet());
+                String canonicalId = canonicalIds.get(device);
+                if (canonicalId != null) {
+                    result.addProperty("registration_id", canonicalId);
+                    canonical++;
+                }
+                success++;
+            }
+            results.add(result);
+        }
+
+        if (success > 0 && listener != null) {
+            listener.onMessageAccepted(message, System.nanoTime());
+        }
+
+        JsonObject response = new JsonObject();
+        response.addProperty("multicast_id", multicastId);
+        response.addProperty("success", success);
+        response.addProperty("failure", failure);
+        response.addProperty("canonical_ids", canonical);
+        response.add("results", results);
+
+        byte[] data = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, data.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(data);
+        }
+    }
+
+    private long nextLatency() {
+        int mean = latency;
+        if (mean <= 0) {
+            return 0;
+        }
+        synchronized (random) {
+            switch (latencyDistribution) {
+            case UNIFORM:
+                return (long) (random.nextDouble() * 2 * mean);
+            case EXPONENTIAL:
+                return (long) (-Math.log(1 - random.nextDouble()) * mean);
+            default:
+                return mean;
+            }
+        }
+    }
+
+    private boolean nextBoolean(double rate) {
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+}
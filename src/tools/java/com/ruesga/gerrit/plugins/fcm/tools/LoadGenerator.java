@@ -0,0 +1,566 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.gerrit.plugins.fcm.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.Config;
+
+import com.google.gerrit.extensions.api.changes.NotifyHandling;
+import com.google.gerrit.extensions.client.ReviewerState;
+import com.google.gerrit.extensions.common.AccountInfo;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.CommitInfo;
+import com.google.gerrit.extensions.common.RevisionInfo;
+import com.google.gerrit.extensions.events.ChangeMergedListener;
+import com.google.gerrit.extensions.events.CommentAddedListener;
+import com.google.gerrit.extensions.events.ReviewerAddedListener;
+import com.google.gerrit.extensions.events.RevisionCreatedListener;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch;
+import com.google.gerrit.reviewdb.client.AccountProjectWatch.NotifyType;
+import com.google.gerrit.server.config.AllProjectsName;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.ruesga.gerrit.plugins.fcm.AccountIdSet;
+import com.ruesga.gerrit.plugins.fcm.ClusterManager;
+import com.ruesga.gerrit.plugins.fcm.Configuration;
+import com.ruesga.gerrit.plugins.fcm.DatabaseManager;
+import com.ruesga.gerrit.plugins.fcm.DeviceGroupManager;
+import com.ruesga.gerrit.plugins.fcm.NotificationTracer;
+import com.ruesga.gerrit.plugins.fcm.TopicManager;
+import com.ruesga.gerrit.plugins.fcm.handlers.ChangeMergedEventHandler;
+import com.ruesga.gerrit.plugins.fcm.handlers.CommentAddedEventHandler;
+import com.ruesga.gerrit.plugins.fcm.handlers.RecipientCache;
+import com.ruesga.gerrit.plugins.fcm.handlers.RecipientResolver;
+import com.ruesga.gerrit.plugins.fcm.handlers.ReviewerAddedEventHandler;
+import com.ruesga.gerrit.plugins.fcm.handlers.RevisionCreatedEventHandler;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationInfo;
+import com.ruesga.gerrit.plugins.fcm.rest.CloudNotificationResponseMode;
+import com.ruesga.gerrit.plugins.fcm.workers.FcmUploaderWorker;
+
+/**
+ * Replays synthetic Gerrit events through the plugin event handlers and
+ * the uploader, against a local FCM stub server, and reports the plugin
+ * throughput and the latency from the event to the FCM acceptance.
+ *
+ * Only the change index and the watches access are simulated, so it can
+ * be run in a developer machine without Gerrit nor network access:
+ *
+ * <pre>
+ *   java -jar cloud-notifications-loadgen.jar --events=10000 \
+ *       --reviewers=5 --watchers=50 --devices=2
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final String PLUGIN_NAME = "cloud-notifications";
+    private static final int FIRST_ACCOUNT_ID = 1000000;
+    private static final String SUBJECT_PREFIX = "Load generated change #";
+
+    private enum EventType {
+        COMMENT_ADDED,
+        REVISION_CREATED,
+        REVIEWER_ADDED,
+        CHANGE_MERGED
+    }
+
+    private static class Options {
+        int events = 1000;
+        int rate = 0;
+        int threads = 4;
+        int accounts = 1000;
+        int devices = 1;
+        int changes = 100;
+        int reviewers = 3;
+        int watchers = 10;
+        int latency = 0;
+        String latencyDistribution = "fixed";
+        double serverErrorRate = 0;
+        int retryAfter = 0;
+        double deviceErrorRate = 0;
+        String deviceError = FcmStubServer.ERROR_UNAVAILABLE;
+        long seed = 0;
+        int drainTimeout = 60;
+        String mix = "comment-added:4,revision-created:2,"
+                + "reviewer-added:1,change-merged:1";
+    }
+
+    /**
+     * Simulates the project watches of the changes. Every change is
+     * watched by the same accounts.
+     */
+    private static class SyntheticRecipientResolver
+            extends RecipientResolver {
+        private final Options options;
+
+        SyntheticRecipientResolver(
+                Options options, RecipientCache recipients) {
+            super(PLUGIN_NAME, null, null, null, null, null, null, null, null,
+                    null, recipients, null, null, null);
+            this.options = options;
+        }
+
+        @Override
+        protected ChangeData getWatchers(NotifyType type, ChangeInfo change,
+                boolean useTopics, AccountIdSet watchers,
+                List<AccountProjectWatch> filtered) {
+            int first = change._number * 31;
+            for (int i = 0; i < options.watchers; i++) {
+                watchers.add(account(options, first + i));
+            }
+            return null;
+        }
+    }
+
+    private final Options options;
+    private final EventType[] mix;
+    private final long[] firedOn;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final AtomicLong lastAcceptedOn = new AtomicLong();
+    private final List<Long> latencies = new ArrayList<>();
+
+    private Path dataDir;
+    private FcmStubServer stub;
+    private DatabaseManager db;
+    private FcmUploaderWorker uploader;
+    private CommentAddedEventHandler commentAdded;
+    private RevisionCreatedEventHandler revisionCreated;
+    private ReviewerAddedEventHandler reviewerAdded;
+    private ChangeMergedEventHandler changeMerged;
+
+    public static void main(String[] args) throws Exception {
+        Options options = parseOptions(args);
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private LoadGenerator(Options options) {
+        super();
+        this.options = options;
+        this.mix = parseMix(options.mix);
+        this.firedOn = new long[options.events];
+    }
+
+    private void run() throws Exception {
+        setUp();
+        try {
+            fire();
+            drain();
+        } finally {
+            tearDown();
+        }
+        report();
+    }
+
+    private void setUp() throws IOException {
+        stub = new FcmStubServer(options.latency,
+                new FcmStubServer.Listener() {
+            @Override
+            public void onMessageAccepted(JsonObject message, long acceptedOn) {
+                onAccepted(message, acceptedOn);
+            }
+        }, options.seed);
+        stub.setLatency(FcmStubServer.LatencyDistribution.valueOf(
+                options.latencyDistribution.toUpperCase(Locale.US)),
+                options.latency);
+        stub.setServerErrors(options.serverErrorRate, 500, options.retryAfter);
+        stub.setDeviceErrors(options.deviceErrorRate, options.deviceError);
+        stub.start();
+
+        dataDir = Files.createTempDirectory("fcm-loadgen");
+        Config cfg = new Config();
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_SERVER_URL, stub.getUrl());
+        cfg.setString("plugin", PLUGIN_NAME,
+                Configuration.PROP_SERVER_TOKEN, "loadgen");
+        Configuration config = new Configuration(
+                PLUGIN_NAME, new PluginConfig(PLUGIN_NAME, cfg));
+
+        db = new DatabaseManager(PLUGIN_NAME, dataDir, config,
+                new DisabledMetricMaker());
+        db.initialize();
+        ClusterManager cluster = new ClusterManager(PLUGIN_NAME, config, db);
+        uploader = new FcmUploaderWorker(PLUGIN_NAME, config, db, cluster,
+                new NotificationTracer(config), new TopicManager(PLUGIN_NAME,
+                        config, db, new AllProjectsName("All-Projects"),
+                        null, null),
+                new DeviceGroupManager(PLUGIN_NAME, config, db),
+                new DisabledMetricMaker());
+        uploader.create();
+
+        // All the accounts are registered in all their devices
+        for (int i = 0; i < options.accounts; i++) {
+            int accountId = FIRST_ACCOUNT_ID + i;
+            List<CloudNotificationInfo> notifications = new ArrayList<>();
+            for (int j = 0; j < options.devices; j++) {
+                CloudNotificationInfo notification =
+                        new CloudNotificationInfo();
+                notification.device = "device-" + accountId + "-" + j;
+                notification.token = "token-" + accountId;
+                notification.registeredOn = "2016-11-25 14:45:03.123";
+                notification.events = 0xFFFFFFF;
+                notification.responseMode = CloudNotificationResponseMode.DATA;
+                notifications.add(notification);
+            }
+            db.registerCloudNotifications(accountId, notifications);
+        }
+
+        RecipientResolver resolver = new SyntheticRecipientResolver(
+                options, new RecipientCache(config));
+        commentAdded = new CommentAddedEventHandler(
+                PLUGIN_NAME, uploader, resolver);
+        revisionCreated = new RevisionCreatedEventHandler(
+                PLUGIN_NAME, uploader, resolver);
+        reviewerAdded = new ReviewerAddedEventHandler(
+                PLUGIN_NAME, uploader, resolver);
+        changeMerged = new ChangeMergedEventHandler(
+                PLUGIN_NAME, uploader, resolver);
+    }
+
+    private void tearDown() {
+        if (uploader != null) {
+            uploader.shutdown();
+        }
+        if (db != null) {
+            db.shutdown();
+        }
+        if (stub != null) {
+            stub.stop();
+        }
+        if (dataDir != null) {
+            delete(dataDir.toFile());
+        }
+    }
+
+    private void fire() throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(options.threads);
+        final long start = System.nanoTime();
+        final long interval = options.rate > 0
+                ? TimeUnit.SECONDS.toNanos(1) / options.rate : 0;
+
+        for (int i = 0; i < options.threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int seq;
+                        while ((seq = next.getAndIncrement())
+                                < options.events) {
+                            long delay = start + seq * interval
+                                    - System.nanoTime();
+                            if (delay > 0) {
+                                TimeUnit.NANOSECONDS.sleep(delay);
+                            }
+                            fireEvent(seq);
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "loadgen-" + i);
+            thread.start();
+        }
+        done.await();
+
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US,
+                "Events:     %d fired in %.2f s (%.1f events/s)",
+                options.events, elapsed / 1e9,
+                options.events / (elapsed / 1e9)));
+    }
+
+    private void drain() throws InterruptedException {
+        // Wait until the uploader stops sending messages
+        long timeout = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(options.drainTimeout);
+        int count = -1;
+        while (System.nanoTime() < timeout) {
+            TimeUnit.SECONDS.sleep(1);
+            int current = accepted.get();
+            if (current == count) {
+                break;
+            }
+            count = current;
+        }
+    }
+
+    private void report() {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+        }
+        Arrays.sort(sorted);
+
+        long first = firedOn.length > 0 ? firedOn[0] : 0;
+        double elapsed = (lastAcceptedOn.get() - first) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "Recipients: %d messages accepted in %.2f s "
+                        + "(%.1f recipients/s)",
+                accepted.get(), elapsed,
+                elapsed > 0 ? accepted.get() / elapsed : 0));
+        System.out.println(String.format(Locale.US,
+                "Latency:    p50 %.2f ms, p99 %.2f ms, max %.2f ms "
+                        + "(event to FCM accepted)",
+                percentile(sorted, 50) / 1e6,
+                percentile(sorted, 99) / 1e6,
+                percentile(sorted, 100) / 1e6));
+        System.out.println(String.format(Locale.US,
+                "FCM stub:   %d requests, %d server errors, %d device errors",
+                stub.getRequests(), stub.getServerErrors(),
+                stub.getDeviceErrors()));
+    }
+
+    private void fireEvent(int seq) {
+        Random random = new Random(options.seed + seq);
+        EventType type = mix[seq % mix.length];
+        int change = 1 + random.nextInt(options.changes);
+
+        Map<String, Object> values = new HashMap<>();
+        values.put("getChange", createChange(seq, change));
+        values.put("getWho", createAccount(account(options,
+                random.nextInt(options.accounts))));
+        values.put("getWhen", new Timestamp(System.currentTimeMillis()));
+        values.put("getNotify", NotifyHandling.ALL);
+        values.put("getRevision", createRevision(seq));
+
+        firedOn[seq] = System.nanoTime();
+        switch (type) {
+        case COMMENT_ADDED:
+            values.put("getComment", "Looks good to me");
+            commentAdded.onCommentAdded(createEvent(
+                    CommentAddedListener.Event.class, values));
+            break;
+        case REVISION_CREATED:
+            revisionCreated.onRevisionCreated(createEvent(
+                    RevisionCreatedListener.Event.class, values));
+            break;
+        case REVIEWER_ADDED:
+            values.put("getReviewers", Arrays.asList(createAccount(
+                    account(options, random.nextInt(options.accounts)))));
+            reviewerAdded.onReviewersAdded(createEvent(
+                    ReviewerAddedListener.Event.class, values));
+            break;
+        case CHANGE_MERGED:
+            values.put("getNewRevisionId", sha1(seq));
+            changeMerged.onChangeMerged(createEvent(
+                    ChangeMergedListener.Event.class, values));
+            break;
+        }
+    }
+
+    private void onAccepted(JsonObject message, long acceptedOn) {
+        accepted.incrementAndGet();
+        lastAcceptedOn.set(Math.max(lastAcceptedOn.get(), acceptedOn));
+
+        // The event sequence travels in the subject of the change
+        JsonElement data = message.get("data");
+        if (data == null || !data.isJsonObject()
+                || !data.getAsJsonObject().has("subject")) {
+            return;
+        }
+        String subject = data.getAsJsonObject().get("subject").getAsString();
+        if (subject.startsWith(SUBJECT_PREFIX)) {
+            int seq = Integer.parseInt(
+                    subject.substring(SUBJECT_PREFIX.length()));
+            synchronized (latencies) {
+                latencies.add(acceptedOn - firedOn[seq]);
+            }
+        }
+    }
+
+    private ChangeInfo createChange(int seq, int number) {
+        ChangeInfo change = new ChangeInfo();
+        change._number = number;
+        change.changeId = "I" + sha1(number);
+        change.id = "loadgen~master~" + change.changeId;
+        change.project = "loadgen/project-" + (number % 10);
+        change.branch = "master";
+        change.subject = SUBJECT_PREFIX + seq;
+        change.owner = createAccount(account(options, number));
+
+        Map<ReviewerState, Collection<AccountInfo>> reviewers =
+                new EnumMap<>(ReviewerState.class);
+        List<AccountInfo> accounts = new ArrayList<>();
+        for (int i = 1; i <= options.reviewers; i++) {
+            accounts.add(createAccount(account(options, number + i)));
+        }
+        reviewers.put(ReviewerState.REVIEWER, accounts);
+        change.reviewers = reviewers;
+        return change;
+    }
+
+    private static RevisionInfo createRevision(int seq) {
+        RevisionInfo revision = new RevisionInfo();
+        revision.commit = new CommitInfo();
+        revision.commit.commit = sha1(seq);
+        return revision;
+    }
+
+    private static AccountInfo createAccount(int accountId) {
+        AccountInfo account = new AccountInfo(accountId);
+        account.name = "User " + accountId;
+        account.username = "user" + accountId;
+        account.email = "user" + accountId + "@example.com";
+        return account;
+    }
+
+    private static int account(Options options, int n) {
+        return FIRST_ACCOUNT_ID + ((n & Integer.MAX_VALUE) % options.accounts);
+    }
+
+    private static String sha1(int n) {
+        return String.format("%040x", n);
+    }
+
+    // Events are implemented by a proxy that answers their getters
+    private static <T> T createEvent(
+            final Class<T> type, final Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+                new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + values;
+                default:
+                    return values.get(method.getName());
+                }
+            }
+        }));
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static EventType[] parseMix(String mix) {
+        List<EventType> types = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            EventType type = EventType.valueOf(
+                    parts[0].trim().toUpperCase(Locale.US).replace('-', '_'));
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            for (int i = 0; i < weight; i++) {
+                types.add(type);
+            }
+        }
+        if (types.isEmpty()) {
+            throw new IllegalArgumentException("Empty event mix");
+        }
+        return types.toArray(new EventType[types.size()]);
+    }
+
+    private static Options parseOptions(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length != 2 || !parts[0].startsWith("--")) {
+                usage("Invalid argument: " + arg);
+            }
+            String value = parts[1];
+            switch (parts[0].substring(2)) {
+            case "events": options.events = Integer.parseInt(value); break;
+            case "rate": options.rate = Integer.parseInt(value); break;
+            case "threads": options.threads = Integer.parseInt(value); break;
+            case "accounts": options.accounts = Integer.parseInt(value); break;
+            case "devices": options.devices = Integer.parseInt(value); break;
+            case "changes": options.changes = Integer.parseInt(value); break;
+            case "reviewers": options.reviewers = Integer.parseInt(value); break;
+            case "watchers": options.watchers = Integer.parseInt(value); break;
+            case "latency": options.latency = Integer.parseInt(value); break;
+            case "latency-distribution":
+                options.latencyDistribution = value;
+                break;
+            case "server-error-rate":
+                options.serverErrorRate = Double.parseDouble(value);
+                break;
+            case "retry-after":
+                options.retryAfter = Integer.parseInt(value);
+                break;
+            case "device-error-rate":
+                options.deviceErrorRate = Double.parseDouble(value);
+                break;
+            case "device-error": options.deviceError = value; break;
+            case "seed": options.seed = Long.parseLong(value); break;
+            case "drain-timeout":
+                options.drainTimeout = Integer.parseInt(value);
+                break;
+            case "mix": options.mix = value; break;
+            default: usage("Unknown option: " + parts[0]);
+            }
+        }
+        return options;
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: LoadGenerator [--events=N] [--rate=N] "
+                + "[--threads=N] [--accounts=N] [--devices=N] [--changes=N] "
+                + "[--reviewers=N] [--watchers=N] [--latency=MS] "
+                + "[--latency-distribution=fixed|uniform|exponential] "
+                + "[--server-error-rate=R] [--retry-after=S] "
+                + "[--device-error-rate=R] [--device-error=CODE] "
+                + "[--seed=N] [--drain-timeout=S] [--mix=type:weight,...]");
+        System.exit(1);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}